@@ -0,0 +1,51 @@
+package org.yinwang.pysonar.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.yinwang.pysonar.Analyzer;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * A whole analysis of the corpus with the ASTs in a warm disk cache, as
+ * when unchanged code is indexed again: a new analyzer, loading, inference
+ * and finish().
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AnalyzeBenchmark {
+
+    @Param({"small", "medium", "large"})
+    public String size;
+
+    private Corpus corpus;
+
+
+    @Setup
+    public void setUp() throws IOException {
+        corpus = new Corpus(size);
+        corpus.analyze().close();
+    }
+
+
+    @TearDown
+    public void tearDown() {
+        corpus.delete();
+    }
+
+
+    @Benchmark
+    public Analyzer analyze() {
+        Analyzer analyzer = corpus.newAnalyzer();
+        analyzer.clearAstCache();
+        analyzer.analyze(corpus.src.getPath());
+        analyzer.finish();
+        analyzer.close();
+        return analyzer;
+    }
+}
@@ -0,0 +1,57 @@
+package org.yinwang.pysonar.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.yinwang.pysonar.Analyzer;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Loading every AST of the corpus from a warm disk cache, as a second run
+ * over unchanged code does. The memory cache is cleared before each
+ * invocation, so each AST is read and deserialized.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AstCacheBenchmark {
+
+    @Param({"small", "medium", "large"})
+    public String size;
+
+    private Corpus corpus;
+    private Analyzer analyzer;
+
+
+    @Setup
+    public void setUp() throws IOException {
+        corpus = new Corpus(size);
+        analyzer = corpus.newAnalyzer();
+        for (String file : corpus.files) {
+            if (analyzer.getAstForFile(file) == null) {
+                throw new IllegalStateException("failed to parse " + file);
+            }
+        }
+    }
+
+
+    @TearDown
+    public void tearDown() {
+        analyzer.close();
+        corpus.delete();
+    }
+
+
+    @Benchmark
+    public void warmLoad(Blackhole bh) {
+        analyzer.clearAstCache();
+        for (String file : corpus.files) {
+            bh.consume(analyzer.getAstForFile(file));
+        }
+    }
+}
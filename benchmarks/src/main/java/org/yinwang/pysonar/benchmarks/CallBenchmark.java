@@ -0,0 +1,90 @@
+package org.yinwang.pysonar.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.yinwang.pysonar.Analyzer;
+import org.yinwang.pysonar.Binding;
+import org.yinwang.pysonar.ast.Call;
+import org.yinwang.pysonar.types.FunType;
+import org.yinwang.pysonar.types.TupleType;
+import org.yinwang.pysonar.types.Type;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Calls that {@link Call#apply} answers from a function's memo of
+ * argument types to return types. After the corpus is analyzed, every
+ * module level function is called again with each argument tuple it was
+ * analyzed with, so only the parameter binding and the memo lookup run.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CallBenchmark {
+
+    @Param({"small", "medium", "large"})
+    public String size;
+
+    private Corpus corpus;
+    private Analyzer analyzer;
+    private List<FunType> funs = new ArrayList<>();
+    private List<List<Type>> args = new ArrayList<>();
+    private int nBindings;
+
+
+    @Setup
+    public void setUp() throws IOException {
+        corpus = new Corpus(size);
+        analyzer = corpus.analyze();
+        for (Binding b : analyzer.getAllBindings()) {
+            if (b.kind != Binding.Kind.FUNCTION || !(b.type instanceof FunType)) {
+                continue;
+            }
+            FunType fun = (FunType) b.type;
+            if (fun.cls != null || fun.func.vararg != null || fun.func.kwarg != null) {
+                continue;
+            }
+            for (Map.Entry<Type, Type> arrow : fun.arrows.entrySet()) {
+                if (arrow.getKey() instanceof TupleType) {
+                    funs.add(fun);
+                    args.add(((TupleType) arrow.getKey()).eltTypes);
+                }
+            }
+        }
+        if (funs.isEmpty()) {
+            throw new IllegalStateException("no function calls to replay");
+        }
+        nBindings = analyzer.getAllBindings().size();
+    }
+
+
+    // the parameters bound by each call are registered with the analyzer
+    @TearDown(Level.Iteration)
+    public void dropBindings() {
+        List<Binding> all = analyzer.getAllBindings();
+        all.subList(nBindings, all.size()).clear();
+    }
+
+
+    @TearDown
+    public void tearDown() {
+        analyzer.close();
+        corpus.delete();
+    }
+
+
+    @Benchmark
+    public void memoized(Blackhole bh) {
+        for (int i = 0; i < funs.size(); i++) {
+            bh.consume(Call.apply(funs.get(i), args.get(i), null, null, null, null));
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package org.yinwang.pysonar.benchmarks;
+
+import org.apache.commons.io.FileUtils;
+import org.jetbrains.annotations.NotNull;
+import org.yinwang.pysonar.Analyzer;
+import org.yinwang.pysonar._;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * The Python code the benchmarks run on. The checked-in "shop" package
+ * (about 700 lines in 7 modules) is copied into a temporary directory as
+ * packages shop0, shop1, ..., as many times as the size asks for:
+ *
+ *   small    1 copy      7 files
+ *   medium   8 copies   56 files
+ *   large   32 copies  224 files
+ *
+ * The copies import within their own package only, so the work grows
+ * linearly with the size. The AST cache of the benchmark goes in the same
+ * temporary directory, so runs don't share it.
+ */
+public class Corpus {
+
+    private static final String RESOURCE = "org/yinwang/pysonar/benchmarks/corpus/shop/";
+    private static final String[] MODULES = {
+            "__init__.py", "util.py", "models.py", "inventory.py", "pricing.py", "orders.py", "reports.py"
+    };
+
+    @NotNull
+    private final File root;
+    @NotNull
+    public final File src;
+    @NotNull
+    public final File cacheDir;
+    @NotNull
+    public final List<String> files = new ArrayList<>();
+
+
+    public Corpus(@NotNull String size) throws IOException {
+        int copies = copies(size);
+        root = Files.createTempDirectory("pysonar-bench-").toFile();
+        src = new File(root, "src");
+        cacheDir = new File(root, "cache");
+        for (int i = 0; i < copies; i++) {
+            File dir = new File(src, "shop" + i);
+            for (String module : MODULES) {
+                File f = new File(dir, module);
+                try (InputStream in = Corpus.class.getClassLoader().getResourceAsStream(RESOURCE + module)) {
+                    FileUtils.copyInputStreamToFile(in, f);
+                }
+                files.add(_.unifyPath(f));
+            }
+        }
+    }
+
+
+    private static int copies(@NotNull String size) {
+        switch (size) {
+            case "small":
+                return 1;
+            case "medium":
+                return 8;
+            case "large":
+                return 32;
+            default:
+                throw new IllegalArgumentException("Unknown corpus size: " + size + ", expecting small, medium or large");
+        }
+    }
+
+
+    /**
+     * An analyzer that parses in the JVM, so that no Python interpreter is
+     * involved, and keeps its AST cache with the corpus.
+     */
+    @NotNull
+    public Analyzer newAnalyzer() {
+        return newAnalyzer(cacheDir);
+    }
+
+
+    @NotNull
+    public static Analyzer newAnalyzer(@NotNull File cacheDir) {
+        Map<String, Object> options = new HashMap<>();
+        options.put("quiet", true);
+        options.put("parser", "java");
+        options.put("cache-dir", cacheDir.getPath());
+        return new Analyzer(options);
+    }
+
+
+    /**
+     * Analyzes the whole corpus with a new analyzer.
+     */
+    @NotNull
+    public Analyzer analyze() {
+        Analyzer analyzer = newAnalyzer();
+        analyzer.analyze(src.getPath());
+        analyzer.finish();
+        return analyzer;
+    }
+
+
+    public void delete() {
+        FileUtils.deleteQuietly(root);
+    }
+}
@@ -0,0 +1,74 @@
+package org.yinwang.pysonar.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.yinwang.pysonar.Analyzer;
+import org.yinwang.pysonar.Parser;
+import org.yinwang.pysonar.PythonParser;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * The front end, without the Python interpreters: turning the trees that
+ * dump_python.py (or the in-JVM parser) produces into pysonar's AST with
+ * {@link Parser#convert}, and the whole in-JVM parse of the source.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParserBenchmark {
+
+    @Param({"small", "medium", "large"})
+    public String size;
+
+    private Corpus corpus;
+    private Analyzer analyzer;
+    private Parser parser;
+    private List<String> sources = new ArrayList<>();
+    private List<Map<String, Object>> trees = new ArrayList<>();
+
+
+    @Setup
+    public void setUp() throws IOException {
+        corpus = new Corpus(size);
+        analyzer = corpus.newAnalyzer();
+        parser = new Parser(true);
+        for (String file : corpus.files) {
+            String source = PythonParser.readSource(file);
+            sources.add(source);
+            trees.add(PythonParser.parse(source, true));
+        }
+    }
+
+
+    @TearDown
+    public void tearDown() {
+        parser.close();
+        analyzer.close();
+        corpus.delete();
+    }
+
+
+    @Benchmark
+    public void convert(Blackhole bh) {
+        for (int i = 0; i < trees.size(); i++) {
+            bh.consume(parser.convert(trees.get(i), corpus.files.get(i)));
+        }
+    }
+
+
+    @Benchmark
+    public void parseInJvm(Blackhole bh) {
+        for (int i = 0; i < sources.size(); i++) {
+            bh.consume(parser.convert(PythonParser.parse(sources.get(i), true), corpus.files.get(i)));
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package org.yinwang.pysonar.benchmarks;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.*;
+import org.yinwang.pysonar.Analyzer;
+import org.yinwang.pysonar.Builtins;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * The fixed cost of starting an analysis: constructing an Analyzer, and
+ * separately the builtin types it sets up. Interpreters start on the first
+ * parse, so they are not part of it. By default this is the warm cost of a
+ * long-running process; the cold cost a command line run pays, with class
+ * loading and no JIT, is one shot in each of several fresh JVMs:
+ *
+ *   java -jar target/benchmarks.jar StartupBenchmark -bm ss -wi 0 -i 1 -f 10
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StartupBenchmark {
+
+    private File cacheDir;
+    private Analyzer analyzer;
+
+
+    // builtins() needs a current analyzer
+    @Setup
+    public void setUp() throws IOException {
+        cacheDir = Files.createTempDirectory("pysonar-bench-").toFile();
+        analyzer = Corpus.newAnalyzer(cacheDir);
+    }
+
+
+    @TearDown
+    public void tearDown() {
+        analyzer.close();
+        FileUtils.deleteQuietly(cacheDir);
+    }
+
+
+    @Benchmark
+    public Analyzer analyzer() {
+        Analyzer a = Corpus.newAnalyzer(cacheDir);
+        a.close();
+        return a;
+    }
+
+
+    @Benchmark
+    public Builtins builtins() {
+        Builtins b = new Builtins();
+        b.init();
+        return b;
+    }
+}
@@ -0,0 +1,116 @@
+package org.yinwang.pysonar.benchmarks;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.yinwang.pysonar.Analyzer;
+import org.yinwang.pysonar.Binding;
+import org.yinwang.pysonar.State;
+import org.yinwang.pysonar.ast.Name;
+import org.yinwang.pysonar.types.ClassType;
+import org.yinwang.pysonar.types.Type;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Symbol tables shaped like the ones the analyzer builds: a module with
+ * 200 names, a function nested in another, and a chain of four classes.
+ * Measures name lookups that end at each level of the chain, attribute
+ * lookups through the superclasses, and the copy and merge done at every
+ * branch of an if statement.
+ */
+@org.openjdk.jmh.annotations.State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StateBenchmark {
+
+    private static final String FILE = "bench.py";
+    private static final String[] NAMES = {"inner3", "outer3", "name150", "len", "missing"};
+    private static final String[] ATTRS = {"attr3_5", "attr0_5", "missing"};
+
+    private File cacheDir;
+    private Analyzer analyzer;
+    private State module;
+    private State inner;
+    private State derived;
+    private State branch1;
+    private State branch2;
+
+
+    @Setup
+    public void setUp() throws IOException {
+        cacheDir = Files.createTempDirectory("pysonar-bench-").toFile();
+        analyzer = Corpus.newAnalyzer(cacheDir);
+
+        module = new State(analyzer.globaltable, State.StateType.MODULE);
+        module.setPath("bench");
+        fill(module, "name", 200, Type.INT);
+
+        State outer = new State(module, State.StateType.FUNCTION);
+        fill(outer, "outer", 10, Type.STR);
+        inner = new State(outer, State.StateType.FUNCTION);
+        fill(inner, "inner", 10, Type.FLOAT);
+
+        ClassType cls = null;
+        for (int i = 0; i < 4; i++) {
+            cls = new ClassType("C" + i, module, cls);
+            fill(cls.table, "attr" + i + "_", 20, Type.INT);
+        }
+        derived = cls.table;
+
+        branch1 = module.copy();
+        branch2 = module.copy();
+        fill(branch1, "name", 20, Type.STR);
+        fill(branch2, "name", 40, Type.FLOAT);
+    }
+
+
+    private static void fill(State s, String prefix, int n, Type type) {
+        for (int i = 0; i < n; i++) {
+            String id = prefix + i;
+            s.insert(id, new Name(id, FILE, i, i + id.length()), type, Binding.Kind.VARIABLE);
+        }
+    }
+
+
+    @TearDown
+    public void tearDown() {
+        analyzer.close();
+        FileUtils.deleteQuietly(cacheDir);
+    }
+
+
+    @Benchmark
+    public void lookup(Blackhole bh) {
+        for (String name : NAMES) {
+            bh.consume(inner.lookup(name));
+        }
+    }
+
+
+    @Benchmark
+    public void lookupAttr(Blackhole bh) {
+        for (String attr : ATTRS) {
+            bh.consume(derived.lookupAttr(attr));
+        }
+    }
+
+
+    @Benchmark
+    public State copy() {
+        return module.copy();
+    }
+
+
+    @Benchmark
+    public State merge() {
+        return State.merge(branch1, branch2);
+    }
+}
@@ -0,0 +1,92 @@
+package org.yinwang.pysonar.benchmarks;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.*;
+import org.yinwang.pysonar.Analyzer;
+import org.yinwang.pysonar.types.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * {@link UnionType#union} as the analyzer calls it: joining a type with
+ * itself or with unknown, which must stay cheap, and growing a union one
+ * branch at a time out of primitive, instance and container types, whose
+ * equality is structural.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UnionTypeBenchmark {
+
+    private File cacheDir;
+    private Analyzer analyzer;
+    private Type[] types;
+    private Type tuple;
+    private Type sameTuple;
+    private Type union1;
+    private Type union2;
+
+
+    @Setup
+    public void setUp() throws IOException {
+        cacheDir = Files.createTempDirectory("pysonar-bench-").toFile();
+        analyzer = Corpus.newAnalyzer(cacheDir);
+
+        types = new Type[]{
+                Type.INT, Type.STR, Type.NONE,
+                new InstanceType(new ClassType("A", null, null)),
+                new InstanceType(new ClassType("B", null, null)),
+                new ListType(Type.INT),
+                new ListType(Type.STR),
+                new DictType(Type.STR, Type.INT),
+                new TupleType(Type.INT, Type.STR),
+                Type.FLOAT
+        };
+        tuple = new TupleType(Type.INT, new ListType(Type.STR));
+        sameTuple = new TupleType(Type.INT, new ListType(Type.STR));
+        union1 = new UnionType(types[0], types[1], types[3], types[5], types[7]);
+        union2 = new UnionType(types[1], types[3], types[6], types[8], types[9]);
+    }
+
+
+    @TearDown
+    public void tearDown() {
+        analyzer.close();
+        FileUtils.deleteQuietly(cacheDir);
+    }
+
+
+    @Benchmark
+    public Type same() {
+        return UnionType.union(tuple, sameTuple);
+    }
+
+
+    @Benchmark
+    public Type withUnknown() {
+        return UnionType.union(tuple, Type.UNKNOWN);
+    }
+
+
+    @Benchmark
+    public Type grow() {
+        Type t = types[0];
+        for (int i = 1; i < types.length; i++) {
+            t = UnionType.union(t, types[i]);
+        }
+        return t;
+    }
+
+
+    @Benchmark
+    public Type unions() {
+        return UnionType.union(union1, union2);
+    }
+}
@@ -0,0 +1,80 @@
+package org.yinwang.pysonar.demos;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.yinwang.pysonar.Analyzer;
+import org.yinwang.pysonar._;
+import org.yinwang.pysonar.benchmarks.Corpus;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * The HTML side of the demo on an analyzed corpus: collecting the links
+ * and highlights of every binding and reference with
+ * {@link Linker#findLinks}, and weaving them into the source of every
+ * file with {@link StyleApplier#apply}. Nothing is written to disk.
+ *
+ * It is in the package of the demo because Linker and StyleApplier are
+ * package-private.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LinkerBenchmark {
+
+    @Param({"small", "medium", "large"})
+    public String size;
+
+    private Corpus corpus;
+    private Analyzer analyzer;
+    private String rootPath;
+    private File outDir;
+    private Linker linker;
+    private List<String> sources = new ArrayList<>();
+
+
+    @Setup
+    public void setUp() throws IOException {
+        corpus = new Corpus(size);
+        analyzer = corpus.analyze();
+        rootPath = _.unifyPath(corpus.src);
+        outDir = new File(corpus.src.getParentFile(), "html");
+        linker = new Linker(rootPath, outDir);
+        linker.findLinks(analyzer);
+        for (String file : corpus.files) {
+            sources.add(_.readFile(file));
+        }
+    }
+
+
+    @TearDown
+    public void tearDown() {
+        analyzer.close();
+        corpus.delete();
+    }
+
+
+    @Benchmark
+    public Linker findLinks() {
+        Linker l = new Linker(rootPath, outDir);
+        l.findLinks(analyzer);
+        return l;
+    }
+
+
+    @Benchmark
+    public void applyStyles(Blackhole bh) {
+        for (int i = 0; i < sources.size(); i++) {
+            String file = corpus.files.get(i);
+            bh.consume(new StyleApplier(file, sources.get(i), linker.getStyles(file)).apply());
+        }
+    }
+}
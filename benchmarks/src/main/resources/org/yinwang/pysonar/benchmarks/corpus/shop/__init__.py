@@ -0,0 +1,21 @@
+"""A small shop: products, stock, prices, orders and reports.
+
+Fixture for the benchmarks. The code is written to exercise the
+analyzer the way application code does: classes with inheritance,
+closures, decorators, comprehensions, exceptions and imports between
+modules of a package.
+"""
+
+from .models import Product, Customer, Address
+from .inventory import Inventory, OutOfStock
+from .pricing import PriceList, Discount, percent_off, fixed_off
+from .orders import Order, OrderLine, OrderBook
+from .reports import Report, sales_by_product, top_customers
+
+__all__ = [
+    'Product', 'Customer', 'Address',
+    'Inventory', 'OutOfStock',
+    'PriceList', 'Discount', 'percent_off', 'fixed_off',
+    'Order', 'OrderLine', 'OrderBook',
+    'Report', 'sales_by_product', 'top_customers',
+]
@@ -0,0 +1,111 @@
+from collections import defaultdict
+
+from .models import Product
+from .util import group_by, first
+
+
+class OutOfStock(Exception):
+
+    def __init__(self, product, wanted, available):
+        Exception.__init__(self, '%s: wanted %d, %d available' % (product.name, wanted, available))
+        self.product = product
+        self.wanted = wanted
+        self.available = available
+
+
+class Location(object):
+
+    def __init__(self, name, capacity):
+        self.name = name
+        self.capacity = capacity
+        self.stock = defaultdict(int)
+
+    def free(self):
+        return self.capacity - sum(self.stock.values())
+
+    def put(self, product, count):
+        if count > self.free():
+            count = self.free()
+        self.stock[product] += count
+        return count
+
+    def take(self, product, count):
+        available = self.stock[product]
+        taken = min(available, count)
+        self.stock[product] = available - taken
+        return taken
+
+
+class Inventory(object):
+
+    def __init__(self, locations=None):
+        self.locations = list(locations or [Location('main', 1000)])
+        self.products = {}
+        self.listeners = []
+
+    def register(self, product):
+        if not isinstance(product, Product):
+            raise TypeError(product)
+        self.products[product.slug] = product
+        return product
+
+    def find(self, slug):
+        return self.products.get(slug)
+
+    def count(self, product):
+        return sum(location.stock[product] for location in self.locations)
+
+    def on_change(self, listener):
+        self.listeners.append(listener)
+        return listener
+
+    def _notify(self, product, delta):
+        for listener in self.listeners:
+            listener(product, delta)
+
+    def receive(self, product, count):
+        remaining = count
+        for location in sorted(self.locations, key=lambda l: -l.free()):
+            remaining -= location.put(product, remaining)
+            if remaining == 0:
+                break
+        self._notify(product, count - remaining)
+        return count - remaining
+
+    def ship(self, product, count):
+        available = self.count(product)
+        if available < count:
+            raise OutOfStock(product, count, available)
+        remaining = count
+        for location in self.locations:
+            remaining -= location.take(product, remaining)
+            if not remaining:
+                break
+        self._notify(product, -count)
+
+    def low_stock(self, threshold=5):
+        return [p for p in self.products.values() if self.count(p) < threshold]
+
+    def by_tag(self):
+        tagged = {}
+        for product in self.products.values():
+            for tag in product.tags:
+                tagged.setdefault(tag, []).append(product)
+        return tagged
+
+    def heaviest(self):
+        return first(sorted(self.products.values(), key=lambda p: p.weight, reverse=True))
+
+    def weight_by_location(self):
+        result = {}
+        for location in self.locations:
+            result[location.name] = sum(p.weight * n for p, n in location.stock.items())
+        return result
+
+    def summary(self):
+        groups = group_by(self.products.values(), lambda p: self.count(p) > 0)
+        return {
+            'in_stock': len(groups.get(True, [])),
+            'sold_out': len(groups.get(False, [])),
+            'locations': len(self.locations),
+        }
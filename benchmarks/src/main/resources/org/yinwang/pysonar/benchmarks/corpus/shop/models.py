@@ -0,0 +1,102 @@
+from .util import slugify, Money
+
+
+class Entity(object):
+    _next_id = 1
+
+    def __init__(self):
+        self.id = Entity._next_id
+        Entity._next_id += 1
+
+    def key(self):
+        return '%s:%d' % (type(self).__name__.lower(), self.id)
+
+    def __eq__(self, other):
+        return type(self) is type(other) and self.id == other.id
+
+    def __hash__(self):
+        return hash((type(self).__name__, self.id))
+
+
+class Product(Entity):
+
+    def __init__(self, name, price, weight=0.0, tags=None):
+        super(Product, self).__init__()
+        self.name = name
+        self.slug = slugify(name)
+        self.price = price if isinstance(price, Money) else Money.parse(str(price))
+        self.weight = weight
+        self.tags = set(tags or ())
+
+    def has_tag(self, tag):
+        return tag in self.tags
+
+    def with_price(self, price):
+        return Product(self.name, price, self.weight, self.tags)
+
+    def __repr__(self):
+        return 'Product(%r, %s)' % (self.name, self.price)
+
+
+class DigitalProduct(Product):
+
+    def __init__(self, name, price, url):
+        super(DigitalProduct, self).__init__(name, price, 0.0, ['digital'])
+        self.url = url
+
+    def download_link(self, customer):
+        return '%s?customer=%d' % (self.url, customer.id)
+
+
+class Address(object):
+
+    def __init__(self, street, city, country, postcode=''):
+        self.street = street
+        self.city = city
+        self.country = country
+        self.postcode = postcode
+
+    def lines(self):
+        lines = [self.street, ('%s %s' % (self.postcode, self.city)).strip(), self.country]
+        return [line for line in lines if line]
+
+    def is_domestic(self, country='NL'):
+        return self.country == country
+
+
+class Customer(Entity):
+
+    def __init__(self, name, email, address=None):
+        super(Customer, self).__init__()
+        self.name = name
+        self.email = email
+        self.address = address
+        self.orders = []
+
+    @property
+    def domain(self):
+        return self.email.rpartition('@')[2]
+
+    def add_order(self, order):
+        self.orders.append(order)
+        return order
+
+    def lifetime_value(self):
+        value = Money(0)
+        for order in self.orders:
+            value = value + order.total()
+        return value
+
+    def __repr__(self):
+        return 'Customer(%r)' % self.name
+
+
+class BusinessCustomer(Customer):
+
+    def __init__(self, name, email, address, vat_number):
+        super(BusinessCustomer, self).__init__(name, email, address)
+        self.vat_number = vat_number
+
+    def lifetime_value(self):
+        value = super(BusinessCustomer, self).lifetime_value()
+        return value * 0.79
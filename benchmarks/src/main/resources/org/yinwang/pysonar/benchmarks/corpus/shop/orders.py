@@ -0,0 +1,155 @@
+import datetime
+
+from .models import Customer, Product, DigitalProduct
+from .inventory import Inventory, OutOfStock
+from .pricing import PriceList, shipping_cost
+from .util import Money, total, chunks
+
+
+class OrderError(Exception):
+    pass
+
+
+class OrderLine(object):
+
+    def __init__(self, product, quantity, unit_price):
+        self.product = product
+        self.quantity = quantity
+        self.unit_price = unit_price
+
+    def subtotal(self):
+        return self.unit_price * self.quantity
+
+    def weight(self):
+        return self.product.weight * self.quantity
+
+    def __repr__(self):
+        return 'OrderLine(%r, %d)' % (self.product.name, self.quantity)
+
+
+class Order(object):
+    NEW, PAID, SHIPPED, CANCELLED = range(4)
+
+    def __init__(self, customer, prices, created=None):
+        self.customer = customer
+        self.prices = prices
+        self.created = created or datetime.datetime(2014, 1, 1)
+        self.lines = []
+        self.state = Order.NEW
+        self.history = [(self.created, Order.NEW)]
+
+    def add(self, product, quantity=1):
+        if self.state != Order.NEW:
+            raise OrderError('order is closed')
+        for line in self.lines:
+            if line.product == product:
+                line.quantity += quantity
+                line.unit_price = self.prices.price(product, line.quantity)
+                return line
+        line = OrderLine(product, quantity, self.prices.price(product, quantity))
+        self.lines.append(line)
+        return line
+
+    def remove(self, product):
+        self.lines = [line for line in self.lines if line.product != product]
+
+    def is_digital(self):
+        return all(isinstance(line.product, DigitalProduct) for line in self.lines)
+
+    def weight(self):
+        return sum(line.weight() for line in self.lines)
+
+    def shipping(self):
+        if self.is_digital():
+            return Money(0)
+        address = self.customer.address
+        domestic = address is not None and address.is_domestic()
+        return shipping_cost(self.weight(), domestic)
+
+    def subtotal(self):
+        return total(line.subtotal() for line in self.lines)
+
+    def total(self):
+        return self.prices.with_vat(self.subtotal()) + self.shipping()
+
+    def _move(self, state, when):
+        self.state = state
+        self.history.append((when, state))
+
+    def pay(self, when):
+        if not self.lines:
+            raise OrderError('empty order')
+        self._move(Order.PAID, when)
+
+    def ship(self, inventory, when):
+        if self.state != Order.PAID:
+            raise OrderError('not paid')
+        shipped = []
+        try:
+            for line in self.lines:
+                inventory.ship(line.product, line.quantity)
+                shipped.append(line)
+        except OutOfStock as e:
+            for line in shipped:
+                inventory.receive(line.product, line.quantity)
+            raise OrderError(str(e))
+        self._move(Order.SHIPPED, when)
+
+    def cancel(self, when):
+        if self.state == Order.SHIPPED:
+            raise OrderError('already shipped')
+        self._move(Order.CANCELLED, when)
+
+
+class OrderBook(object):
+
+    def __init__(self, inventory, prices):
+        self.inventory = inventory
+        self.prices = prices
+        self.orders = []
+
+    def open(self, customer, when=None):
+        order = Order(customer, self.prices, when)
+        self.orders.append(order)
+        customer.add_order(order)
+        return order
+
+    def in_state(self, state):
+        return [o for o in self.orders if o.state == state]
+
+    def process(self, when, batch=10):
+        failed = []
+        for batch_orders in chunks(self.in_state(Order.PAID), batch):
+            for order in batch_orders:
+                try:
+                    order.ship(self.inventory, when)
+                except OrderError:
+                    failed.append(order)
+        return failed
+
+    def revenue(self):
+        return total(o.total() for o in self.orders if o.state in (Order.PAID, Order.SHIPPED))
+
+    def by_day(self):
+        days = {}
+        for order in self.orders:
+            day = order.created.date()
+            days[day] = days.get(day, 0) + 1
+        return days
+
+
+def demo():
+    inventory = Inventory()
+    prices = PriceList()
+    book = OrderBook(inventory, prices)
+    chair = inventory.register(Product('Chair', '49.95', 7.5, ['furniture']))
+    lamp = inventory.register(Product('Lamp', '19.99', 1.2, ['light']))
+    inventory.receive(chair, 20)
+    inventory.receive(lamp, 50)
+    customer = Customer('Ada', 'ada@example.com')
+    order = book.open(customer)
+    order.add(chair, 2)
+    order.add(lamp)
+    order.pay(datetime.datetime(2014, 1, 2))
+    book.process(datetime.datetime(2014, 1, 3))
+    return book.revenue()
@@ -0,0 +1,113 @@
+from .util import Money, memoize, clamp
+
+
+class Discount(object):
+    """Something that lowers a price. Subclasses implement apply()."""
+
+    name = 'discount'
+
+    def apply(self, price, quantity):
+        raise NotImplementedError
+
+    def __call__(self, price, quantity=1):
+        reduced = self.apply(price, quantity)
+        if reduced.cents < 0:
+            return Money(0, price.currency)
+        return reduced
+
+
+class PercentOff(Discount):
+    name = 'percent'
+
+    def __init__(self, percent):
+        self.percent = clamp(percent, 0, 100)
+
+    def apply(self, price, quantity):
+        return price * ((100 - self.percent) / 100.0)
+
+
+class FixedOff(Discount):
+    name = 'fixed'
+
+    def __init__(self, amount):
+        self.amount = amount
+
+    def apply(self, price, quantity):
+        return price - self.amount
+
+
+class BulkDiscount(Discount):
+    name = 'bulk'
+
+    def __init__(self, tiers):
+        self.tiers = sorted(tiers)
+
+    def apply(self, price, quantity):
+        percent = 0
+        for minimum, off in self.tiers:
+            if quantity >= minimum:
+                percent = off
+        return price * ((100 - percent) / 100.0)
+
+
+class Chain(Discount):
+    name = 'chain'
+
+    def __init__(self, *discounts):
+        self.discounts = discounts
+
+    def apply(self, price, quantity):
+        for discount in self.discounts:
+            price = discount(price, quantity)
+        return price
+
+
+def percent_off(percent):
+    return PercentOff(percent)
+
+
+def fixed_off(cents):
+    return FixedOff(Money(cents))
+
+
+class PriceList(object):
+
+    def __init__(self, vat=21):
+        self.vat = vat
+        self.discounts = {}
+        self.overrides = {}
+
+    def discount(self, product, discount):
+        self.discounts.setdefault(product.slug, []).append(discount)
+
+    def override(self, product, price):
+        self.overrides[product.slug] = price
+
+    def base_price(self, product):
+        return self.overrides.get(product.slug, product.price)
+
+    def price(self, product, quantity=1):
+        price = self.base_price(product)
+        discounts = self.discounts.get(product.slug)
+        if discounts:
+            price = Chain(*discounts)(price, quantity)
+        return price
+
+    def with_vat(self, price):
+        return price * (1 + self.vat / 100.0)
+
+    def quote(self, lines):
+        quote = []
+        for product, quantity in lines:
+            unit = self.price(product, quantity)
+            quote.append((product, quantity, unit, unit * quantity))
+        return quote
+
+
+@memoize
+def shipping_cost(weight, domestic):
+    if weight <= 0:
+        return Money(0)
+    base = 495 if domestic else 1495
+    extra = int(weight // 2) * (150 if domestic else 400)
+    return Money(base + extra)
@@ -0,0 +1,79 @@
+from .orders import Order, OrderBook
+from .util import Money, total, group_by
+
+
+class Column(object):
+
+    def __init__(self, title, width, align='left'):
+        self.title = title
+        self.width = width
+        self.align = align
+
+    def format(self, value):
+        text = str(value)
+        if len(text) > self.width:
+            text = text[:self.width - 1] + '~'
+        if self.align == 'right':
+            return text.rjust(self.width)
+        return text.ljust(self.width)
+
+
+class Report(object):
+
+    def __init__(self, title, columns):
+        self.title = title
+        self.columns = columns
+        self.rows = []
+
+    def add(self, *values):
+        if len(values) != len(self.columns):
+            raise ValueError('expected %d values' % len(self.columns))
+        self.rows.append(values)
+
+    def sort(self, column, reverse=False):
+        index = [c.title for c in self.columns].index(column)
+        self.rows.sort(key=lambda row: row[index], reverse=reverse)
+
+    def render(self):
+        header = ' '.join(c.format(c.title) for c in self.columns)
+        lines = [self.title, '=' * len(header), header, '-' * len(header)]
+        for row in self.rows:
+            lines.append(' '.join(c.format(v) for c, v in zip(self.columns, row)))
+        return '\n'.join(lines)
+
+
+def _shipped(book):
+    return [o for o in book.orders if o.state == Order.SHIPPED]
+
+
+def sales_by_product(book):
+    quantities = {}
+    revenue = {}
+    for order in _shipped(book):
+        for line in order.lines:
+            name = line.product.name
+            quantities[name] = quantities.get(name, 0) + line.quantity
+            revenue[name] = revenue.get(name, Money(0)) + line.subtotal()
+    report = Report('Sales by product', [
+        Column('product', 24), Column('quantity', 8, 'right'), Column('revenue', 14, 'right')])
+    for name in quantities:
+        report.add(name, quantities[name], revenue[name])
+    report.sort('quantity', reverse=True)
+    return report
+
+
+def top_customers(book, n=10):
+    by_customer = group_by(_shipped(book), lambda o: o.customer)
+    ranked = sorted(by_customer.items(), key=lambda item: total(o.total() for o in item[1]), reverse=True)
+    report = Report('Top customers', [Column('customer', 24), Column('orders', 6, 'right')])
+    for customer, orders in ranked[:n]:
+        report.add(customer.name, len(orders))
+    return report
+
+
+def daily_summary(book):
+    days = book.by_day()
+    lines = []
+    for day in sorted(days):
+        lines.append('%s %4d' % (day.isoformat(), days[day]))
+    return lines
@@ -0,0 +1,107 @@
+import functools
+import re
+
+
+_slug_re = re.compile(r'[^a-z0-9]+')
+
+
+def slugify(text):
+    return _slug_re.sub('-', text.lower()).strip('-')
+
+
+def memoize(func):
+    cache = {}
+
+    @functools.wraps(func)
+    def wrapper(*args):
+        if args not in cache:
+            cache[args] = func(*args)
+        return cache[args]
+
+    wrapper.cache = cache
+    return wrapper
+
+
+def chunks(items, size):
+    for i in range(0, len(items), size):
+        yield items[i:i + size]
+
+
+def group_by(items, key):
+    groups = {}
+    for item in items:
+        groups.setdefault(key(item), []).append(item)
+    return groups
+
+
+def first(items, default=None):
+    for item in items:
+        return item
+    return default
+
+
+def clamp(value, low, high):
+    if value < low:
+        return low
+    elif value > high:
+        return high
+    return value
+
+
+class Money(object):
+    """An amount in cents, to keep prices exact."""
+
+    def __init__(self, cents, currency='EUR'):
+        self.cents = int(cents)
+        self.currency = currency
+
+    @classmethod
+    def parse(cls, text, currency='EUR'):
+        whole, _, fraction = text.partition('.')
+        fraction = (fraction + '00')[:2]
+        return cls(int(whole) * 100 + int(fraction), currency)
+
+    def _check(self, other):
+        if not isinstance(other, Money):
+            raise TypeError('not money: %r' % (other,))
+        if other.currency != self.currency:
+            raise ValueError('currency mismatch: %s, %s' % (self.currency, other.currency))
+
+    def __add__(self, other):
+        self._check(other)
+        return Money(self.cents + other.cents, self.currency)
+
+    def __sub__(self, other):
+        self._check(other)
+        return Money(self.cents - other.cents, self.currency)
+
+    def __mul__(self, factor):
+        return Money(round(self.cents * factor), self.currency)
+
+    def __lt__(self, other):
+        self._check(other)
+        return self.cents < other.cents
+
+    def __eq__(self, other):
+        return isinstance(other, Money) and (self.cents, self.currency) == (other.cents, other.currency)
+
+    def __hash__(self):
+        return hash((self.cents, self.currency))
+
+    def __repr__(self):
+        return 'Money(%d, %r)' % (self.cents, self.currency)
+
+    def __str__(self):
+        sign = '-' if self.cents < 0 else ''
+        cents = abs(self.cents)
+        return '%s%d.%02d %s' % (sign, cents // 100, cents % 100, self.currency)
+
+
+ZERO = Money(0)
+
+
+def total(amounts, start=ZERO):
+    result = start
+    for amount in amounts:
+        result = result + amount
+    return result
@@ -2,7 +2,10 @@ package org.yinwang.pysonar;
 
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import org.yinwang.pysonar.ast.Block;
 import org.yinwang.pysonar.ast.Call;
+import org.yinwang.pysonar.ast.FunctionDef;
+import org.yinwang.pysonar.ast.Module;
 import org.yinwang.pysonar.ast.Name;
 import org.yinwang.pysonar.ast.Node;
 import org.yinwang.pysonar.ast.Url;
@@ -20,11 +23,14 @@ public class Analyzer {
     // global static instance of the analyzer itself
     public static Analyzer self;
     public String sid = _.newSessionId();
+    // the qualified names of this analysis
+    public final Qname qnames = Qname.newRoot();
     public State moduleTable = new State(null, State.StateType.GLOBAL);
     public List<String> loadedFiles = new ArrayList<>();
     public State globaltable = new State(null, State.StateType.GLOBAL);
     public List<Binding> allBindings = new ArrayList<>();
     private Map<Node, List<Binding>> references = new LinkedHashMap<>();
+    private OffsetIndex offsetIndex;
     public Set<Name> resolved = new HashSet<>();
     public Set<Name> unresolved = new HashSet<>();
     public Map<String, List<Diagnostic>> semanticErrors = new HashMap<>();
@@ -38,9 +44,19 @@ public class Analyzer {
     private Set<Object> importStack = new HashSet<>();
 
     private AstCache astCache;
+    private ModuleResolver resolver = new ModuleResolver();
+    private LibrarySummary summaries;
+    private boolean lazy;
+    private int nDeferred = 0;
+    private boolean finished = false;
+    // function definitions seen, for releasing their bodies in lean mode
+    private Set<FunctionDef> functionDefs = new HashSet<>();
     public String cacheDir;
     public Set<String> failedToParse = new HashSet<>();
     public Stats stats = new Stats();
+    public Budget budget;
+    @Nullable
+    public Profiler profiler;
     public Builtins builtins;
     private Progress loadingProgress = null;
 
@@ -58,15 +74,26 @@ public class Analyzer {
 
     public Analyzer(Map<String, Object> options) {
         self = this;
+        // made before this was the current analyzer
+        moduleTable.setPath(qnames);
+        globaltable.setPath(qnames);
         if (options != null) {
             this.options = options;
         } else {
             this.options = new HashMap<>();
         }
-        this.stats.putInt("startTime", System.currentTimeMillis());
+        this.budget = new Budget(this.options);
+        this.profiler = Profiler.create(this.options);
         this.suffix = ".py";
+        this.stats.register();
+        Stats.Phase phase = stats.start("builtins");
         this.builtins = new Builtins();
         this.builtins.init();
+        phase.end();
+        if (this.options.get("summaries") instanceof String) {
+            this.summaries = new LibrarySummary((String) this.options.get("summaries"));
+        }
+        this.lazy = hasOption("lazy");
         addPythonPath();
         copyModels();
         createCacheDir();
@@ -94,7 +121,13 @@ public class Analyzer {
         String upath = _.unifyPath(path);
         File f = new File(upath);
         projectDir = f.isDirectory() ? f.getPath() : f.getParent();
-        loadFileRecursive(upath);
+        resolver.clear();
+        Stats.Phase phase = stats.start("load");
+        try {
+            loadFileRecursive(upath);
+        } finally {
+            phase.end();
+        }
     }
 
 
@@ -114,11 +147,13 @@ public class Analyzer {
 
     public void addPath(String p) {
         path.add(_.unifyPath(p));
+        resolver.clear();
     }
 
 
     public void setPath(@NotNull List<String> path) {
         this.path = new ArrayList<>(path.size());
+        resolver.clear();
         addPaths(path);
     }
 
@@ -134,17 +169,31 @@ public class Analyzer {
     }
 
 
+    // models are copied to a directory named by their hash, once per version
     private void copyModels() {
         URL resource = Thread.currentThread().getContextClassLoader().getResource(MODEL_LOCATION);
-        String dest = _.locateTmp("models");
-        this.modelDir = dest;
+        String dest = null;
 
         try {
-            _.copyResourcesRecursively(resource, new File(dest));
-            _.msg("copied models to: " + modelDir);
+            dest = _.makePathString(_.getSystemTempDir(), "pysonar2", "models." + _.getResourcesHash(resource));
+            File destDir = new File(dest);
+            if (!destDir.isDirectory()) {
+                // copy aside and rename, so that concurrent runs never see a partial copy
+                File tmp = new File(_.locateTmp("models"));
+                _.copyResourcesRecursively(resource, tmp);
+                if (!tmp.renameTo(destDir)) {
+                    _.deleteDirectory(tmp);
+                }
+                _.msg("copied models to: " + dest);
+            }
         } catch (Exception e) {
             _.die("Failed to copy models. Please check permissions of writing to: " + dest);
         }
+
+        if (!new File(dest).isDirectory()) {
+            _.die("Failed to copy models. Please check permissions of writing to: " + dest);
+        }
+        this.modelDir = dest;
         addPath(dest);
     }
 
@@ -258,6 +307,19 @@ public class Analyzer {
     }
 
 
+    /**
+     * Index of references and definitions by file offset. Built on first
+     * use, so only call this after {@link #finish()}.
+     */
+    @NotNull
+    public OffsetIndex getOffsetIndex() {
+        if (offsetIndex == null) {
+            offsetIndex = new OffsetIndex(this);
+        }
+        return offsetIndex;
+    }
+
+
     public void putProblem(@NotNull Node loc, String msg) {
         String file = loc.file;
         if (file != null) {
@@ -292,7 +354,7 @@ public class Analyzer {
 
     @Nullable
     public Type loadFile(String path) {
-        path = _.unifyPath(path);
+        path = resolver.canonicalize(path);
         File f = new File(path);
 
         if (!f.canRead()) {
@@ -314,15 +376,112 @@ public class Analyzer {
         setCWD(f.getParent());
 
         Analyzer.self.pushImportStack(path);
-        Type type = parseAndResolve(path);
-        Analyzer.self.popImportStack(path);
+        Type type = null;
+        try {
+            if (summaries != null && !isProjectFile(path)) {
+                type = summaries.load(path);
+            }
+            if (type == null && lazy && !isProjectFile(path)) {
+                type = deferModule(path);
+            }
+            if (type == null) {
+                type = parseAndResolve(path);
+            }
+        } finally {
+            Analyzer.self.popImportStack(path);
 
-        // restore old CWD
-        setCWD(oldcwd);
+            // restore old CWD
+            setCWD(oldcwd);
+        }
         return type;
     }
 
 
+    // library code is everything outside the project directory
+    private boolean isProjectFile(@NotNull String file) {
+        return projectDir != null &&
+                (file.equals(projectDir) || file.startsWith(projectDir + File.separator));
+    }
+
+
+    /**
+     * Binds a library module without analyzing it. Its body is analyzed
+     * when one of its names is first looked up, so modules that are
+     * imported but never used (and everything they import) are not
+     * analyzed at all.
+     */
+    @NotNull
+    private ModuleType deferModule(@NotNull final String file) {
+        Module node = new Module(null, file, 0, (int) new File(file).length());
+        final ModuleType mt = new ModuleType(node.name, file, globaltable);
+        moduleTable.insert(_.moduleQname(file), node, mt, Binding.Kind.MODULE);
+        nDeferred++;
+        mt.table.defer(new State.Deferred() {
+            @Override
+            public void force() {
+                analyzeDeferred(file, mt);
+            }
+        });
+        return mt;
+    }
+
+
+    private void analyzeDeferred(@NotNull String file, @NotNull ModuleType mt) {
+        if (finished) {
+            return;
+        }
+        nDeferred--;
+        String oldcwd = cwd;
+        setCWD(new File(file).getParent());
+        pushImportStack(file);
+        loadingProgress.tick();
+
+        try {
+            Node ast = getAstForFile(file);
+            if (ast == null) {
+                failedToParse.add(file);
+            } else {
+                Block body = ((Module) ast).body;
+                if (body != null) {
+                    transformModule(ast, body, mt.table);
+                }
+                loadedFiles.add(file);
+            }
+        } finally {
+            popImportStack(file);
+            setCWD(oldcwd);
+        }
+    }
+
+
+    /**
+     * Transforms a module (or the body of a deferred one) within the module
+     * budget. When it runs out, what has been bound so far is kept and the
+     * rest of the module is not analyzed.
+     */
+    @Nullable
+    private Type transformModule(@NotNull Node module, @NotNull Node node, @NotNull State s) {
+        Budget.Frame frame = budget.enterModule();
+        if (profiler != null) {
+            profiler.enter(module, _.moduleQname(module.file), "module");
+        }
+        try {
+            return Node.transformExpr(node, s);
+        } catch (Budget.Exceeded e) {
+            if (!budget.owns(frame, e)) {
+                throw e;
+            }
+            putProblem(module, budget.describe(frame) + ", rest of the module is not analyzed");
+            return getCachedModule(module.file);
+        } finally {
+            budget.exit(frame);
+            if (profiler != null) {
+                profiler.exit();
+            }
+        }
+    }
+
+
     @Nullable
     private Type parseAndResolve(String file) {
         loadingProgress.tick();
@@ -334,7 +493,7 @@ public class Analyzer {
                 failedToParse.add(file);
                 return null;
             } else {
-                Type type = Node.transformExpr(ast, moduleTable);
+                Type type = transformModule(ast, ast, moduleTable);
                 loadedFiles.add(file);
                 return type;
             }
@@ -348,8 +507,16 @@ public class Analyzer {
     }
 
 
+    /**
+     * The AST cache is under the "cache-dir" option, or in the system temp
+     * directory, where all processes on the host share it.
+     */
     private void createCacheDir() {
-        cacheDir = _.makePathString(_.getSystemTempDir(), "pysonar2", "ast_cache");
+        if (options.get("cache-dir") instanceof String) {
+            cacheDir = _.unifyPath((String) options.get("cache-dir"));
+        } else {
+            cacheDir = _.makePathString(_.getSystemTempDir(), "pysonar2", "ast_cache");
+        }
         File f = new File(cacheDir);
         _.msg("AST cache is at: " + cacheDir);
 
@@ -364,18 +531,35 @@ public class Analyzer {
 
     private AstCache getAstCache() {
         if (astCache == null) {
-            astCache = AstCache.get();
+            astCache = new AstCache(this);
         }
         return astCache;
     }
 
 
     /**
-     * Returns the syntax tree for {@code file}. <p>
+     * Drops the in-memory syntax trees, before analyzing the same files again.
+     */
+    public void clearAstCache() {
+        getAstCache().clear();
+    }
+
+
+    /**
+     * Returns the syntax tree for {@code file}. The profiler doesn't count
+     * the time parsing as inference.
      */
     @Nullable
     public Node getAstForFile(String file) {
-        return getAstCache().getAST(file);
+        if (profiler == null) {
+            return getAstCache().getAST(file);
+        }
+        profiler.pause();
+        try {
+            return getAstCache().getAST(file);
+        } finally {
+            profiler.resume();
+        }
     }
 
 
@@ -408,23 +592,7 @@ public class Analyzer {
      * @param headName first module name segment
      */
     public String locateModule(String headName) {
-        List<String> loadPath = getLoadPath();
-
-        for (String p : loadPath) {
-            File startDir = new File(p, headName);
-            File initFile = new File(_.joinPath(startDir, "__init__.py").getPath());
-
-            if (initFile.exists()) {
-                return p;
-            }
-
-            File startFile = new File(startDir + suffix);
-            if (startFile.exists()) {
-                return p;
-            }
-        }
-
-        return null;
+        return resolver.locate(headName, cwd, getLoadPath(), suffix);
     }
 
 
@@ -439,7 +607,7 @@ public class Analyzer {
         Type mt = getBuiltinModule(qname);
         if (mt != null) {
             state.insert(name.get(0).id,
-                    new Url(Builtins.LIBRARY_URL + mt.table.path + ".html"),
+                    new Url(Builtins.LIBRARY_URL + mt.table.getPath() + ".html"),
                     mt, Binding.Kind.SCOPE);
             return mt;
         }
@@ -459,7 +627,7 @@ public class Analyzer {
             path = new File(path, name.get(i).id);
             File initFile = new File(_.joinPath(path, "__init__.py").getPath());
 
-            if (initFile.exists()) {
+            if (resolver.exists(initFile)) {
                 Type mod = loadFile(initFile.getPath());
                 if (mod == null) {
                     return null;
@@ -475,7 +643,7 @@ public class Analyzer {
 
             } else if (i == name.size() - 1) {
                 File startFile = new File(path + suffix);
-                if (startFile.exists()) {
+                if (resolver.exists(startFile)) {
                     Type mod = loadFile(startFile.getPath());
                     if (mod == null) {
                         return null;
@@ -498,50 +666,40 @@ public class Analyzer {
     /**
      * Load all Python source files recursively if the given fullname is a
      * directory; otherwise just load a file.  Looks at file extension to
-     * determine whether to load a given file.
+     * determine whether to load a given file. Paths matching the globs of
+     * the "exclude" option (comma separated) are skipped.
      */
     public void loadFileRecursive(String fullname) {
-        int count = countFileRecursive(fullname);
+        SourceScanner scanner = new SourceScanner(suffix, SourceScanner.parseGlobs(options.get("exclude")));
+        Deque<String> queue = scanner.scan(fullname);
         if (loadingProgress == null) {
-            loadingProgress = new Progress(count, 50);
-        }
-
-        File file_or_dir = new File(fullname);
-
-        if (file_or_dir.isDirectory()) {
-            for (File file : file_or_dir.listFiles()) {
-                loadFileRecursive(file.getPath());
-            }
-        } else {
-            if (file_or_dir.getPath().endsWith(suffix)) {
-                loadFile(file_or_dir.getPath());
-            }
+            loadingProgress = new Progress(queue.size(), 50);
         }
-    }
-
 
-    // count number of .py files
-    public int countFileRecursive(String fullname) {
-        File file_or_dir = new File(fullname);
-        int sum = 0;
-
-        if (file_or_dir.isDirectory()) {
-            for (File file : file_or_dir.listFiles()) {
-                sum += countFileRecursive(file.getPath());
-            }
-        } else {
-            if (file_or_dir.getPath().endsWith(suffix)) {
-                sum += 1;
+        while (!queue.isEmpty()) {
+            try {
+                loadFile(queue.poll());
+            } catch (Budget.Exceeded e) {
+                if (!budget.isRunExhausted()) {
+                    throw e;
+                }
+                _.msg(budget.describe(e.frame) + ", " + queue.size() + " files are not analyzed");
+                break;
             }
         }
-        return sum;
     }
 
 
     public void finish() {
         _.msg("\nFinished loading files. " + nCalled + " functions were called.");
         _.msg("Analyzing uncalled functions");
+        Stats.Phase phase = stats.start("uncalled");
         applyUncalled();
+        phase.end();
+
+        // reading the results must not start analyzing modules nobody used
+        finished = true;
+        getAstCache().saveDialects();
 
         // mark unused variables
         for (Binding b : allBindings) {
@@ -554,16 +712,69 @@ public class Analyzer {
             }
         }
 
+        if (hasOption("lean")) {
+            releaseAsts();
+        }
+
+        if (profiler != null) {
+            profiler.write();
+        }
+        stats.putInt("parse.failures", failedToParse.size());
+        stats.sampleHeap();
         _.msg(getAnalysisSummary());
     }
 
 
+    /**
+     * Lets the ASTs be garbage collected once the analysis is finished.
+     * What the exporters read is kept: the locations of bindings and
+     * references, docstrings and function signatures. Function, class and
+     * module bodies become unreachable, so nothing can be analyzed with
+     * this analyzer afterwards.
+     */
+    private void releaseAsts() {
+        for (Binding b : allBindings) {
+            b.releaseAst();
+        }
+        for (FunctionDef func : functionDefs) {
+            func.body = null;
+            func.parent = null;
+        }
+        functionDefs.clear();
+
+        for (Node ref : references.keySet()) {
+            ref.parent = null;
+        }
+        for (Name name : resolved) {
+            name.parent = null;
+        }
+        for (Name name : unresolved) {
+            name.parent = null;
+        }
+        callStack.clear();
+        clearAstCache();
+    }
+
+
+    /**
+     * Releases the parser, the module resolver's threads and the table of
+     * qualified names. With the "metrics" option, the metrics of the run
+     * are then written to the file it names as JSON.
+     */
     public void close() {
         astCache.close();
+        resolver.close();
+        qnames.clear();
+        if (options.get("metrics") instanceof String) {
+            stats.writeJson((String) options.get("metrics"));
+        }
     }
 
 
     public void addUncalled(@NotNull FunType cl) {
+        if (hasOption("lean")) {
+            functionDefs.add(cl.func);
+        }
         if (!cl.func.called) {
             uncalled.add(cl);
         }
@@ -583,7 +794,15 @@ public class Analyzer {
 
             for (FunType cl : uncalledDup) {
                 progress.tick();
-                Call.apply(cl, null, null, null, null, null);
+                try {
+                    Call.apply(cl, null, null, null, null, null);
+                } catch (Budget.Exceeded e) {
+                    if (!budget.isRunExhausted()) {
+                        throw e;
+                    }
+                    _.msg(budget.describe(e.frame) + ", " + uncalled.size() + " uncalled functions are not analyzed");
+                    return;
+                }
             }
         }
     }
@@ -594,11 +813,22 @@ public class Analyzer {
         StringBuilder sb = new StringBuilder();
         sb.append("\n" + _.banner("analysis summary"));
 
-        String duration = _.formatTime(System.currentTimeMillis() - stats.getInt("startTime"));
+        String duration = _.formatTime(System.currentTimeMillis() - stats.getStartMillis());
         sb.append("\n- total time: " + duration);
+        sb.append("\n- time parsing: " + _.formatTime(stats.getPhaseMillis("parse")));
+        sb.append("\n- function calls: " + stats.getInt("inference.calls") +
+                ", answered from memo: " + stats.getInt("inference.memoHits"));
         sb.append("\n- modules loaded: " + loadedFiles.size());
+        if (lazy) {
+            sb.append("\n- modules imported but not analyzed: " + nDeferred);
+        }
         sb.append("\n- semantic problems: " + semanticErrors.size());
         sb.append("\n- failed to parse: " + failedToParse.size());
+        sb.append("\n- AST cache: " + getAstCache().getSummary());
+        if (budget.isEnabled()) {
+            sb.append("\n- inference steps: " + budget.getSteps());
+            sb.append("\n- budgets exhausted: " + budget.getExhausted());
+        }
 
         // calculate number of defs, refs, xrefs
         int nDef = 0, nXRef = 0;
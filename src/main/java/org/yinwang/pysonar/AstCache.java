@@ -6,8 +6,13 @@ import org.yinwang.pysonar.ast.Module;
 import org.yinwang.pysonar.ast.Node;
 
 import java.io.*;
-import java.util.HashMap;
-import java.util.Map;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -15,37 +20,69 @@ import java.util.logging.Logger;
 /**
  * Provides a factory for python source ASTs.  Maintains configurable on-disk and
  * in-memory caches to avoid re-parsing files during analysis.
+ *
+ * The disk cache may be shared by several processes: entries are written
+ * atomically, and when the cache grows past the "cache-size" option (in
+ * MB, 0 for no limit) the least recently used entries are removed.
  */
 public class AstCache {
 
     private static final Logger LOG = Logger.getLogger(AstCache.class.getCanonicalName());
 
-    private static AstCache INSTANCE;
+    // part of every entry's name; bump it when the AST classes or what the
+    // parser puts in them change, so that old entries are no longer found
+    // and get pruned, rather than failing to deserialize
+    static final int VERSION = 3;
+    private static final long DEFAULT_MAX_MB = 1024;
+    private static final String TMP_SUFFIX = ".tmp";
+    private static final String LOCK_FILE = "prune.lock";
+    private static final long STALE_TMP_MILLIS = 3600 * 1000L;
 
+    @NotNull
+    private final Analyzer analyzer;
     @NotNull
     private Map<String, Node> cache = new HashMap<>();
     @NotNull
-    private static Parser parser;
+    private final Parser parser;
+    @NotNull
+    private final DialectCache dialects;
+    private long maxBytes;
 
 
-    private AstCache() {
+    /**
+     * Each analyzer has its own cache, parser and dialect record, so that
+     * closing an analyzer never touches those of one created after it, as
+     * the daemon does when it replaces an analysis.
+     */
+    AstCache(@NotNull Analyzer analyzer) {
+        this.analyzer = analyzer;
+        this.parser = new Parser();
+        this.dialects = new DialectCache(analyzer.cacheDir, parser);
+        configure();
     }
 
 
-    public static AstCache get() {
-        if (INSTANCE == null) {
-            INSTANCE = new AstCache();
+    private void configure() {
+        long mb = DEFAULT_MAX_MB;
+        Object option = analyzer.options.get("cache-size");
+        if (option instanceof String) {
+            try {
+                mb = Long.parseLong(((String) option).trim());
+            } catch (NumberFormatException e) {
+                _.die("Bad cache size: " + option + ", expecting megabytes");
+            }
         }
-        parser = new Parser();
-        return INSTANCE;
+        maxBytes = mb << 20;
     }
 
 
     /**
-     * Clears the memory cache.
+     * Clears the memory cache, and the identifiers the parser shares
+     * among the trees in it.
      */
     public void clear() {
         cache.clear();
+        parser.clearIdentifiers();
     }
 
 
@@ -56,7 +93,7 @@ public class AstCache {
      */
     public boolean clearDiskCache() {
         try {
-            _.deleteDirectory(new File(Analyzer.self.cacheDir));
+            _.deleteDirectory(new File(analyzer.cacheDir));
             return true;
         } catch (Exception x) {
             LOG.log(Level.SEVERE, "Failed to clear disk cache: " + x);
@@ -65,8 +102,18 @@ public class AstCache {
     }
 
 
+    /**
+     * Saves the dialects of the files parsed so far to the disk cache.
+     */
+    public void saveDialects() {
+        dialects.save();
+    }
+
+
     public void close() {
+        dialects.save();
         parser.close();
+        prune();
 //        clearDiskCache();
     }
 
@@ -81,28 +128,60 @@ public class AstCache {
     @Nullable
     public Node getAST(@NotNull String path) {
         // Cache stores null value if the parse failed.
+        Stats stats = analyzer.stats;
         if (cache.containsKey(path)) {
+            stats.inc("cache.memoryHits");
             return cache.get(path);
         }
 
+        byte[] content = _.getBytesFromFile(path);
+        String hash = content == null ? null : _.getContentHash(content);
+
         // Might be cached on disk but not in memory.
-        Node node = getSerializedModule(path);
+        File cached = hash == null ? null : new File(getCachePath(path, hash));
+        long t = System.nanoTime();
+        Node node = cached == null ? null : deserialize(cached);
         if (node != null) {
             LOG.log(Level.FINE, "reusing " + path);
+            parser.shareIdentifiers(node);
+            stats.inc("cache.diskHits");
+            stats.histogram("cache.loadMicros").record((System.nanoTime() - t) / 1000);
             cache.put(path, node);
             return node;
         }
 
+        Parser.Dialect dialect = hash == null ? null : dialects.get(hash);
+        if (dialect == Parser.Dialect.NONE) {
+            _.msg("failed to parse (cached): " + path);
+            stats.inc("cache.knownFailures");
+            analyzer.failedToParse.add(path);
+            cache.put(path, null);
+            return null;
+        }
+
+        stats.inc("cache.misses");
         node = null;
+        Stats.Phase phase = stats.start("parse");
+        t = System.nanoTime();
         try {
             LOG.log(Level.FINE, "parsing " + path);
-            node = parser.parseFile(path);
+            node = parser.parseFile(path, dialect);
         } finally {
             cache.put(path, node);  // may be null
+            phase.end();
+            stats.histogram("parse.fileMicros").record((System.nanoTime() - t) / 1000);
+        }
+        if (hash != null && parser.getDialect() != null) {
+            dialects.put(hash, parser.getDialect());
         }
 
         if (node != null) {
-            serialize(node);
+            if (node instanceof Module) {
+                ScopeResolver.resolve((Module) node);
+            }
+            if (cached != null) {
+                serialize(node, cached);
+            }
         }
 
         return node;
@@ -110,76 +189,171 @@ public class AstCache {
 
 
     /**
-     * Each source file's AST is saved in an object file named for the MD5
-     * checksum of the source file.  All that is needed is the MD5, but the
-     * file's base name is included for ease of debugging.
+     * Each source file's AST is saved in an object file named for the SHA-1
+     * of its path and the SHA-1 of its content, so an edited file never
+     * finds the AST of its old content.
      */
     @NotNull
-    public String getCachePath(@NotNull String sourcePath) {
-        return _.makePathString(Analyzer.self.cacheDir, _.getFileHash(sourcePath));
+    private String getCachePath(@NotNull String sourcePath, @NotNull String contentHash) {
+        return _.makePathString(analyzer.cacheDir,
+                _.getContentHash(sourcePath.getBytes()) + "." + contentHash + ".v" + VERSION);
     }
 
 
-    // package-private for testing
-    void serialize(@NotNull Node ast) {
-        String path = getCachePath(ast.file);
-        ObjectOutputStream oos = null;
-        FileOutputStream fos = null;
+    /**
+     * Writes the AST to a temporary file and renames it into place, so
+     * that other processes sharing the cache directory never read a
+     * partly written file. Two processes writing the same entry both
+     * write the same AST, and the last rename wins.
+     */
+    private void serialize(@NotNull Node ast, @NotNull File target) {
+        File tmp = null;
         try {
-            fos = new FileOutputStream(path);
-            oos = new ObjectOutputStream(fos);
-            oos.writeObject(ast);
-        } catch (Exception e) {
-            _.msg("Failed to serialize: " + path);
-        } finally {
+            tmp = File.createTempFile(target.getName() + ".", TMP_SUFFIX, target.getParentFile());
+            try (ObjectOutputStream oos = new ObjectOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tmp))))
+            {
+                oos.writeObject(ast);
+            }
             try {
-                if (oos != null) {
-                    oos.close();
-                } else if (fos != null) {
-                    fos.close();
-                }
-            } catch (Exception e) {
+                Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            analyzer.stats.inc("cache.bytesWritten", target.length());
+        } catch (Exception e) {
+            _.msg("Failed to serialize: " + target);
+            if (tmp != null) {
+                tmp.delete();
             }
         }
     }
 
 
-    // package-private for testing
+    /**
+     * Reads a cached AST and marks it as recently used. An entry that
+     * can't be read, e.g. one written by an incompatible version, is
+     * removed. One removed by another process's pruning is just a miss.
+     */
     @Nullable
-    Module getSerializedModule(String sourcePath) {
-        if (!new File(sourcePath).canRead()) {
+    private Module deserialize(@NotNull File cached) {
+        if (!cached.canRead()) {
             return null;
         }
-        File cached = new File(getCachePath(sourcePath));
-        if (!cached.canRead()) {
+        try (ObjectInputStream ois = new ObjectInputStream(
+                new BufferedInputStream(new FileInputStream(cached))))
+        {
+            Module module = (Module) ois.readObject();
+            cached.setLastModified(System.currentTimeMillis());
+            return module;
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (Exception e) {
+            LOG.log(Level.FINE, "dropping unreadable cache entry " + cached + ": " + e);
+            cached.delete();
             return null;
         }
-        return deserialize(sourcePath);
     }
 
 
-    // package-private for testing
-    @Nullable
-    Module deserialize(@NotNull String sourcePath) {
-        String cachePath = getCachePath(sourcePath);
-        FileInputStream fis = null;
-        ObjectInputStream ois = null;
-        try {
-            fis = new FileInputStream(cachePath);
-            ois = new ObjectInputStream(fis);
-            return (Module) ois.readObject();
-        } catch (Exception e) {
-            return null;
-        } finally {
-            try {
-                if (ois != null) {
-                    ois.close();
-                } else if (fis != null) {
-                    fis.close();
+    /**
+     * Deletes the least recently used entries until the cache is below
+     * 90% of its size limit, so that it isn't pruned again on every run.
+     * Temporary files left by crashed writers are deleted too. Only one
+     * process prunes at a time; the others skip it. An entry deleted while
+     * another process reads it stays readable to that process on POSIX
+     * file systems; elsewhere the delete fails and the entry is kept.
+     */
+    private void prune() {
+        if (maxBytes <= 0) {
+            return;
+        }
+        File dir = new File(analyzer.cacheDir);
+        try (FileChannel channel = FileChannel.open(new File(dir, LOCK_FILE).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+             FileLock lock = channel.tryLock())
+        {
+            if (lock == null) {
+                return;
+            }
+            File[] files = dir.listFiles();
+            if (files == null) {
+                return;
+            }
+
+            long now = System.currentTimeMillis();
+            long total = 0;
+            List<File> entries = new ArrayList<>();
+            final Map<File, Long> used = new HashMap<>();
+            for (File f : files) {
+                String name = f.getName();
+                if (name.equals(LOCK_FILE) || !f.isFile()) {
+                    continue;
                 }
-            } catch (Exception e) {
+                long modified = f.lastModified();
+                if (name.endsWith(TMP_SUFFIX)) {
+                    if (now - modified > STALE_TMP_MILLIS) {
+                        f.delete();
+                    }
+                    continue;
+                }
+                entries.add(f);
+                used.put(f, modified);
+                total += f.length();
+            }
+            if (total <= maxBytes) {
+                return;
+            }
 
+            Collections.sort(entries, new Comparator<File>() {
+                @Override
+                public int compare(File a, File b) {
+                    return Long.compare(used.get(a), used.get(b));
+                }
+            });
+            long target = maxBytes / 10 * 9;
+            int removed = 0;
+            for (File f : entries) {
+                if (total <= target) {
+                    break;
+                }
+                long size = f.length();
+                if (f.delete()) {
+                    total -= size;
+                    removed++;
+                }
             }
+            _.msg("Pruned " + removed + " entries from the AST cache, " + (total >> 10) + " KB left");
+        } catch (IOException e) {
+            _.msg("Failed to prune the AST cache: " + e);
+        }
+    }
+
+
+    /**
+     * Where the trees came from in this run: memory, the disk cache, the
+     * parser, or the record of files known not to parse.
+     */
+    @NotNull
+    public String getSummary() {
+        Stats stats = analyzer.stats;
+        long diskHits = stats.getInt("cache.diskHits");
+        long misses = stats.getInt("cache.misses");
+        long knownFailures = stats.getInt("cache.knownFailures");
+        long memoryHits = stats.getInt("cache.memoryHits");
+        long bytesWritten = stats.getInt("cache.bytesWritten");
+        long lookups = diskHits + misses + knownFailures;
+        StringBuilder sb = new StringBuilder();
+        sb.append(diskHits).append(" disk hits, ");
+        sb.append(misses).append(" parsed, ");
+        sb.append(knownFailures).append(" known parse failures, ");
+        sb.append(memoryHits).append(" memory hits");
+        if (lookups > 0) {
+            sb.append(" (disk hit rate ").append(_.percent(diskHits + knownFailures, lookups).trim()).append(")");
+        }
+        if (bytesWritten > 0) {
+            sb.append(", ").append(bytesWritten >> 10).append(" KB written");
         }
+        return sb.toString();
     }
 }
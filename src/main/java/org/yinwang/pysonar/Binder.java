@@ -20,6 +20,10 @@ public class Binder {
             bind(s, ((Tuple) target).elts, rvalue, kind);
         } else if (target instanceof PyList) {
             bind(s, ((PyList) target).elts, rvalue, kind);
+        } else if (target instanceof Starred) {
+            // *x alone binds x to a list of the values
+            Type list = rvalue.isUnknownType() ? Type.UNKNOWN : new ListType(rvalue);
+            bind(s, ((Starred) target).value, list, kind);
         } else if (target instanceof Attribute) {
             ((Attribute) target).setAttr(s, rvalue);
         } else if (target instanceof Subscript) {
@@ -52,7 +56,10 @@ public class Binder {
 
 
     public static void bind(@NotNull State s, @NotNull List<Node> xs, @NotNull Type rvalue, Binding.Kind kind) {
-        if (rvalue instanceof TupleType) {
+        int star = starredIndex(xs);
+        if (rvalue instanceof TupleType && star >= 0) {
+            bindStarred(s, xs, star, ((TupleType) rvalue).eltTypes, kind);
+        } else if (rvalue instanceof TupleType) {
             List<Type> vs = ((TupleType) rvalue).eltTypes;
             if (xs.size() != vs.size()) {
                 reportUnpackMismatch(xs, vs.size());
@@ -61,6 +68,12 @@ public class Binder {
                     bind(s, xs.get(i), vs.get(i), kind);
                 }
             }
+        } else if (star >= 0 && rvalue instanceof ListType) {
+            // a, *b = [1, 2, 3]
+            Type elt = ((ListType) rvalue).eltType;
+            for (Node x : xs) {
+                bind(s, x, elt, kind);
+            }
         } else {
             if (rvalue instanceof ListType) {
                 bind(s, xs, ((ListType) rvalue).toTupleType(xs.size()), kind);
@@ -80,6 +93,39 @@ public class Binder {
     }
 
 
+    private static int starredIndex(@NotNull List<Node> xs) {
+        for (int i = 0; i < xs.size(); i++) {
+            if (xs.get(i) instanceof Starred) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+
+    // a, *b, c = (1, 2, 3, 4): b gets a list of the values in the middle
+    private static void bindStarred(@NotNull State s, @NotNull List<Node> xs, int star,
+                                    @NotNull List<Type> vs, Binding.Kind kind)
+    {
+        int after = xs.size() - star - 1;
+        if (vs.size() < xs.size() - 1) {
+            reportUnpackMismatch(xs, vs.size());
+            return;
+        }
+        for (int i = 0; i < star; i++) {
+            bind(s, xs.get(i), vs.get(i), kind);
+        }
+        Type rest = Type.UNKNOWN;
+        for (int i = star; i < vs.size() - after; i++) {
+            rest = UnionType.union(rest, vs.get(i));
+        }
+        bind(s, xs.get(star), rest, kind);
+        for (int i = 0; i < after; i++) {
+            bind(s, xs.get(star + 1 + i), vs.get(vs.size() - after + i), kind);
+        }
+    }
+
+
     public static void bind(@NotNull State s, @NotNull Name name, @NotNull Type rvalue, Binding.Kind kind) {
         if (s.isGlobalName(name.id)) {
             Set<Binding> bs = s.lookup(name.id);
@@ -35,7 +35,7 @@ public class Binding implements Comparable<Object> {
     @NotNull
     public Node node;
     @NotNull
-    public String qname;    // qualified name
+    private Qname qname;    // qualified name
     public Type type;       // inferred type
     public Kind kind;        // name usage context
 
@@ -50,10 +50,15 @@ public class Binding implements Comparable<Object> {
     @Nullable
     public String fileOrUrl;
 
+    // kept when the AST is released
+    @Nullable
+    private Str docstring;
+    private boolean astReleased = false;
+
 
     public Binding(@NotNull String id, @NotNull Node node, @NotNull Type type, @NotNull Kind kind) {
         this.name = id;
-        this.qname = type.table.path;
+        this.qname = type.table.getQname();
         this.type = type;
         this.kind = kind;
         this.node = node;
@@ -73,7 +78,13 @@ public class Binding implements Comparable<Object> {
         }
 
         initLocationInfo(node);
-        Analyzer.self.registerBinding(this);
+
+        // builtins are documented by URL; keep them out of the source bindings
+        if (isURL()) {
+            isBuiltin = true;
+        } else {
+            Analyzer.self.registerBinding(this);
+        }
     }
 
 
@@ -101,6 +112,10 @@ public class Binding implements Comparable<Object> {
 
 
     public Str getDocstring() {
+        if (astReleased) {
+            return docstring;
+        }
+
         Node parent = node.parent;
         if ((parent instanceof FunctionDef && ((FunctionDef) parent).name == node) ||
                 (parent instanceof ClassDef && ((ClassDef) parent).name == node))
@@ -112,11 +127,53 @@ public class Binding implements Comparable<Object> {
     }
 
 
+    /**
+     * Drops the links from this binding into its AST, keeping its location
+     * and docstring. See Analyzer.releaseAsts().
+     */
+    void releaseAst() {
+        if (astReleased) {
+            return;
+        }
+        Str doc = getDocstring();
+        if (doc != null) {
+            docstring = new Str(doc.value, doc.file, doc.start, doc.end);
+        }
+        astReleased = true;
+
+        node.parent = null;
+        if (node instanceof Module) {
+            ((Module) node).body = null;
+        }
+    }
+
+
     public void setQname(@NotNull String qname) {
+        this.qname = Qname.of(qname);
+    }
+
+
+    public void setQname(@NotNull Qname qname) {
         this.qname = qname;
     }
 
 
+    @NotNull
+    public String getQname() {
+        return qname.toString();
+    }
+
+
+    /**
+     * The qualified name with slashes, the path of this binding in the
+     * JSON output.
+     */
+    @NotNull
+    public String getQnamePath() {
+        return qname.toPath();
+    }
+
+
     public void addRef(Node node) {
         refs.add(node);
     }
@@ -164,6 +221,16 @@ public class Binding implements Comparable<Object> {
     }
 
 
+    // visible to users of the module: not a local or attribute, and not private by name
+    public boolean isExported() {
+        return !(kind == Kind.VARIABLE ||
+                kind == Kind.PARAMETER ||
+                kind == Kind.SCOPE ||
+                kind == Kind.ATTRIBUTE ||
+                name.length() == 0 || name.charAt(0) == '_' || name.startsWith("lambda%"));
+    }
+
+
     @NotNull
     public String getFirstFile() {
         Type bt = type;
@@ -0,0 +1,296 @@
+package org.yinwang.pysonar;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Limits on the inference work of a function body, of a module and of the
+ * whole run, so that pathological inputs can't make an analysis run for
+ * hours. They are set with the options "function-budget", "module-budget"
+ * and "run-budget". A limit is a number of inference steps (node
+ * transforms), or wall time with an "ms" or "s" suffix.
+ *
+ * The analyzer enters a frame for each function body and module it
+ * analyzes. Frames nest, and a function's work includes that of the
+ * functions it calls. A module imported in the middle of other work is
+ * charged only to itself and the run, not to the importer. When the
+ * outermost frame that has run out is found, an {@link Exceeded} unwinds
+ * to the code that entered it, which gives up on the rest of the work and
+ * widens its result.
+ */
+public class Budget {
+
+    public static final String FUNCTION = "function";
+    public static final String MODULE = "module";
+    public static final String RUN = "run";
+
+    private static final long NONE = Long.MAX_VALUE;
+    private static final int CLOCK_INTERVAL = 1024;   // steps between clock checks
+
+
+    /**
+     * Thrown when the budget of {@code frame} has run out. It has no stack
+     * trace, since it is used to unwind.
+     */
+    public static class Exceeded extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        @NotNull
+        public final Frame frame;
+
+
+        Exceeded(@NotNull Frame frame) {
+            super(null, null, false, false);
+            this.frame = frame;
+        }
+    }
+
+
+    private static class Limit {
+        String kind;
+        String spec;
+        long steps = NONE;
+        long nanos = NONE;
+    }
+
+
+    public static class Frame {
+        @NotNull
+        final Limit limit;
+        @Nullable
+        final Frame parent;
+        // the frame whose limits also apply within this one
+        @Nullable
+        final Frame outer;
+        final long startSteps;
+        final long startTime;
+        long ownStepLimit;
+        long ownDeadline;
+        long stepLimit;     // including the outer frames' limits
+        long deadline;
+
+
+        Frame(@NotNull Limit limit, @Nullable Frame parent, long steps) {
+            this.limit = limit;
+            this.parent = parent;
+            this.outer = limit.kind.equals(MODULE) ? runFrame(parent) : parent;
+            this.startSteps = steps;
+            this.startTime = System.nanoTime();
+            this.ownStepLimit = limit.steps == NONE ? NONE : steps + limit.steps;
+            this.ownDeadline = limit.nanos == NONE ? NONE : startTime + limit.nanos;
+            combine();
+        }
+
+
+        void combine() {
+            stepLimit = outer == null ? ownStepLimit : Math.min(ownStepLimit, outer.stepLimit);
+            deadline = outer == null ? ownDeadline : Math.min(ownDeadline, outer.deadline);
+        }
+
+
+        boolean ranOut(long steps, long now) {
+            return (ownStepLimit != NONE && steps >= ownStepLimit) ||
+                    (ownDeadline != NONE && now >= ownDeadline);
+        }
+
+
+        // move the limits past work that isn't charged to this frame
+        void exclude(long steps, long nanos) {
+            if (ownStepLimit != NONE) {
+                ownStepLimit += steps;
+            }
+            if (ownDeadline != NONE) {
+                ownDeadline += nanos;
+            }
+        }
+    }
+
+
+    @Nullable
+    private static Frame runFrame(@Nullable Frame f) {
+        while (f != null && !f.limit.kind.equals(RUN)) {
+            f = f.parent;
+        }
+        return f;
+    }
+
+
+    @Nullable
+    private Limit function;
+    @Nullable
+    private Limit module;
+    @Nullable
+    private Frame top;
+    private long steps = 0;
+    private long nextStepLimit = NONE;
+    private long nextDeadline = NONE;
+    private int nExhausted = 0;
+    private boolean runExhausted = false;
+
+
+    public Budget(@NotNull Map<String, Object> options) {
+        function = parse(FUNCTION, options.get("function-budget"));
+        module = parse(MODULE, options.get("module-budget"));
+        Limit run = parse(RUN, options.get("run-budget"));
+        if (run != null) {
+            enter(run);
+        }
+    }
+
+
+    @Nullable
+    private static Limit parse(@NotNull String kind, @Nullable Object option) {
+        if (!(option instanceof String)) {
+            return null;
+        }
+
+        String spec = ((String) option).trim();
+        Limit limit = new Limit();
+        limit.kind = kind;
+        limit.spec = spec;
+        try {
+            if (spec.endsWith("ms")) {
+                limit.nanos = Long.parseLong(spec.substring(0, spec.length() - 2)) * 1000000L;
+            } else if (spec.endsWith("s")) {
+                limit.nanos = Long.parseLong(spec.substring(0, spec.length() - 1)) * 1000000000L;
+            } else {
+                limit.steps = Long.parseLong(spec);
+            }
+        } catch (NumberFormatException e) {
+            _.die("Bad " + kind + " budget: " + spec + ", expecting steps or time like 500ms or 30s");
+        }
+        return limit;
+    }
+
+
+    public boolean isEnabled() {
+        return function != null || module != null || top != null;
+    }
+
+
+    @Nullable
+    public Frame enterFunction() {
+        return function == null ? null : enter(function);
+    }
+
+
+    @Nullable
+    public Frame enterModule() {
+        return module == null ? null : enter(module);
+    }
+
+
+    @NotNull
+    private Frame enter(@NotNull Limit limit) {
+        top = new Frame(limit, top, steps);
+        reset();
+        return top;
+    }
+
+
+    /**
+     * Leaves {@code frame}, which must be the innermost one. Call it in a
+     * finally block.
+     */
+    public void exit(@Nullable Frame frame) {
+        if (frame != null) {
+            top = frame.parent;
+            if (frame.limit.kind.equals(MODULE)) {
+                excludeModule(frame);
+            }
+            reset();
+        }
+    }
+
+
+    // the frames that a module's work wasn't charged to are moved past it
+    private void excludeModule(@NotNull Frame module) {
+        long nSteps = steps - module.startSteps;
+        long nanos = System.nanoTime() - module.startTime;
+        List<Frame> chain = new ArrayList<>();
+        for (Frame f = top; f != null; f = f.parent) {
+            chain.add(f);
+        }
+        for (int i = chain.size() - 1; i >= 0; i--) {
+            Frame f = chain.get(i);
+            if (f != module.outer) {
+                f.exclude(nSteps, nanos);
+            }
+            f.combine();
+        }
+    }
+
+
+    private void reset() {
+        nextStepLimit = top == null ? NONE : top.stepLimit;
+        nextDeadline = top == null ? NONE : top.deadline;
+    }
+
+
+    /**
+     * Counts one inference step.
+     */
+    public void step() {
+        steps++;
+        if (steps >= nextStepLimit ||
+                (nextDeadline != NONE && steps % CLOCK_INTERVAL == 0 && System.nanoTime() >= nextDeadline))
+        {
+            overrun();
+        }
+    }
+
+
+    private void overrun() {
+        long now = System.nanoTime();
+        Frame out = null;
+        for (Frame f = top; f != null; f = f.outer) {
+            if (f.ranOut(steps, now)) {
+                out = f;
+            }
+        }
+
+        if (out != null) {
+            if (out.parent == null && out.limit.kind.equals(RUN)) {
+                runExhausted = true;
+            }
+            nExhausted++;
+            throw new Exceeded(out);
+        }
+    }
+
+
+    /**
+     * Whether {@code e} is for {@code frame}, so that the caller should
+     * handle it rather than pass it on.
+     */
+    public boolean owns(@Nullable Frame frame, @NotNull Exceeded e) {
+        return frame != null && e.frame == frame;
+    }
+
+
+    public boolean isRunExhausted() {
+        return runExhausted;
+    }
+
+
+    @NotNull
+    public String describe(@NotNull Frame frame) {
+        String unit = frame.limit.steps != NONE ? " steps" : "";
+        return "Analysis budget exhausted (" + frame.limit.kind + ": " + frame.limit.spec + unit + ")";
+    }
+
+
+    public long getSteps() {
+        return steps;
+    }
+
+
+    public int getExhausted() {
+        return nExhausted;
+    }
+}
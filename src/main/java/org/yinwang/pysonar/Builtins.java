@@ -357,7 +357,7 @@ public class Builtins {
     }
 
 
-    void init() {
+    public void init() {
         buildObjectType();
         buildTupleType();
         buildArrayType();
@@ -0,0 +1,181 @@
+package org.yinwang.pysonar;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+
+/**
+ * Remembers across runs which dialect of Python each file parsed as, keyed
+ * by the hash of its content, and which files parse as neither. The parser
+ * then tries the right dialect first, and files that can't be parsed
+ * aren't sent to it again. A copy of a file, or a checkout moved to a new
+ * path, has the same content hash, so it benefits even when the AST cache,
+ * which is keyed by path too, misses.
+ *
+ * The results of each front end are kept in their own file in the AST
+ * cache directory, one "hash dialect" line per file. A failure is only
+ * good for the parsers that failed, so its line also has their version
+ * (see {@link Parser#getVersion}), and it is ignored once they change,
+ * as when a Python 2 is installed. The file is rewritten compacted by
+ * {@link #save}, and is pruned with the rest of the AST cache.
+ */
+class DialectCache {
+
+    static final String PREFIX = "dialects.";
+    // lines kept by save(), the least recently used dropped first; about
+    // 50 bytes each
+    private static final int MAX_ENTRIES = 100000;
+
+    @NotNull
+    private final File file;
+    @NotNull
+    private final Parser parser;
+    @Nullable
+    private String version;     // of the parser, computed when first needed
+    // hash -> "PYTHON2", "PYTHON3" or "NONE <parser version>", in file order
+    @NotNull
+    private Map<String, String> known = new LinkedHashMap<>();
+    // the entries looked up or found in this run
+    @NotNull
+    private final Map<String, String> used = new LinkedHashMap<>();
+    private boolean compact;
+
+
+    DialectCache(@NotNull String dir, @NotNull Parser parser) {
+        this.file = new File(dir, PREFIX + parser.getFrontEnd());
+        this.parser = parser;
+        compact = read(known);
+    }
+
+
+    // reads the file into entries, and tells if it was compact: no line
+    // repeats a hash or is cut short
+    private boolean read(@NotNull Map<String, String> entries) {
+        if (!file.canRead()) {
+            return true;
+        }
+        int lines = 0;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines++;
+                int space = line.indexOf(' ');
+                if (space <= 0) {
+                    continue;
+                }
+                String value = line.substring(space + 1);
+                int end = value.indexOf(' ');
+                try {
+                    Parser.Dialect.valueOf(end < 0 ? value : value.substring(0, end));
+                } catch (IllegalArgumentException e) {
+                    continue;   // a line cut short by a crash
+                }
+                if (value.equals(Parser.Dialect.NONE.name())) {
+                    continue;   // a failure saved without the parser version
+                }
+                String hash = line.substring(0, space);
+                entries.remove(hash);
+                entries.put(hash, value);
+            }
+        } catch (IOException e) {
+            _.msg("Failed to read dialect cache " + file + ": " + e);
+        }
+        return lines == entries.size();
+    }
+
+
+    @NotNull
+    private String version() {
+        if (version == null) {
+            version = parser.getVersion();
+        }
+        return version;
+    }
+
+
+    @Nullable
+    Parser.Dialect get(@NotNull String hash) {
+        String value = known.get(hash);
+        if (value == null) {
+            return null;
+        }
+        Parser.Dialect dialect;
+        if (value.startsWith("NONE ")) {
+            if (!value.substring("NONE ".length()).equals(version())) {
+                return null;
+            }
+            dialect = Parser.Dialect.NONE;
+        } else {
+            dialect = Parser.Dialect.valueOf(value);
+        }
+        used.put(hash, value);
+        return dialect;
+    }
+
+
+    void put(@NotNull String hash, @NotNull Parser.Dialect dialect) {
+        String value = dialect == Parser.Dialect.NONE ? "NONE " + version() : dialect.name();
+        known.put(hash, value);
+        used.put(hash, value);
+    }
+
+
+    /**
+     * Writes the file again with the entries used since the last save moved
+     * to its end, keeping the last MAX_ENTRIES. Entries other runs have
+     * saved since this one read the file are kept. The file is replaced by
+     * a rename, so readers never see it half written; when two runs save at
+     * once, the entries of one of them are lost, which costs a parse.
+     */
+    void save() {
+        if (used.isEmpty() && compact) {
+            return;
+        }
+        Map<String, String> entries = new LinkedHashMap<>();
+        read(entries);
+        for (Map.Entry<String, String> e : used.entrySet()) {
+            entries.remove(e.getKey());
+            entries.put(e.getKey(), e.getValue());
+        }
+        Iterator<String> eldest = entries.keySet().iterator();
+        for (int n = entries.size(); n > MAX_ENTRIES; n--) {
+            eldest.next();
+            eldest.remove();
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, String> e : entries.entrySet()) {
+            sb.append(e.getKey()).append(' ').append(e.getValue()).append('\n');
+        }
+        File tmp = null;
+        try {
+            tmp = File.createTempFile(file.getName() + ".", ".tmp", file.getParentFile());
+            try (OutputStream out = new FileOutputStream(tmp)) {
+                out.write(sb.toString().getBytes(UTF_8));
+            }
+            try {
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            _.msg("Failed to write dialect cache " + file + ": " + e);
+            if (tmp != null) {
+                tmp.delete();
+            }
+        }
+        known = entries;
+        used.clear();
+        compact = true;
+    }
+}
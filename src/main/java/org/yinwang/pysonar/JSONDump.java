@@ -25,6 +25,9 @@ public class JSONDump {
     private static Set<String> seenRef = new HashSet<>();
     private static Set<String> seenDocs = new HashSet<>();
 
+    // release the ASTs after the analysis, see Analyzer.finish()
+    private static boolean lean = false;
+
 
     private static String dirname(String path) {
         return new File(path).getParent();
@@ -32,7 +35,11 @@ public class JSONDump {
 
 
     private static Analyzer newAnalyzer(String srcpath, String[] inclpaths) throws Exception {
-        Analyzer idx = new Analyzer();
+        Map<String, Object> options = new HashMap<>();
+        if (lean) {
+            options.put("lean", true);
+        }
+        Analyzer idx = new Analyzer(options);
         for (String inclpath : inclpaths) {
             idx.addPath(inclpath);
         }
@@ -62,14 +69,9 @@ public class JSONDump {
         }
 
         String name = binding.name;
-        boolean isExported = !(
-                Binding.Kind.VARIABLE == binding.kind ||
-                        Binding.Kind.PARAMETER == binding.kind ||
-                        Binding.Kind.SCOPE == binding.kind ||
-                        Binding.Kind.ATTRIBUTE == binding.kind ||
-                        (name.length() == 0 || name.charAt(0) == '_' || name.startsWith("lambda%")));
+        boolean isExported = binding.isExported();
 
-        String path = binding.qname.replace('.', '/').replace("%20", ".");
+        String path = binding.getQnamePath();
 
         if (!seenDef.contains(path)) {
             seenDef.add(path);
@@ -121,7 +123,7 @@ public class JSONDump {
 
     private static void writeRefJson(Node ref, Binding binding, JsonGenerator json) throws IOException {
         if (binding.getFile() != null) {
-            String path = binding.qname.replace(".", "/").replace("%20", ".");
+            String path = binding.getQnamePath();
             String key = ref.file + ":" + ref.start;
             if (!seenRef.contains(key)) {
                 seenRef.add(key);
@@ -140,7 +142,7 @@ public class JSONDump {
 
 
     private static void writeDocJson(Binding binding, Analyzer idx, JsonGenerator json) throws Exception {
-        String path = binding.qname.replace('.', '/').replace("%20", ".");
+        String path = binding.getQnamePath();
 
         if (!seenDocs.contains(path)) {
             seenDocs.add(path);
@@ -185,6 +187,7 @@ public class JSONDump {
 
         Analyzer idx = newAnalyzer(srcpath, inclpaths);
         idx.multilineFunType = true;
+        Stats.Phase phase = idx.stats.start("export");
         JsonFactory jsonFactory = new JsonFactory();
         JsonGenerator symJson = jsonFactory.createGenerator(symOut);
         JsonGenerator refJson = jsonFactory.createGenerator(refOut);
@@ -195,7 +198,7 @@ public class JSONDump {
         }
 
         for (Binding b : idx.getAllBindings()) {
-            String path = b.qname.replace('.', '/').replace("%20", ".");
+            String path = b.getQnamePath();
 
             if (b.getFile() != null) {
                 if (b.getFile().startsWith(srcpath) && path.startsWith(srcpath)) {
@@ -217,6 +220,7 @@ public class JSONDump {
             json.writeEndArray();
             json.close();
         }
+        phase.end();
     }
 
 
@@ -226,7 +230,8 @@ public class JSONDump {
 
 
     private static void usage() {
-        info("Usage: java org.yinwang.pysonar.dump <source-path> <include-paths> <out-root> [verbose]");
+        info("Usage: java org.yinwang.pysonar.dump [-lean] <source-path> <include-paths> <out-root> [verbose]");
+        info("  -lean releases the syntax trees once the analysis is done, to use less memory (optional)");
         info("  <source-path> is path to source unit (package directory or module file) that will be graphed");
         info("  <include-paths> are colon-separated paths to included libs");
         info("  <out-root> is the prefix of the output files.  There are 3 output files: <out-root>-doc, <out-root>-sym, <out-root>-ref");
@@ -235,6 +240,10 @@ public class JSONDump {
 
 
     public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("-lean")) {
+            lean = true;
+            args = Arrays.copyOfRange(args, 1, args.length);
+        }
         if (args.length < 3 || args.length > 4) {
             usage();
             return;
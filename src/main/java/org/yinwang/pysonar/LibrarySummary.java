@@ -0,0 +1,474 @@
+package org.yinwang.pysonar;
+
+import com.google.gson.Gson;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.yinwang.pysonar.ast.Module;
+import org.yinwang.pysonar.ast.Name;
+import org.yinwang.pysonar.types.*;
+
+import java.io.File;
+import java.util.*;
+
+
+/**
+ * Precomputed summaries of library modules: the top-level bindings of a
+ * module and the members of its classes, with their inferred types and
+ * source locations.
+ *
+ * A library is analyzed once with "build"; each of its modules gets a
+ * summary file named by the content hash of its source. An analysis with
+ * the "summaries" option then binds library modules (those outside the
+ * project directory) from their summary when there is one, instead of
+ * parsing and inferring their source, so that analysis cost follows the
+ * size of the project and not of its dependencies.
+ *
+ * Summaries are deliberately shallow. Functions keep only their return
+ * types, and types nested deeper than MAX_DEPTH are cut off. Names and
+ * classes that come from other modules are referred to by file and loaded
+ * (from their own summary) when the referring module is bound; other
+ * foreign types become unknown.
+ */
+public class LibrarySummary {
+
+    private static final int VERSION = 1;
+    private static final int MAX_DEPTH = 6;
+    private static final int MAX_UNION = 8;
+
+    private static Gson gson = new Gson();
+
+    @NotNull
+    private String dir;
+
+
+    public LibrarySummary(@NotNull String dir) {
+        this.dir = dir;
+    }
+
+
+    // keyed by path as well as content: the same content at two paths are
+    // two modules, with different qnames and relative imports
+    @NotNull
+    private String summaryFile(@NotNull String sourceFile) {
+        byte[] content = _.getBytesFromFile(sourceFile);
+        return _.makePathString(dir, _.getContentHash(sourceFile.getBytes()) + "." +
+                _.getContentHash(content) + ".v" + VERSION + ".json");
+    }
+
+
+    // ------------------------- writing -----------------------
+
+
+    /**
+     * Writes summaries of all modules of a finished analysis that lie under
+     * {@code root}.
+     */
+    public int write(@NotNull Analyzer analyzer, @NotNull String root) {
+        new File(dir).mkdirs();
+        int n = 0;
+        for (String file : analyzer.getLoadedFiles()) {
+            if (file.startsWith(root)) {
+                ModuleType mt = analyzer.getCachedModule(file);
+                if (mt != null) {
+                    _.writeFile(summaryFile(file), gson.toJson(new Writer(mt).summarize()));
+                    n++;
+                }
+            }
+        }
+        return n;
+    }
+
+
+    private static class Writer {
+        ModuleType module;
+        String prefix;
+        Map<ClassType, Integer> classIds = new HashMap<>();
+        List<Object> classes = new ArrayList<>();
+
+
+        Writer(@NotNull ModuleType module) {
+            this.module = module;
+            this.prefix = module.table.getPath() + ".";
+        }
+
+
+        @NotNull
+        Map<String, Object> summarize() {
+            Map<String, Object> m = new LinkedHashMap<>();
+            m.put("version", VERSION);
+            m.put("bindings", bindings(module.table));
+            m.put("imports", imports(module.table));
+            m.put("classes", classes);
+            return m;
+        }
+
+
+        @NotNull
+        List<Object> bindings(@NotNull State table) {
+            List<Object> ret = new ArrayList<>();
+            for (Map.Entry<String, Set<Binding>> e : table.entrySet()) {
+                for (Binding b : e.getValue()) {
+                    if (module.file.equals(b.getFile()) && !b.isSynthetic()) {
+                        Map<String, Object> m = new LinkedHashMap<>();
+                        m.put("name", e.getKey());
+                        m.put("kind", b.kind.toString());
+                        m.put("loc", new int[]{b.start, b.end, b.bodyStart, b.bodyEnd});
+                        m.put("type", encode(b.type, 0));
+                        ret.add(m);
+                        break;
+                    }
+                }
+            }
+            return ret;
+        }
+
+
+        // top-level names bound to definitions of other modules, e.g. a
+        // package re-exporting the classes of its submodules
+        @NotNull
+        List<Object> imports(@NotNull State table) {
+            List<Object> ret = new ArrayList<>();
+            for (Map.Entry<String, Set<Binding>> e : table.entrySet()) {
+                for (Binding b : e.getValue()) {
+                    String file = b.getFile();
+                    if (file != null && !file.equals(module.file) && !b.isBuiltin() && !b.isSynthetic()) {
+                        Map<String, Object> m = new LinkedHashMap<>();
+                        m.put("name", e.getKey());
+                        m.put("file", file);
+                        if (b.kind != Binding.Kind.MODULE) {
+                            m.put("orig", b.name);
+                        }
+                        ret.add(m);
+                        break;
+                    }
+                }
+            }
+            return ret;
+        }
+
+
+        @NotNull
+        Object encode(@Nullable Type t, int depth) {
+            Map<String, Object> m = new LinkedHashMap<>();
+            if (t == null || depth > MAX_DEPTH || t.isUnknownType()) {
+                m.put("k", "?");
+            } else if (t == Type.NONE) {
+                m.put("k", "none");
+            } else if (t instanceof IntType) {
+                m.put("k", "int");
+            } else if (t instanceof FloatType) {
+                m.put("k", "float");
+            } else if (t instanceof ComplexType) {
+                m.put("k", "complex");
+            } else if (t instanceof StrType) {
+                m.put("k", "str");
+            } else if (t instanceof BoolType) {
+                m.put("k", "bool");
+            } else if (t instanceof TupleType) {
+                List<Object> elts = new ArrayList<>();
+                for (Type e : ((TupleType) t).eltTypes) {
+                    elts.add(encode(e, depth + 1));
+                }
+                m.put("k", "tuple");
+                m.put("e", elts);
+            } else if (t instanceof ListType) {
+                m.put("k", "list");
+                m.put("e", encode(((ListType) t).eltType, depth + 1));
+            } else if (t instanceof DictType) {
+                m.put("k", "dict");
+                m.put("key", encode(((DictType) t).keyType, depth + 1));
+                m.put("val", encode(((DictType) t).valueType, depth + 1));
+            } else if (t instanceof UnionType) {
+                List<Object> alts = new ArrayList<>();
+                for (Type e : ((UnionType) t).types) {
+                    if (alts.size() < MAX_UNION) {
+                        alts.add(encode(e, depth + 1));
+                    }
+                }
+                m.put("k", "union");
+                m.put("e", alts);
+            } else if (t instanceof FunType) {
+                Type ret = null;
+                for (Type r : ((FunType) t).arrows.values()) {
+                    ret = ret == null ? r : UnionType.union(ret, r);
+                }
+                m.put("k", "fun");
+                m.put("ret", encode(ret, depth + 1));
+            } else if (t instanceof ClassType) {
+                return encodeClass((ClassType) t, depth);
+            } else if (t instanceof InstanceType) {
+                m.put("k", "inst");
+                m.put("c", encode(((InstanceType) t).classType, depth + 1));
+            } else {
+                m.put("k", "?");
+            }
+            return m;
+        }
+
+
+        // the first module scope above the class
+        @Nullable
+        State definingModule(@NotNull ClassType c) {
+            State s = c.table.parent;
+            while (s != null && s.stateType != State.StateType.MODULE) {
+                s = s.parent;
+            }
+            return s;
+        }
+
+
+        @NotNull
+        Object encodeClass(@NotNull ClassType c, int depth) {
+            Map<String, Object> m = new LinkedHashMap<>();
+            String path = c.table.getPath();
+            State home = definingModule(c);
+
+            if (path != null && path.startsWith(prefix) && home == module.table) {
+                Integer id = classIds.get(c);
+                if (id == null) {
+                    id = classes.size();
+                    classIds.put(c, id);
+                    Map<String, Object> cm = new LinkedHashMap<>();
+                    classes.add(cm);
+                    cm.put("name", c.name);
+                    cm.put("path", path.substring(prefix.length()));
+
+                    List<Object> supers = new ArrayList<>();
+                    if (c.table.supers != null) {
+                        for (State s : c.table.supers) {
+                            if (s.type != null) {
+                                supers.add(encode(s.type, depth + 1));
+                            }
+                        }
+                    }
+                    cm.put("supers", supers);
+                    cm.put("members", bindings(c.table));
+                }
+                m.put("k", "class");
+                m.put("id", id);
+            } else if (path != null && path.startsWith("__builtin__.")) {
+                m.put("k", "builtin");
+                m.put("name", path.substring("__builtin__.".length()));
+            } else if (path != null && home != null && home.type != null && home.type.file != null &&
+                    path.startsWith(home.getPath() + "."))
+            {
+                // class of another module, e.g. re-exported by a package
+                m.put("k", "ext");
+                m.put("file", home.type.file);
+                m.put("path", path.substring(home.getPath().length() + 1));
+            } else {
+                m.put("k", "?");
+            }
+            return m;
+        }
+    }
+
+
+    // ------------------------- loading -----------------------
+
+
+    /**
+     * Binds the library module {@code file} from its summary, if there is
+     * one for its current content.
+     *
+     * @return the module type, or null if the module must be analyzed
+     */
+    @Nullable
+    public ModuleType load(@NotNull String file) {
+        File summary = new File(summaryFile(file));
+        if (!summary.canRead()) {
+            return null;
+        }
+
+        Map<String, Object> m = Reader.parse(summary);
+        if (m == null || ((Number) m.get("version")).intValue() != VERSION) {
+            return null;
+        }
+
+        Module node = new Module(null, file, 0, (int) new File(file).length());
+        ModuleType mt = new ModuleType(node.name, file, Analyzer.self.globaltable);
+        Analyzer.self.moduleTable.insert(_.moduleQname(file), node, mt, Binding.Kind.MODULE);
+        new Reader(mt, file, m).read();
+        return mt;
+    }
+
+
+    // Gson reads a summary as nested maps and lists of Object, so the
+    // casts in here are checked only by the summary having been written
+    // by Writer with the same VERSION.
+    @SuppressWarnings("unchecked")
+    private static class Reader {
+        ModuleType module;
+        String file;
+        Map<String, Object> summary;
+        List<Object> classes;
+        ClassType[] classTypes;
+
+
+        Reader(@NotNull ModuleType module, @NotNull String file, @NotNull Map<String, Object> summary) {
+            this.module = module;
+            this.file = file;
+            this.summary = summary;
+            this.classes = (List<Object>) summary.get("classes");
+            this.classTypes = new ClassType[classes.size()];
+        }
+
+
+        @Nullable
+        static Map<String, Object> parse(@NotNull File summary) {
+            try {
+                return gson.fromJson(_.readFile(summary.getPath()), Map.class);
+            } catch (Exception e) {
+                _.msg("Failed to read summary: " + summary);
+                return null;
+            }
+        }
+
+
+        void read() {
+            bind((List<Object>) summary.get("bindings"), module.table);
+            if (summary.get("imports") != null) {
+                bindImports((List<Object>) summary.get("imports"), module.table);
+            }
+        }
+
+
+        // shares the bindings of the imported modules, loading them as needed
+        void bindImports(@NotNull List<Object> imports, @NotNull State table) {
+            for (Object o : imports) {
+                Map<String, Object> m = (Map<String, Object>) o;
+                String name = (String) m.get("name");
+                String orig = (String) m.get("orig");
+                String file = (String) m.get("file");
+
+                Type mt = Analyzer.self.loadFile(file);
+                if (mt == null) {
+                    continue;
+                }
+                Set<Binding> bs;
+                if (orig == null) {
+                    bs = Analyzer.self.moduleTable.lookup(_.moduleQname(mt.file));
+                } else {
+                    bs = mt.table.lookupLocal(orig);
+                }
+                if (bs != null && table.lookupLocal(name) == null) {
+                    table.update(name, bs);
+                }
+            }
+        }
+
+
+        void bind(@NotNull List<Object> bindings, @NotNull State table) {
+            for (Object o : bindings) {
+                Map<String, Object> m = (Map<String, Object>) o;
+                String name = (String) m.get("name");
+                List<Number> loc = (List<Number>) m.get("loc");
+                Type type = decode(m.get("type"));
+
+                table.insert(name, new Name(name, file, loc.get(0).intValue(), loc.get(1).intValue()),
+                        type, Binding.Kind.valueOf((String) m.get("kind")));
+                for (Binding b : table.lookupLocal(name)) {
+                    b.bodyStart = loc.get(2).intValue();
+                    b.bodyEnd = loc.get(3).intValue();
+                }
+            }
+        }
+
+
+        @NotNull
+        Type decode(Object o) {
+            Map<String, Object> m = (Map<String, Object>) o;
+            String k = (String) m.get("k");
+
+            if (k.equals("none")) {
+                return Type.NONE;
+            } else if (k.equals("int")) {
+                return Type.INT;
+            } else if (k.equals("float")) {
+                return Type.FLOAT;
+            } else if (k.equals("complex")) {
+                return Type.COMPLEX;
+            } else if (k.equals("str")) {
+                return Type.STR;
+            } else if (k.equals("bool")) {
+                return Type.BOOL;
+            } else if (k.equals("tuple")) {
+                List<Type> elts = new ArrayList<>();
+                for (Object e : (List<Object>) m.get("e")) {
+                    elts.add(decode(e));
+                }
+                return new TupleType(elts);
+            } else if (k.equals("list")) {
+                return new ListType(decode(m.get("e")));
+            } else if (k.equals("dict")) {
+                return new DictType(decode(m.get("key")), decode(m.get("val")));
+            } else if (k.equals("union")) {
+                List<Type> alts = new ArrayList<>();
+                for (Object e : (List<Object>) m.get("e")) {
+                    alts.add(decode(e));
+                }
+                return UnionType.newUnion(alts);
+            } else if (k.equals("fun")) {
+                return new FunType(Type.UNKNOWN, decode(m.get("ret")));
+            } else if (k.equals("inst")) {
+                Type c = decode(m.get("c"));
+                return c instanceof ClassType ? ((ClassType) c).getCanon() : Type.UNKNOWN;
+            } else if (k.equals("class")) {
+                return classType(((Number) m.get("id")).intValue());
+            } else if (k.equals("ext")) {
+                Type t = Analyzer.self.loadFile((String) m.get("file"));
+                for (String seg : ((String) m.get("path")).split("\\.")) {
+                    t = t == null ? null : t.table.lookupType(seg);
+                }
+                return t instanceof ClassType ? t : Type.UNKNOWN;
+            } else if (k.equals("builtin")) {
+                Type t = Analyzer.self.builtins.Builtin.table.lookupType((String) m.get("name"));
+                return t != null ? t : Type.UNKNOWN;
+            } else {
+                return Type.UNKNOWN;
+            }
+        }
+
+
+        // created on first reference; members are bound after registering, for cycles
+        @NotNull
+        ClassType classType(int id) {
+            if (classTypes[id] == null) {
+                Map<String, Object> cm = (Map<String, Object>) classes.get(id);
+                ClassType c = new ClassType((String) cm.get("name"), module.table);
+                c.table.setPath(module.table.getQname().extend((String) cm.get("path")));
+                classTypes[id] = c;
+
+                for (Object s : (List<Object>) cm.get("supers")) {
+                    Type st = decode(s);
+                    if (st instanceof ClassType) {
+                        c.addSuper(st);
+                    }
+                }
+                bind((List<Object>) cm.get("members"), c.table);
+            }
+            return classTypes[id];
+        }
+    }
+
+
+    private static void usage() {
+        System.out.println("Usage: java org.yinwang.pysonar.LibrarySummary <library-dir> <summary-dir>");
+        System.exit(0);
+    }
+
+
+    public static void main(@NotNull String[] args) {
+        if (args.length != 2) {
+            usage();
+        }
+
+        String root = _.unifyPath(args[0]);
+        Analyzer analyzer = new Analyzer();
+        analyzer.analyze(root);
+        analyzer.finish();
+        int n = new LibrarySummary(args[1]).write(analyzer, root);
+        _.msg("wrote summaries of " + n + " modules to " + args[1]);
+        analyzer.close();
+    }
+}
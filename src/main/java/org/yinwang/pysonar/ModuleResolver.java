@@ -0,0 +1,201 @@
+package org.yinwang.pysonar;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.*;
+
+
+/**
+ * Answers the file-existence questions of module resolution from snapshots
+ * of directory listings instead of probing the file system for each import.
+ *
+ * Each directory is listed at most once, the load path roots in parallel on
+ * first use. Head-module lookups (including misses) and canonical paths are
+ * remembered as well. Sources are assumed not to change during one analysis;
+ * the caches are dropped whenever the load path changes. The listing threads
+ * are kept until {@link #close}.
+ */
+public class ModuleResolver {
+
+    private static final String NOT_FOUND = "";
+    private static final int LIST_THREADS = 8;
+
+    // directory -> names of its entries
+    @NotNull
+    private ConcurrentMap<String, Set<String>> listings = new ConcurrentHashMap<>();
+    // cwd + head name -> load path entry that contains it, or NOT_FOUND
+    @NotNull
+    private Map<String, String> located = new HashMap<>();
+    @NotNull
+    private Map<String, String> canonical = new HashMap<>();
+    // lists directories, created on first use and kept until close()
+    @Nullable
+    private ExecutorService pool;
+
+
+    public void clear() {
+        listings.clear();
+        located.clear();
+        canonical.clear();
+    }
+
+
+    public void close() {
+        clear();
+        if (pool != null) {
+            pool.shutdown();
+            pool = null;
+        }
+    }
+
+
+    @NotNull
+    private ExecutorService getPool() {
+        if (pool == null) {
+            pool = Executors.newFixedThreadPool(LIST_THREADS, new ThreadFactory() {
+                @Override
+                public Thread newThread(@NotNull Runnable r) {
+                    Thread t = new Thread(r, "pysonar-list");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return pool;
+    }
+
+
+    /**
+     * Find the load path entry that contains the module or package
+     * {@code headName}, or null if there is none.
+     */
+    @Nullable
+    public String locate(@NotNull String headName, @Nullable String cwd,
+                         @NotNull List<String> loadPath, @NotNull String suffix)
+    {
+        // everything in the load path other than cwd is fixed between clear() calls
+        String key = cwd + File.pathSeparator + headName;
+        String ret = located.get(key);
+        if (ret != null) {
+            return ret == NOT_FOUND ? null : ret;
+        }
+
+        listAll(loadPath);
+        ret = NOT_FOUND;
+        for (String p : loadPath) {
+            if (isModule(p, headName, suffix)) {
+                ret = p;
+                break;
+            }
+        }
+        located.put(key, ret);
+        return ret == NOT_FOUND ? null : ret;
+    }
+
+
+    // dir/name/__init__.py or dir/name.py
+    private boolean isModule(@NotNull String dir, @NotNull String name, @NotNull String suffix) {
+        return exists(dir, name + suffix) || exists(_.makePathString(dir, name), "__init__.py");
+    }
+
+
+    public boolean exists(@NotNull String dir, @NotNull String name) {
+        return list(dir).contains(name);
+    }
+
+
+    public boolean exists(@NotNull File file) {
+        String parent = file.getParent();
+        return parent != null && exists(parent, file.getName());
+    }
+
+
+    @NotNull
+    private Set<String> list(@NotNull String dir) {
+        Set<String> names = listings.get(dir);
+        if (names == null) {
+            names = readDir(dir);
+            Set<String> old = listings.putIfAbsent(dir, names);
+            if (old != null) {
+                names = old;
+            }
+        }
+        return names;
+    }
+
+
+    @NotNull
+    private static Set<String> readDir(@NotNull String dir) {
+        Path p = Paths.get(dir);
+        if (!Files.isDirectory(p)) {
+            return Collections.emptySet();
+        }
+
+        Set<String> names = new HashSet<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(p)) {
+            for (Path entry : stream) {
+                names.add(entry.getFileName().toString());
+            }
+        } catch (IOException e) {
+            _.msg("Failed to list directory: " + dir);
+        }
+        return names;
+    }
+
+
+    // list the directories not seen yet concurrently; slow (network) file systems
+    // are dominated by the round trips, not by the work per directory
+    private void listAll(@NotNull List<String> dirs) {
+        final List<String> todo = new ArrayList<>();
+        for (String d : dirs) {
+            if (!listings.containsKey(d)) {
+                todo.add(d);
+            }
+        }
+
+        if (todo.size() < 2) {
+            for (String d : todo) {
+                list(d);
+            }
+            return;
+        }
+
+        ExecutorService pool = getPool();
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (final String d : todo) {
+                futures.add(pool.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        list(d);
+                    }
+                }));
+            }
+            for (Future<?> f : futures) {
+                f.get();
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            _.msg("Failed to list load path: " + e);
+        }
+    }
+
+
+    @NotNull
+    public String canonicalize(@NotNull String path) {
+        String ret = canonical.get(path);
+        if (ret == null) {
+            ret = _.unifyPath(path);
+            canonical.put(path, ret);
+            canonical.put(ret, ret);
+        }
+        return ret;
+    }
+}
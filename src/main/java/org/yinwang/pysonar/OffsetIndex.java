@@ -0,0 +1,272 @@
+package org.yinwang.pysonar;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.yinwang.pysonar.ast.Node;
+
+import java.util.*;
+
+
+/**
+ * Per-file interval index over the reference nodes and the binding
+ * definitions of a finished analysis, for queries by file offset.
+ *
+ * Each file has two static interval trees: one over the spans of reference
+ * nodes and one over the body spans of bindings (a function's whole
+ * definition, not just its name). A tree is a sorted array where the node
+ * for a range is its middle element and carries the largest end in the
+ * range, so stabbing queries take O(log n + k).
+ */
+public class OffsetIndex {
+
+    static class Intervals<T> {
+        int[] starts;
+        int[] ends;
+        int[] maxEnds;
+        Object[] items;
+
+
+        Intervals(@NotNull List<T> list, @NotNull final int[] start, @NotNull final int[] end) {
+            int n = list.size();
+
+            // sort positions by start, longest first
+            Integer[] order = new Integer[n];
+            for (int i = 0; i < n; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    if (start[a] != start[b]) {
+                        return start[a] < start[b] ? -1 : 1;
+                    } else {
+                        return end[b] - end[a];
+                    }
+                }
+            });
+
+            starts = new int[n];
+            ends = new int[n];
+            maxEnds = new int[n];
+            items = new Object[n];
+            for (int i = 0; i < n; i++) {
+                starts[i] = start[order[i]];
+                ends[i] = end[order[i]];
+                items[i] = list.get(order[i]);
+            }
+            computeMaxEnd(0, n);
+        }
+
+
+        private int computeMaxEnd(int lo, int hi) {
+            if (lo >= hi) {
+                return Integer.MIN_VALUE;
+            }
+            int mid = (lo + hi) >>> 1;
+            int max = Math.max(ends[mid], Math.max(computeMaxEnd(lo, mid), computeMaxEnd(mid + 1, hi)));
+            maxEnds[mid] = max;
+            return max;
+        }
+
+
+        // positions of the intervals with start <= offset < end
+        void stab(int offset, @NotNull List<Integer> out) {
+            stab(0, starts.length, offset, out);
+        }
+
+
+        private void stab(int lo, int hi, int offset, @NotNull List<Integer> out) {
+            if (lo >= hi) {
+                return;
+            }
+            int mid = (lo + hi) >>> 1;
+            if (maxEnds[mid] <= offset) {
+                return;
+            }
+            stab(lo, mid, offset, out);
+            if (starts[mid] <= offset) {
+                if (offset < ends[mid]) {
+                    out.add(mid);
+                }
+                stab(mid + 1, hi, offset, out);
+            }
+        }
+
+
+        // the shortest interval that contains offset
+        @Nullable
+        @SuppressWarnings("unchecked")
+        T innermost(int offset) {
+            List<Integer> hits = new ArrayList<>();
+            stab(offset, hits);
+            int best = -1;
+            for (int i : hits) {
+                if (best < 0 || ends[i] - starts[i] <= ends[best] - starts[best]) {
+                    best = i;
+                }
+            }
+            return best < 0 ? null : (T) items[best];
+        }
+
+
+        // first position whose start is >= offset
+        int lowerBound(int offset) {
+            int lo = 0, hi = starts.length;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (starts[mid] < offset) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+    }
+
+
+    @NotNull
+    private Map<Node, List<Binding>> references;
+    @NotNull
+    private Map<String, Intervals<Node>> refs = new HashMap<>();
+    @NotNull
+    private Map<String, Intervals<Binding>> defs = new HashMap<>();
+
+
+    public OffsetIndex(@NotNull Analyzer analyzer) {
+        references = analyzer.getReferences();
+
+        Map<String, List<Node>> refsByFile = new HashMap<>();
+        for (Node ref : references.keySet()) {
+            if (ref.file != null) {
+                getList(refsByFile, ref.file).add(ref);
+            }
+        }
+        for (Map.Entry<String, List<Node>> e : refsByFile.entrySet()) {
+            List<Node> nodes = e.getValue();
+            int[] start = new int[nodes.size()];
+            int[] end = new int[nodes.size()];
+            for (int i = 0; i < nodes.size(); i++) {
+                start[i] = nodes.get(i).start;
+                end[i] = nodes.get(i).end;
+            }
+            refs.put(e.getKey(), new Intervals<>(nodes, start, end));
+        }
+
+        Map<String, List<Binding>> defsByFile = new HashMap<>();
+        for (Binding b : analyzer.getAllBindings()) {
+            String file = b.getFile();
+            if (file != null && !b.isBuiltin() && b.bodyStart >= 0) {
+                getList(defsByFile, file).add(b);
+            }
+        }
+        for (Map.Entry<String, List<Binding>> e : defsByFile.entrySet()) {
+            List<Binding> bs = e.getValue();
+            int[] start = new int[bs.size()];
+            int[] end = new int[bs.size()];
+            for (int i = 0; i < bs.size(); i++) {
+                start[i] = bs.get(i).bodyStart;
+                end[i] = bs.get(i).bodyEnd;
+            }
+            defs.put(e.getKey(), new Intervals<>(bs, start, end));
+        }
+    }
+
+
+    @NotNull
+    private static <T> List<T> getList(@NotNull Map<String, List<T>> map, @NotNull String file) {
+        List<T> list = map.get(file);
+        if (list == null) {
+            list = new ArrayList<>();
+            map.put(file, list);
+        }
+        return list;
+    }
+
+
+    /**
+     * The innermost reference node that covers {@code offset}.
+     */
+    @Nullable
+    public Node nodeAt(@NotNull String file, int offset) {
+        Intervals<Node> iv = refs.get(file);
+        return iv == null ? null : iv.innermost(offset);
+    }
+
+
+    /**
+     * The reference node with exactly this span.
+     */
+    @Nullable
+    public Node nodeAt(@NotNull String file, int start, int end) {
+        Intervals<Node> iv = refs.get(file);
+        if (iv == null) {
+            return null;
+        }
+        for (int i = iv.lowerBound(start); i < iv.starts.length && iv.starts[i] == start; i++) {
+            if (iv.ends[i] == end) {
+                return (Node) iv.items[i];
+            }
+        }
+        return null;
+    }
+
+
+    /**
+     * Bindings of a reference node, or null if it isn't one.
+     */
+    @Nullable
+    public List<Binding> bindingsOf(@Nullable Node ref) {
+        return ref == null ? null : references.get(ref);
+    }
+
+
+    /**
+     * The innermost binding whose definition (e.g. the whole function or
+     * class body) contains {@code offset}.
+     */
+    @Nullable
+    public Binding enclosingDefinition(@NotNull String file, int offset) {
+        Intervals<Binding> iv = defs.get(file);
+        return iv == null ? null : iv.innermost(offset);
+    }
+
+
+    /**
+     * Bindings whose defining name covers {@code offset}.
+     */
+    @NotNull
+    public List<Binding> definitionsAt(@NotNull String file, int offset) {
+        List<Binding> ret = new ArrayList<>();
+        Intervals<Binding> iv = defs.get(file);
+        if (iv != null) {
+            List<Integer> hits = new ArrayList<>();
+            iv.stab(offset, hits);
+            for (int i : hits) {
+                Binding b = (Binding) iv.items[i];
+                if (b.start <= offset && offset < b.end) {
+                    ret.add(b);
+                }
+            }
+        }
+        return ret;
+    }
+
+
+    /**
+     * Reference nodes that lie within [start, end), in file order.
+     */
+    @NotNull
+    public List<Node> refsInRange(@NotNull String file, int start, int end) {
+        List<Node> ret = new ArrayList<>();
+        Intervals<Node> iv = refs.get(file);
+        if (iv != null) {
+            for (int i = iv.lowerBound(start); i < iv.starts.length && iv.starts[i] < end; i++) {
+                if (iv.ends[i] <= end) {
+                    ret.add((Node) iv.items[i]);
+                }
+            }
+        }
+        return ret;
+    }
+}
@@ -273,7 +273,7 @@ public class Outliner {
 
             Entry kid = kids != null ? new Branch() : new Leaf();
             kid.setOffset(nb.start);
-            kid.setQname(nb.qname);
+            kid.setQname(nb.getQname());
             kid.setKind(nb.kind);
 
             if (kids != null) {
@@ -3,6 +3,7 @@ package org.yinwang.pysonar;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.yinwang.pysonar.ast.*;
@@ -11,18 +12,30 @@ import java.io.File;
 import java.io.OutputStreamWriter;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 
 public class Parser {
 
+    /**
+     * The dialect a file parsed as, or NONE if it parsed as neither.
+     */
+    public enum Dialect {
+        PYTHON2, PYTHON3, NONE
+    }
+
+
     private static final String PYTHON2_EXE = "python";
     private static final String PYTHON3_EXE = "python3";
     private static final int TIMEOUT = 10000;
+    // identifiers shared before the table starts over; a few MB of strings
+    private static final int MAX_IDENTIFIERS = 100000;
 
     Process python2Process;
     Process python3Process;
+    private boolean started = false;
     private static Gson gson = new GsonBuilder().setPrettyPrinting().create();
     private static final String dumpPythonResource = "org/yinwang/pysonar/python/dump_python.py";
     private String exchangeFile;
@@ -30,14 +43,55 @@ public class Parser {
     private String jsonizer;
     private String parserLog;
     private String file;
+    private boolean inJvm;
+    @Nullable
+    private Dialect dialect;
+    private boolean interrupted;    // a parse failed for a reason that may not recur
+    private boolean keepFiles;
+    // one copy of each identifier for all the ASTs of this parser
+    @NotNull
+    private final Map<String, String> identifiers = new HashMap<>();
 
 
+    /**
+     * Parses with dump_python.py, or in the JVM with {@link PythonParser}
+     * when the option "parser" is "java".
+     */
     public Parser() {
+        this(useJavaParser());
+    }
+
 
+    public Parser(boolean inJvm) {
+        this.inJvm = inJvm;
         exchangeFile = _.locateTmp("json");
         endMark = _.locateTmp("end");
         jsonizer = _.locateTmp("dump_python");
         parserLog = _.locateTmp("parser_log");
+        keepFiles = Analyzer.self.hasOption("debug");
+    }
+
+
+    private static boolean useJavaParser() {
+        Object option = Analyzer.self == null ? null : Analyzer.self.options.get("parser");
+        if (option == null || "python".equals(option)) {
+            return false;
+        } else if ("java".equals(option)) {
+            return true;
+        } else {
+            _.die("Unknown parser: " + option + ", expecting java or python");
+            return false;
+        }
+    }
+
+
+    // interpreters are started on the first parse, so runs that find every
+    // AST in the cache start none
+    private void ensureStarted() {
+        if (started) {
+            return;
+        }
+        started = true;
 
         startPythonProcesses();
 
@@ -76,13 +130,44 @@ public class Parser {
     }
 
 
+    /**
+     * Stops the interpreters and deletes the exchange files, unless the
+     * "debug" option keeps them.
+     */
     public void close() {
-        if (!Analyzer.self.hasOption("debug")) {
+        if (python2Process != null) {
+            python2Process.destroy();
+        }
+        if (python3Process != null) {
+            python3Process.destroy();
+        }
+        if (!keepFiles) {
             new File(exchangeFile).delete();
             new File(endMark).delete();
             new File(jsonizer).delete();
             new File(parserLog).delete();
         }
+        identifiers.clear();
+    }
+
+
+    /**
+     * Stops sharing identifiers with the ASTs converted so far, so the
+     * table doesn't keep their strings once the trees are released.
+     */
+    public void clearIdentifiers() {
+        identifiers.clear();
+    }
+
+
+    /**
+     * Converts the tree dump_python.py (or {@link PythonParser}) produced
+     * for the file {@code filename}.
+     */
+    @Nullable
+    public Node convert(@NotNull Map<String, Object> tree, String filename) {
+        file = filename;
+        return convert(tree);
     }
 
 
@@ -110,7 +195,7 @@ public class Parser {
         if (type.equals("alias")) {         // lower case alias
             String qname = (String) map.get("name");
             List<Name> names = segmentQname(qname, start + "import ".length(), false);
-            Name asname = map.get("asname") == null ? null : new Name((String) map.get("asname"));
+            Name asname = map.get("asname") == null ? null : new Name(identifier(map.get("asname")));
             return new Alias(names, asname, file, start, end);
         }
 
@@ -129,7 +214,7 @@ public class Parser {
             if (targets.size() == 1) {
                 return new Assign(targets.get(0), value, file, start, end);
             } else {
-                List<Node> assignments = new ArrayList<>();
+                List<Node> assignments = new ArrayList<>(targets.size());
                 Node lastTarget = targets.get(targets.size() - 1);
                 assignments.add(new Assign(lastTarget, value, file, start, end));
 
@@ -146,7 +231,7 @@ public class Parser {
             Node value = convert(map.get("value"));
             Name attr = (Name) convert(map.get("attr_name"));
             if (attr == null) {
-                attr = new Name((String) map.get("attr"));
+                attr = new Name(identifier(map.get("attr")));
             }
             return new Attribute(value, attr, file, start, end);
         }
@@ -322,8 +407,8 @@ public class Parser {
             List<Node> args = convertList(argsMap.get("args"));
             List<Node> defaults = convertList(argsMap.get("defaults"));
             Node body = type.equals("Lambda") ? convert(map.get("body")) : convertBlock(map.get("body"));
-            Name vararg = argsMap.get("vararg") == null ? null : new Name((String) argsMap.get("vararg"));
-            Name kwarg = argsMap.get("kwarg") == null ? null : new Name((String) argsMap.get("kwarg"));
+            Name vararg = argsMap.get("vararg") == null ? null : new Name(identifier(argsMap.get("vararg")));
+            Name kwarg = argsMap.get("kwarg") == null ? null : new Name(identifier(argsMap.get("kwarg")));
             return new FunctionDef(name, args, body, defaults, vararg, kwarg, file, start, end);
         }
 
@@ -335,18 +420,18 @@ public class Parser {
 
         if (type.equals("Global")) {
             List<String> names = (List<String>) map.get("names");
-            List<Name> nameNodes = new ArrayList<>();
+            List<Name> nameNodes = new ArrayList<>(names.size());
             for (String name : names) {
-                nameNodes.add(new Name(name));
+                nameNodes.add(new Name(identifier(name)));
             }
             return new Global(nameNodes, file, start, end);
         }
 
         if (type.equals("Nonlocal")) {
             List<String> names = (List<String>) map.get("names");
-            List<Name> nameNodes = new ArrayList<>();
+            List<Name> nameNodes = new ArrayList<>(names.size());
             for (String name : names) {
-                nameNodes.add(new Name(name));
+                nameNodes.add(new Name(identifier(name)));
             }
             return new Global(nameNodes, file, start, end);
         }
@@ -385,7 +470,7 @@ public class Parser {
         }
 
         if (type.equals("keyword")) {
-            String arg = (String) map.get("arg");
+            String arg = identifier(map.get("arg"));
             Node value = convert(map.get("value"));
             return new Keyword(arg, value, file, start, end);
         }
@@ -407,13 +492,13 @@ public class Parser {
         }
 
         if (type.equals("Name")) {
-            String id = (String) map.get("id");
+            String id = identifier(map.get("id"));
             return new Name(id, file, start, end);
         }
 
         // another name for Name in Python3 func parameters?
         if (type.equals("arg")) {
-            String id = (String) map.get("arg");
+            String id = identifier(map.get("arg"));
             return new Name(id, file, start, end);
         }
 
@@ -599,7 +684,7 @@ public class Parser {
             return null;
         } else {
             List<Map<String, Object>> in = (List<Map<String, Object>>) o;
-            List<T> out = new ArrayList<>();
+            List<T> out = new ArrayList<>(in.size());
 
             for (Map<String, Object> m : in) {
                 Node n = convert(m);
@@ -619,7 +704,7 @@ public class Parser {
             return null;
         } else {
             List<Map<String, Object>> in = (List<Map<String, Object>>) o;
-            List<Node> out = new ArrayList<>();
+            List<Node> out = new ArrayList<>(in.size());
 
             for (Map<String, Object> m : in) {
                 Node n = convert(m);
@@ -654,7 +739,7 @@ public class Parser {
             return null;
         } else {
             List<Map<String, Object>> in = (List<Map<String, Object>>) o;
-            List<Op> out = new ArrayList<>();
+            List<Op> out = new ArrayList<>(in.size());
 
             for (Map<String, Object> m : in) {
                 Op n = convertOp(m);
@@ -783,6 +868,54 @@ public class Parser {
     }
 
 
+    /**
+     * The copy of identifier {@code o} shared by the ASTs of this parser.
+     * Most of the strings in an AST are the ids of its names, and they
+     * repeat, so sharing them saves about a third of the heap of a
+     * tree. Java serialization keeps the sharing within one entry of the
+     * disk cache, and {@link #shareIdentifiers} restores it across
+     * entries. The table starts over when it gets large or the AST cache
+     * is cleared.
+     */
+    @Nullable
+    private String identifier(@Nullable Object o) {
+        if (o == null) {
+            return null;
+        }
+        String id = (String) o;
+        String old = identifiers.get(id);
+        if (old == null) {
+            if (identifiers.size() >= MAX_IDENTIFIERS) {
+                identifiers.clear();
+            }
+            identifiers.put(id, id);
+            return id;
+        } else {
+            return old;
+        }
+    }
+
+
+    /**
+     * Makes the names in {@code node}, a tree read from the disk cache,
+     * share their ids with the trees of this parser. Each entry is read by
+     * its own stream, so otherwise every file would have its own copies.
+     */
+    public void shareIdentifiers(@NotNull Node node) {
+        if (node instanceof Name) {
+            Name name = (Name) node;
+            String id = identifier(name.id);
+            if (name.id.equals(name.name)) {
+                name.name = id;
+            }
+            name.id = id;
+        }
+        for (Node child : node.getChildren()) {
+            shareIdentifiers(child);
+        }
+    }
+
+
     @NotNull
     List<Name> segmentQname(@NotNull String qname, int start, boolean hasLoc) {
         List<Name> result = new ArrayList<>();
@@ -806,7 +939,7 @@ public class Parser {
             int nameStop = i;
             int nstart = hasLoc ? start + nameStart : -1;
             int nstop = hasLoc ? start + nameStop : -1;
-            result.add(new Name(name, file, nstart, nstop));
+            result.add(new Name(identifier(name), file, nstart, nstop));
         }
 
         return result;
@@ -839,25 +972,162 @@ public class Parser {
 
     @Nullable
     public Node parseFile(String filename) {
+        return parseFile(filename, null);
+    }
+
+
+    /**
+     * Parses a file, trying the dialect it parsed as before first.
+     *
+     * @param hint the dialect the file is known to parse as, or null
+     */
+    @Nullable
+    public Node parseFile(String filename, @Nullable Dialect hint) {
         file = filename;
+        dialect = null;
+        interrupted = false;
+        if (inJvm) {
+            return parseInJvm(filename, hint);
+        }
+        ensureStarted();
 
-        Node node2 = parseFileInner(filename, python2Process);
-        if (node2 != null) {
-            return node2;
-        } else if (python3Process != null) {
-            Node node3 = parseFileInner(filename, python3Process);
-            if (node3 == null) {
-                _.msg("failed to parse: " + filename);
-                Analyzer.self.failedToParse.add(filename);
-                return null;
-            } else {
-                return node3;
-            }
-        } else {
+        Dialect first = Dialect.PYTHON2;
+        Dialect second = Dialect.PYTHON3;
+        if (hint == Dialect.PYTHON3 && python3Process != null) {
+            first = Dialect.PYTHON3;
+            second = Dialect.PYTHON2;
+        }
+
+        Node node = parseWith(filename, first);
+        if (node == null) {
+            node = parseWith(filename, second);
+        }
+        if (node == null) {
             _.msg("failed to parse: " + filename);
             Analyzer.self.failedToParse.add(filename);
+            dialect = interrupted ? null : Dialect.NONE;
+        }
+        return node;
+    }
+
+
+    @Nullable
+    private Node parseWith(String filename, Dialect d) {
+        Process process = d == Dialect.PYTHON2 ? python2Process : python3Process;
+        if (process == null) {
+            return null;
+        }
+        Node node = parseFileInner(filename, process);
+        if (node != null) {
+            dialect = d;
+        }
+        return node;
+    }
+
+
+    @Nullable
+    private Node parseInJvm(String filename, @Nullable Dialect hint) {
+        String source;
+        try {
+            source = PythonParser.readSource(filename);
+        } catch (Exception e) {
+            _.msg("failed to parse: " + filename + ": " + e.getMessage());
+            Analyzer.self.failedToParse.add(filename);
+            return null;
+        }
+
+        boolean python3 = hint != Dialect.PYTHON2;
+        PythonParser.SyntaxError error = null;
+        for (int i = 0; i < 2; i++, python3 = !python3) {
+            try {
+                Map<String, Object> tree = PythonParser.parse(source, python3);
+                dialect = python3 ? Dialect.PYTHON3 : Dialect.PYTHON2;
+                return convert(tree);
+            } catch (PythonParser.SyntaxError e) {
+                if (error == null) {
+                    error = e;
+                }
+            }
+        }
+        _.msg("failed to parse: " + filename + ": " + error.getMessage());
+        Analyzer.self.failedToParse.add(filename);
+        dialect = Dialect.NONE;
+        return null;
+    }
+
+
+    /**
+     * The dialect the last file parsed as, NONE if it parsed as neither, or
+     * null if it's unknown, as when a parse timed out.
+     */
+    @Nullable
+    public Dialect getDialect() {
+        return dialect;
+    }
+
+
+    /**
+     * The name of the front end, "java" or "python".
+     */
+    @NotNull
+    public String getFrontEnd() {
+        return inJvm ? "java" : "python";
+    }
+
+
+    /**
+     * Identifies the parsers behind {@link #getFrontEnd}, so that a file
+     * found not to parse is tried again once they change: dump_python.py
+     * and the interpreters on PATH, by path, size and modification time,
+     * or the classes of the parser in the JVM. Nothing is started.
+     */
+    @NotNull
+    public String getVersion() {
+        StringBuilder sb = new StringBuilder();
+        try {
+            if (inJvm) {
+                for (Class<?> c : new Class<?>[]{PythonParser.class, PythonLexer.class}) {
+                    URL url = c.getResource(c.getSimpleName() + ".class");
+                    sb.append(_.getContentHash(IOUtils.toByteArray(url))).append(' ');
+                }
+            } else {
+                URL url = Thread.currentThread().getContextClassLoader().getResource(dumpPythonResource);
+                sb.append(_.getContentHash(IOUtils.toByteArray(url))).append(' ');
+                for (String exe : new String[]{PYTHON2_EXE, PYTHON3_EXE}) {
+                    File f = findOnPath(exe);
+                    sb.append(exe).append('=');
+                    if (f != null) {
+                        sb.append(f.getPath()).append(':').append(f.length()).append(':').append(f.lastModified());
+                    }
+                    sb.append(' ');
+                }
+            }
+        } catch (Exception e) {
+            // unknown, so that no remembered failure matches
+            return "unknown." + Analyzer.self.sid;
+        }
+        return _.getContentHash(sb.toString().getBytes());
+    }
+
+
+    // the file a command runs, following links, as the shell would find it
+    @Nullable
+    private static File findOnPath(@NotNull String exe) {
+        String path = System.getenv("PATH");
+        if (path == null) {
             return null;
         }
+        for (String dir : path.split(File.pathSeparator)) {
+            File f = new File(dir, exe);
+            if (f.isFile() && f.canExecute()) {
+                try {
+                    return f.getCanonicalFile();
+                } catch (Exception e) {
+                    return f;
+                }
+            }
+        }
+        return null;
     }
 
 
@@ -876,6 +1146,7 @@ public class Parser {
 
         if (!sendCommand(dumpCommand, pythonProcess)) {
             cleanTemp();
+            interrupted = true;
             return null;
         }
 
@@ -885,6 +1156,7 @@ public class Parser {
                 _.msg("\nTimed out while parsing: " + filename);
                 cleanTemp();
                 startPythonProcesses();
+                interrupted = true;
                 return null;
             }
 
@@ -892,6 +1164,7 @@ public class Parser {
                 Thread.sleep(1);
             } catch (Exception e) {
                 cleanTemp();
+                interrupted = true;
                 return null;
             }
         }
@@ -0,0 +1,264 @@
+package org.yinwang.pysonar;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.yinwang.pysonar.ast.Node;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.*;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+
+/**
+ * Finds the Python code that inference spends its time on. Enabled with
+ * the option "profile", which names a prefix for two output files:
+ *
+ *   PREFIX.txt        functions and modules ranked by exclusive time, with
+ *                     inclusive time, how often each body was analyzed
+ *                     (memoized calls don't count) and inference steps
+ *   PREFIX.collapsed  the stacks of analyzed bodies in the collapsed
+ *                     format of flamegraph.pl, weighted in microseconds
+ *
+ * The analyzer enters a frame for each function body it analyzes in
+ * {@link org.yinwang.pysonar.ast.Call#apply} and each module it
+ * transforms, the same places as {@link Budget} does. Exclusive time is
+ * the time of a frame less the frames entered inside it; inclusive time
+ * counts a function only once when it is on the stack more than once.
+ * Parsing the modules imported along the way is not counted.
+ * The results are candidates for the budget options or for excluding.
+ */
+public class Profiler {
+
+    private static final int REPORT_LIMIT = 200;
+
+
+    private static class Entry {
+        @NotNull
+        final String name;
+        @NotNull
+        final String kind;
+        @NotNull
+        final Node node;
+        long inclusive;
+        long exclusive;
+        long analyses;
+        long steps;
+        int active;       // frames of this entry on the stack
+
+
+        Entry(@NotNull String name, @NotNull String kind, @NotNull Node node) {
+            this.name = name;
+            this.kind = kind;
+            this.node = node;
+        }
+    }
+
+
+    private static class Frame {
+        @NotNull
+        final Entry entry;
+        @NotNull
+        final String stack;
+        long start = System.nanoTime();
+        long children;
+
+
+        Frame(@NotNull Entry entry, @NotNull String stack) {
+            this.entry = entry;
+            this.stack = stack;
+        }
+    }
+
+
+    @NotNull
+    private final String prefix;
+    @NotNull
+    private final Map<Node, Entry> entries = new IdentityHashMap<>();
+    @NotNull
+    private final Map<String, Long> stacks = new HashMap<>();
+    @NotNull
+    private final Deque<Frame> frames = new ArrayDeque<>();
+    private long outsideSteps = 0;
+    private long pausedAt;
+    private int pauses = 0;
+
+
+    public Profiler(@NotNull String prefix) {
+        this.prefix = prefix;
+    }
+
+
+    /**
+     * Starts a frame for the body of {@code node}, a function or a module
+     * called {@code name}. Must be paired with {@link #exit}.
+     */
+    public void enter(@NotNull Node node, @NotNull String name, @NotNull String kind) {
+        Entry entry = entries.get(node);
+        if (entry == null) {
+            entry = new Entry(name, kind, node);
+            entries.put(node, entry);
+        }
+        entry.analyses++;
+        entry.active++;
+        Frame parent = frames.peek();
+        String stack = parent == null ? name : parent.stack + ";" + name;
+        frames.push(new Frame(entry, stack));
+    }
+
+
+    public void exit() {
+        Frame frame = frames.pop();
+        long elapsed = System.nanoTime() - frame.start;
+        Entry entry = frame.entry;
+        entry.active--;
+        if (entry.active == 0) {
+            entry.inclusive += elapsed;
+        }
+        long self = elapsed - frame.children;
+        entry.exclusive += self;
+
+        Long old = stacks.get(frame.stack);
+        stacks.put(frame.stack, old == null ? self : old + self);
+
+        Frame parent = frames.peek();
+        if (parent != null) {
+            parent.children += elapsed;
+        }
+    }
+
+
+    /**
+     * Stops the clock of all frames until {@link #resume}, for work that
+     * is not inference, like parsing. Pauses may nest.
+     */
+    public void pause() {
+        if (pauses++ == 0) {
+            pausedAt = System.nanoTime();
+        }
+    }
+
+
+    public void resume() {
+        if (--pauses == 0) {
+            long paused = System.nanoTime() - pausedAt;
+            for (Frame frame : frames) {
+                frame.start += paused;
+            }
+        }
+    }
+
+
+    /**
+     * Counts an inference step (a node transform) for the current frame.
+     */
+    public void step() {
+        Frame frame = frames.peek();
+        if (frame != null) {
+            frame.entry.steps++;
+        } else {
+            outsideSteps++;
+        }
+    }
+
+
+    public void write() {
+        writeReport(prefix + ".txt");
+        writeStacks(prefix + ".collapsed");
+        _.msg("Wrote profile to " + prefix + ".txt and " + prefix + ".collapsed");
+    }
+
+
+    private void writeReport(@NotNull String path) {
+        List<Entry> ranked = new ArrayList<>(entries.values());
+        Collections.sort(ranked, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry a, Entry b) {
+                return Long.compare(b.exclusive, a.exclusive);
+            }
+        });
+
+        long total = 0;
+        for (Entry e : ranked) {
+            total += e.exclusive;
+        }
+
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%d functions and modules analyzed, %.1f ms of inference in them",
+                ranked.size(), total / 1e6));
+        if (outsideSteps > 0) {
+            sb.append(String.format(", %d steps outside them", outsideSteps));
+        }
+        sb.append("\n\n");
+        sb.append(String.format("%10s %6s %10s %8s %10s  %-8s %s\n",
+                "excl ms", "excl%", "incl ms", "analyses", "steps", "kind", "name (location)"));
+
+        Map<String, String> sources = new HashMap<>();
+        int n = 0;
+        for (Entry e : ranked) {
+            if (n++ == REPORT_LIMIT) {
+                sb.append("... ").append(ranked.size() - REPORT_LIMIT).append(" more\n");
+                break;
+            }
+            sb.append(String.format("%10.1f %5.1f%% %10.1f %8d %10d  %-8s %s (%s)\n",
+                    e.exclusive / 1e6, total == 0 ? 0 : 100.0 * e.exclusive / total, e.inclusive / 1e6,
+                    e.analyses, e.steps, e.kind, e.name, location(e.node, sources)));
+        }
+        writeFile(path, sb.toString());
+    }
+
+
+    // file:line, reading the file to find the line
+    @NotNull
+    private static String location(@NotNull Node node, @NotNull Map<String, String> sources) {
+        if (node.file == null) {
+            return "?";
+        }
+        String source = sources.get(node.file);
+        if (source == null) {
+            source = _.readFile(node.file);
+            if (source == null) {
+                source = "";
+            }
+            sources.put(node.file, source);
+        }
+        int line = 1;
+        for (int i = 0; i < node.start && i < source.length(); i++) {
+            if (source.charAt(i) == '\n') {
+                line++;
+            }
+        }
+        return node.file + ":" + line;
+    }
+
+
+    private void writeStacks(@NotNull String path) {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Long> e : new TreeMap<>(stacks).entrySet()) {
+            long micros = e.getValue() / 1000;
+            if (micros > 0) {
+                sb.append(e.getKey()).append(' ').append(micros).append('\n');
+            }
+        }
+        writeFile(path, sb.toString());
+    }
+
+
+    private static void writeFile(@NotNull String path, @NotNull String content) {
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(path), UTF_8)) {
+            out.write(content);
+        } catch (IOException e) {
+            _.msg("Failed to write profile " + path + ": " + e);
+        }
+    }
+
+
+    @Nullable
+    public static Profiler create(@NotNull Map<String, Object> options) {
+        Object prefix = options.get("profile");
+        return prefix instanceof String ? new Profiler((String) prefix) : null;
+    }
+}
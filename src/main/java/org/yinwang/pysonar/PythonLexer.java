@@ -0,0 +1,443 @@
+package org.yinwang.pysonar;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Splits Python source into the tokens {@link PythonParser} reads: names
+ * (keywords included), numbers, strings and operators, with NEWLINE, INDENT
+ * and DEDENT for the layout, following CPython's tokenizer. Comments, blank
+ * lines and line continuations produce no tokens.
+ *
+ * Positions are kept both as char offsets into the source and as CPython
+ * reports them: a line number counting \n, \r\n and \r, and a column in
+ * UTF-8 bytes.
+ */
+class PythonLexer {
+
+    static final int NAME = 0;
+    static final int NUMBER = 1;
+    static final int STRING = 2;
+    static final int OP = 3;
+    static final int NEWLINE = 4;
+    static final int INDENT = 5;
+    static final int DEDENT = 6;
+    static final int END = 7;
+
+    private static final int TAB_SIZE = 8;
+
+    // longest first
+    private static final String[] OPERATORS = {
+            "**=", "//=", ">>=", "<<=", "...",
+            "**", "//", ">>", "<<", "<=", ">=", "==", "!=", "<>", "->", ":=",
+            "+=", "-=", "*=", "/=", "%=", "&=", "|=", "^=", "@=",
+            "+", "-", "*", "/", "%", "@", "&", "|", "^", "~", "<", ">",
+            "(", ")", "[", "]", "{", "}", ",", ":", ".", ";", "=", "`"
+    };
+
+
+    static class Token {
+        final int type;
+        @NotNull
+        final String text;
+        final int start;
+        final int end;
+        final int line;
+        final int col;
+
+
+        Token(int type, @NotNull String text, int start, int end, int line, int col) {
+            this.type = type;
+            this.text = text;
+            this.start = start;
+            this.end = end;
+            this.line = line;
+            this.col = col;
+        }
+
+
+        @NotNull
+        @Override
+        public String toString() {
+            return "'" + text + "' at line " + line;
+        }
+    }
+
+
+    @NotNull
+    private final String s;
+    private final boolean python3;
+    private int pos = 0;
+    private int line = 1;
+    private int lineStart = 0;
+    private int depth = 0;          // of open brackets
+    private int[] indents = new int[16];
+    private int[] altIndents = new int[16];   // with tabs counting as one column
+    private int nIndents = 1;
+
+    // the UTF-8 length of the current line up to colPos
+    private int colPos = 0;
+    private int colBytes = 0;
+
+    @NotNull
+    private final List<Token> tokens = new ArrayList<>();
+
+
+    PythonLexer(@NotNull String s, boolean python3) {
+        this.s = s;
+        this.python3 = python3;
+    }
+
+
+    @NotNull
+    List<Token> tokenize() {
+        int n = s.length();
+        boolean atLineStart = true;
+
+        while (true) {
+            if (atLineStart && depth == 0) {
+                if (!indent()) {
+                    break;
+                }
+                atLineStart = false;
+            }
+
+            if (pos >= n) {
+                break;
+            }
+
+            char c = s.charAt(pos);
+            if (c == ' ' || c == '\t' || c == '\f') {
+                pos++;
+            } else if (c == '#') {
+                skipComment();
+            } else if (c == '\\') {
+                int after = newlineLength(pos + 1);
+                if (after == 0) {
+                    if (pos + 1 >= n) {
+                        throw error("unexpected EOF after line continuation");
+                    }
+                    throw error("unexpected character after line continuation character");
+                }
+                newline(pos + 1 + after);
+            } else if (c == '\n' || c == '\r') {
+                if (depth == 0) {
+                    add(NEWLINE, pos, pos + newlineLength(pos));
+                    atLineStart = true;
+                }
+                newline(pos + newlineLength(pos));
+            } else if (Character.isDigit(c) || (c == '.' && pos + 1 < n && Character.isDigit(s.charAt(pos + 1)))) {
+                number();
+            } else if (c == '"' || c == '\'') {
+                string(pos);
+            } else if (isIdentifierStart(c)) {
+                name();
+            } else {
+                operator();
+            }
+        }
+
+        if (!tokens.isEmpty() && last().type != NEWLINE) {
+            add(NEWLINE, pos, pos);
+        }
+        while (nIndents > 1) {
+            nIndents--;
+            add(DEDENT, pos, pos);
+        }
+        add(END, pos, pos);
+        return tokens;
+    }
+
+
+    // reads the indentation of a line, skipping blank lines; false at the end
+    private boolean indent() {
+        int n = s.length();
+        while (true) {
+            int col = 0;
+            int alt = 0;
+            while (pos < n) {
+                char c = s.charAt(pos);
+                if (c == ' ') {
+                    col++;
+                    alt++;
+                } else if (c == '\t') {
+                    col = (col / TAB_SIZE + 1) * TAB_SIZE;
+                    alt++;
+                } else if (c == '\f') {
+                    col = alt = 0;
+                } else {
+                    break;
+                }
+                pos++;
+            }
+
+            if (pos >= n) {
+                return false;
+            }
+
+            char c = s.charAt(pos);
+            if (c == '#') {
+                skipComment();
+                if (pos >= n) {
+                    return false;
+                }
+            }
+            c = s.charAt(pos);
+            if (c == '\n' || c == '\r') {
+                newline(pos + newlineLength(pos));
+                continue;
+            }
+            if (c == '\\' && newlineLength(pos + 1) > 0) {
+                // a continued line starts where the continuation ends
+                return true;
+            }
+
+            int top = indents[nIndents - 1];
+            if (col > top) {
+                if (python3 && alt <= altIndents[nIndents - 1]) {
+                    throw error("inconsistent use of tabs and spaces in indentation");
+                }
+                if (nIndents == indents.length) {
+                    indents = java.util.Arrays.copyOf(indents, nIndents * 2);
+                    altIndents = java.util.Arrays.copyOf(altIndents, nIndents * 2);
+                }
+                indents[nIndents] = col;
+                altIndents[nIndents] = alt;
+                nIndents++;
+                add(INDENT, pos, pos);
+            } else {
+                while (nIndents > 1 && col < indents[nIndents - 1]) {
+                    nIndents--;
+                    add(DEDENT, pos, pos);
+                }
+                if (col != indents[nIndents - 1]) {
+                    throw error("unindent does not match any outer indentation level");
+                }
+                if (python3 && alt != altIndents[nIndents - 1]) {
+                    throw error("inconsistent use of tabs and spaces in indentation");
+                }
+            }
+            return true;
+        }
+    }
+
+
+    private void skipComment() {
+        int n = s.length();
+        while (pos < n && s.charAt(pos) != '\n' && s.charAt(pos) != '\r') {
+            pos++;
+        }
+    }
+
+
+    private int newlineLength(int i) {
+        if (i >= s.length()) {
+            return 0;
+        }
+        char c = s.charAt(i);
+        if (c == '\n') {
+            return 1;
+        } else if (c == '\r') {
+            return i + 1 < s.length() && s.charAt(i + 1) == '\n' ? 2 : 1;
+        } else {
+            return 0;
+        }
+    }
+
+
+    // moves to next, the start of a new line
+    private void newline(int next) {
+        pos = next;
+        line++;
+        lineStart = colPos = next;
+        colBytes = 0;
+    }
+
+
+    private void name() {
+        int start = pos;
+        int n = s.length();
+        pos++;
+        while (pos < n && isIdentifierPart(s.charAt(pos))) {
+            pos++;
+        }
+
+        if (pos < n && (s.charAt(pos) == '"' || s.charAt(pos) == '\'') && isStringPrefix(s.substring(start, pos))) {
+            string(start);
+        } else {
+            add(NAME, start, pos);
+        }
+    }
+
+
+    private boolean isStringPrefix(@NotNull String prefix) {
+        String p = prefix.toLowerCase();
+        if (p.length() > 2) {
+            return false;
+        }
+        if (python3) {
+            return p.equals("r") || p.equals("u") || p.equals("b") || p.equals("br") || p.equals("rb") ||
+                    p.equals("f") || p.equals("fr") || p.equals("rf");
+        } else {
+            return p.equals("r") || p.equals("u") || p.equals("b") || p.equals("br") || p.equals("ur");
+        }
+    }
+
+
+    // the prefix, if any, starts at start and the quote is at pos
+    private void string(int start) {
+        int n = s.length();
+        char q = s.charAt(pos);
+        boolean triple = pos + 2 < n && s.charAt(pos + 1) == q && s.charAt(pos + 2) == q;
+        int startLine = line;
+        int startCol = col(start);
+        pos += triple ? 3 : 1;
+
+        while (true) {
+            if (pos >= n) {
+                throw error(triple ? "EOF while scanning triple-quoted string literal" :
+                        "EOL while scanning string literal");
+            }
+            char c = s.charAt(pos);
+            if (c == '\\') {
+                int nl = newlineLength(pos + 1);
+                if (nl > 0) {
+                    newline(pos + 1 + nl);
+                } else {
+                    pos += 2;
+                }
+            } else if (c == '\n' || c == '\r') {
+                if (!triple) {
+                    throw error("EOL while scanning string literal");
+                }
+                newline(pos + newlineLength(pos));
+            } else if (c == q && (!triple || (pos + 2 < n && s.charAt(pos + 1) == q && s.charAt(pos + 2) == q))) {
+                pos += triple ? 3 : 1;
+                break;
+            } else {
+                pos++;
+            }
+        }
+        tokens.add(new Token(STRING, s.substring(start, pos), start, pos, startLine, startCol));
+    }
+
+
+    private void number() {
+        int start = pos;
+        int n = s.length();
+        char c = s.charAt(pos);
+
+        if (c == '0' && pos + 1 < n && "xXoObB".indexOf(s.charAt(pos + 1)) >= 0) {
+            pos += 2;
+            while (pos < n && (Character.isLetterOrDigit(s.charAt(pos)) || s.charAt(pos) == '_')) {
+                pos++;
+            }
+        } else {
+            digits();
+            if (pos < n && s.charAt(pos) == '.') {
+                pos++;
+                digits();
+            }
+            if (pos < n && (s.charAt(pos) == 'e' || s.charAt(pos) == 'E')) {
+                int e = pos;
+                pos++;
+                if (pos < n && (s.charAt(pos) == '+' || s.charAt(pos) == '-')) {
+                    pos++;
+                }
+                if (pos < n && Character.isDigit(s.charAt(pos))) {
+                    digits();
+                } else {
+                    pos = e;
+                }
+            }
+            if (pos < n && "jJlL".indexOf(s.charAt(pos)) >= 0) {
+                pos++;
+            }
+        }
+
+        add(NUMBER, start, pos);
+    }
+
+
+    private void digits() {
+        int n = s.length();
+        while (pos < n && (Character.isDigit(s.charAt(pos)) || s.charAt(pos) == '_')) {
+            pos++;
+        }
+    }
+
+
+    private void operator() {
+        for (String op : OPERATORS) {
+            if (s.startsWith(op, pos)) {
+                char c = op.charAt(0);
+                if (op.length() == 1 && "([{".indexOf(c) >= 0) {
+                    depth++;
+                } else if (op.length() == 1 && ")]}".indexOf(c) >= 0) {
+                    if (depth > 0) {
+                        depth--;
+                    }
+                }
+                add(OP, pos, pos + op.length());
+                pos += op.length();
+                return;
+            }
+        }
+        throw error("invalid character '" + s.charAt(pos) + "'");
+    }
+
+
+    private void add(int type, int start, int end) {
+        tokens.add(new Token(type, s.substring(start, end), start, end, line, col(start)));
+    }
+
+
+    @NotNull
+    private Token last() {
+        return tokens.get(tokens.size() - 1);
+    }
+
+
+    // CPython's col_offset: UTF-8 bytes from the start of the line
+    private int col(int offset) {
+        if (offset < colPos) {
+            colPos = lineStart;
+            colBytes = 0;
+        }
+        for (int i = colPos; i < offset; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                colBytes += 1;
+            } else if (c < 0x800) {
+                colBytes += 2;
+            } else if (Character.isSurrogate(c)) {
+                colBytes += 2;      // four for the pair
+            } else {
+                colBytes += 3;
+            }
+        }
+        colPos = offset;
+        return colBytes;
+    }
+
+
+    // Python 2 identifiers are ASCII
+    private boolean isIdentifierStart(char c) {
+        return c == '_' || (c < 0x80 ? Character.isLetter(c) : python3 && Character.isLetter(c));
+    }
+
+
+    private boolean isIdentifierPart(char c) {
+        return c == '_' || (c < 0x80 ? Character.isLetterOrDigit(c) :
+                python3 && (Character.isLetterOrDigit(c) || Character.getType(c) == Character.NON_SPACING_MARK));
+    }
+
+
+    @NotNull
+    private PythonParser.SyntaxError error(@NotNull String msg) {
+        return new PythonParser.SyntaxError(msg, line);
+    }
+}
@@ -0,0 +1,2382 @@
+package org.yinwang.pysonar;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.yinwang.pysonar.PythonLexer.Token;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.yinwang.pysonar.PythonLexer.*;
+
+
+/**
+ * A Python parser that runs in the JVM, used instead of dump_python.py with
+ * the option "--parser java", so that parsing needs no interpreter
+ * processes and no JSON exchange files.
+ *
+ * It produces the tree dump_python.py writes, in the shapes that
+ * {@link Parser#convert} reads, and computes start and end offsets with the
+ * same heuristics dump_python.py uses, so that both front ends give the same
+ * ASTs. Node positions and shapes follow CPython 3.11. A file that doesn't
+ * parse as Python 3 is parsed again as Python 2, with the shapes of the
+ * Python 2 AST.
+ *
+ * Constructs that Parser can't convert are reported as syntax errors:
+ * f-strings, async and await, assignment expressions, annotated
+ * assignments, the matrix multiplication operator and match statements.
+ *
+ * An instance parses one file, so files can be parsed on several threads.
+ */
+public class PythonParser {
+
+    /**
+     * A source file that can't be parsed.
+     */
+    public static class SyntaxError extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        public final int line;
+
+
+        public SyntaxError(@NotNull String msg, int line) {
+            super(msg + " (line " + line + ")");
+            this.line = line;
+        }
+    }
+
+
+    private static final Set<String> KEYWORDS3 = new HashSet<>(Arrays.asList(
+            "False", "None", "True", "and", "as", "assert", "async", "await", "break", "class", "continue",
+            "def", "del", "elif", "else", "except", "finally", "for", "from", "global", "if", "import",
+            "in", "is", "lambda", "nonlocal", "not", "or", "pass", "raise", "return", "try", "while",
+            "with", "yield"));
+
+    private static final Set<String> KEYWORDS2 = new HashSet<>(Arrays.asList(
+            "and", "as", "assert", "break", "class", "continue", "def", "del", "elif", "else", "except",
+            "exec", "finally", "for", "from", "global", "if", "import", "in", "is", "lambda", "not", "or",
+            "pass", "print", "raise", "return", "try", "while", "with", "yield"));
+
+    private static final Map<String, String> BINARY_OPS = new HashMap<>();
+    private static final Map<String, String> AUG_OPS = new HashMap<>();
+    private static final String[][] LEVELS = {
+            {"|"}, {"^"}, {"&"}, {"<<", ">>"}, {"+", "-"}, {"*", "/", "//", "%", "@"}
+    };
+
+    static {
+        String[] ops = {
+                "|", "BitOr", "^", "BitXor", "&", "BitAnd", "<<", "LShift", ">>", "RShift",
+                "+", "Add", "-", "Sub", "*", "Mult", "/", "Div", "//", "FloorDiv", "%", "Mod",
+                "@", "MatMult", "**", "Pow"
+        };
+        for (int i = 0; i < ops.length; i += 2) {
+            BINARY_OPS.put(ops[i], ops[i + 1]);
+            AUG_OPS.put(ops[i] + "=", ops[i + 1]);
+        }
+    }
+
+    // as in dump_python.py, which looks for it in the repr of the first 80 bytes
+    private static final int DECL_PREFIX = 80;
+    private static final Pattern ENCODING_DECL =
+            Pattern.compile("#.*coding\\s*[:=]\\s*([\\w\\d\\-]+)", Pattern.UNICODE_CHARACTER_CLASS);
+    private static final Pattern ENCODING_DECL_LINE =
+            Pattern.compile("#.*coding\\s*[:=]\\s*[\\w\\d\\-]+",
+                    Pattern.UNICODE_CHARACTER_CLASS | Pattern.UNIX_LINES);
+
+    // offsets of the node before dump_python.py's heuristics run
+    private static final String POS = "pos";
+
+
+    @NotNull
+    private final String s;
+    private final boolean python3;
+    @NotNull
+    private final int[] lineStarts;
+    private List<Token> tokens;
+    private int p = 0;
+    private boolean printStatement = true;
+
+
+    private PythonParser(@NotNull String s, boolean python3) {
+        this.s = s;
+        this.python3 = python3;
+
+        List<Integer> starts = new ArrayList<>();
+        starts.add(0);
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) == '\n') {
+                starts.add(i + 1);
+            }
+        }
+        lineStarts = new int[starts.size()];
+        for (int i = 0; i < lineStarts.length; i++) {
+            lineStarts[i] = starts.get(i);
+        }
+    }
+
+
+    /**
+     * Parses a file into the tree dump_python.py would write for it, as
+     * Python 3 and then as Python 2.
+     *
+     * @throws SyntaxError if the file can't be read or parsed
+     */
+    @NotNull
+    public static Map<String, Object> parseFile(@NotNull String filename) {
+        String source;
+        try {
+            source = readSource(filename);
+        } catch (IOException e) {
+            throw new SyntaxError("can't read " + filename + ": " + e.getMessage(), 1);
+        }
+
+        try {
+            return parse(source, true);
+        } catch (SyntaxError e3) {
+            try {
+                return parse(source, false);
+            } catch (SyntaxError e2) {
+                throw e3;
+            }
+        }
+    }
+
+
+    /**
+     * Parses source text read by {@link #readSource} as Python 3 or Python 2.
+     *
+     * @throws SyntaxError if it doesn't parse in that dialect
+     */
+    @NotNull
+    public static Map<String, Object> parse(@NotNull String source, boolean python3) {
+        if (source.indexOf('\0') >= 0) {
+            throw new SyntaxError("source code cannot contain null bytes", 1);
+        }
+        try {
+            return new PythonParser(source, python3).parse();
+        } catch (StackOverflowError e) {
+            throw new SyntaxError("too many nested parentheses", 1);
+        }
+    }
+
+
+    /**
+     * Reads a file the way dump_python.py does: decoded as Latin-1 or as its
+     * encoding declaration says, with the declaration and any BOM blanked.
+     *
+     * @throws SyntaxError if it can't be decoded
+     */
+    @NotNull
+    public static String readSource(@NotNull String filename) throws IOException {
+        byte[] bytes = Files.readAllBytes(new File(filename).toPath());
+
+        String prefix = bytesRepr(new String(bytes, 0, Math.min(bytes.length, DECL_PREFIX),
+                Charset.forName("ISO-8859-1")));
+        Matcher m = ENCODING_DECL.matcher(prefix);
+        Charset charset = Charset.forName("ISO-8859-1");
+        int declLength = 0;
+        if (m.find()) {
+            declLength = m.group().length();
+            Charset declared = lookupCharset(m.group(1));
+            if (declared != null) {
+                charset = declared;
+            }
+        }
+
+        String text;
+        try {
+            text = charset.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPORT)
+                    .onUnmappableCharacter(CodingErrorAction.REPORT)
+                    .decode(ByteBuffer.wrap(bytes)).toString();
+        } catch (CharacterCodingException e) {
+            throw new SyntaxError("can't decode " + filename + " as " + charset, 1);
+        }
+
+        text = text.replace('\uFEFF', ' ');
+        if (declLength > 0) {
+            StringBuilder blank = new StringBuilder("#");
+            for (int i = 1; i < declLength; i++) {
+                blank.append(' ');
+            }
+            text = ENCODING_DECL_LINE.matcher(text).replaceAll(Matcher.quoteReplacement(blank.toString()));
+        }
+        return text;
+    }
+
+
+    @Nullable
+    private static Charset lookupCharset(@NotNull String name) {
+        String lower = name.toLowerCase();
+        if (lower.equals("latin-1") || lower.equals("latin_1")) {
+            lower = "iso-8859-1";
+        }
+        String[] candidates = {lower, lower.replace('_', '-'), lower.replace("-", "").replace("_", "")};
+        for (String c : candidates) {
+            try {
+                return Charset.forName(c);
+            } catch (Exception e) {
+                // try the next spelling
+            }
+        }
+        return null;
+    }
+
+
+    @NotNull
+    private Map<String, Object> parse() {
+        tokens = new PythonLexer(s, python3).tokenize();
+        List<Object> body = new ArrayList<>();
+        while (peek().type != END) {
+            statement(body);
+        }
+        Map<String, Object> module = node("Module", null);
+        module.put("body", body);
+        improve(module);
+        return module;
+    }
+
+
+    // ------------------------- statements -------------------------
+
+
+    private void statement(@NotNull List<Object> body) {
+        Token t = peek();
+        if (t.type == OP && t.text.equals("@")) {
+            body.add(decorated());
+            return;
+        }
+        if (t.type == NAME) {
+            switch (t.text) {
+                case "if":
+                    body.add(ifStatement());
+                    return;
+                case "while":
+                    body.add(whileStatement());
+                    return;
+                case "for":
+                    body.add(forStatement());
+                    return;
+                case "try":
+                    body.add(tryStatement());
+                    return;
+                case "with":
+                    body.add(withStatement());
+                    return;
+                case "def":
+                    body.add(functionDef(new ArrayList<>(), null));
+                    return;
+                case "class":
+                    body.add(classDef(new ArrayList<>(), null));
+                    return;
+                case "async":
+                    if (python3) {
+                        throw unsupported("async");
+                    }
+                    break;
+                case "match":
+                    if (python3 && isMatchStatement()) {
+                        throw unsupported("match statement");
+                    }
+                    break;
+            }
+        }
+        simpleStatements(body);
+    }
+
+
+    // "match" is a keyword only at the start of a match statement
+    private boolean isMatchStatement() {
+        int depth = 0;
+        for (int i = p + 1; i < tokens.size(); i++) {
+            Token t = tokens.get(i);
+            if (t.type == NEWLINE || t.type == END) {
+                return false;
+            }
+            if (t.type == OP) {
+                if ("([{".contains(t.text)) {
+                    depth++;
+                } else if (")]}".contains(t.text)) {
+                    depth--;
+                } else if (t.text.equals(":") && depth == 0) {
+                    return i > p + 1 && tokens.get(i + 1).type == NEWLINE;
+                } else if (i == p + 1 && !t.text.equals("(") && !t.text.equals("[") && !t.text.equals("{") &&
+                        !t.text.equals("-") && !t.text.equals("*"))
+                {
+                    return false;
+                }
+            }
+        }
+        return false;
+    }
+
+
+    private void simpleStatements(@NotNull List<Object> body) {
+        while (true) {
+            body.add(smallStatement());
+            if (!acceptOp(";") || peek().type == NEWLINE) {
+                break;
+            }
+        }
+        if (peek().type != NEWLINE) {
+            throw unexpected();
+        }
+        p++;
+    }
+
+
+    @NotNull
+    private Map<String, Object> smallStatement() {
+        Token t = peek();
+        if (t.type == NAME) {
+            switch (t.text) {
+                case "pass":
+                    p++;
+                    return node("Pass", t);
+                case "break":
+                    p++;
+                    return node("Break", t);
+                case "continue":
+                    p++;
+                    return node("Continue", t);
+                case "return": {
+                    p++;
+                    Map<String, Object> ret = node("Return", t);
+                    ret.put("value", atStatementEnd() ? null : starExpressions());
+                    return ret;
+                }
+                case "raise":
+                    return raiseStatement();
+                case "global":
+                    return global("Global");
+                case "nonlocal":
+                    if (python3) {
+                        return global("Nonlocal");
+                    }
+                    break;
+                case "del": {
+                    p++;
+                    Map<String, Object> del = node("Delete", t);
+                    del.put("targets", expressionList());
+                    return del;
+                }
+                case "assert": {
+                    p++;
+                    Map<String, Object> a = node("Assert", t);
+                    a.put("test", expression());
+                    a.put("msg", acceptOp(",") ? expression() : null);
+                    return a;
+                }
+                case "import":
+                    return importStatement();
+                case "from":
+                    return importFrom();
+                case "print":
+                    if (!python3 && printStatement) {
+                        return printStatement();
+                    }
+                    break;
+                case "exec":
+                    if (!python3) {
+                        return execStatement();
+                    }
+                    break;
+            }
+        }
+        return expressionStatement();
+    }
+
+
+    @NotNull
+    private Map<String, Object> expressionStatement() {
+        Token start = peek();
+        Map<String, Object> first = isKeyword("yield") ? yieldExpression() : starExpressions();
+
+        if (isOp("=")) {
+            List<Object> targets = new ArrayList<>();
+            targets.add(first);
+            while (acceptOp("=")) {
+                targets.add(isKeyword("yield") ? yieldExpression() : starExpressions());
+            }
+            Map<String, Object> assign = node("Assign", start);
+            assign.put("value", targets.remove(targets.size() - 1));
+            assign.put("targets", targets);
+            return assign;
+        }
+
+        Token t = peek();
+        if (t.type == OP && AUG_OPS.containsKey(t.text)) {
+            p++;
+            Map<String, Object> aug = node("AugAssign", start);
+            aug.put("target", first);
+            aug.put("op", op(AUG_OPS.get(t.text)));
+            aug.put("value", isKeyword("yield") ? yieldExpression() : starExpressions());
+            return aug;
+        }
+
+        if (python3 && isOp(":")) {
+            throw unsupported("annotated assignment");
+        }
+
+        Map<String, Object> expr = node("Expr", start);
+        expr.put("value", first);
+        return expr;
+    }
+
+
+    @NotNull
+    private Map<String, Object> raiseStatement() {
+        Token t = next();
+        Map<String, Object> raise = node("Raise", t);
+        if (python3) {
+            if (!atStatementEnd()) {
+                raise.put("exc", expression());
+                if (acceptKeyword("from")) {
+                    raise.put("cause", expression());
+                }
+            }
+        } else if (!atStatementEnd()) {
+            expression();      // lost like ExceptHandler's type
+            if (acceptOp(",")) {
+                raise.put("inst", expression());
+                if (acceptOp(",")) {
+                    raise.put("tback", expression());
+                }
+            }
+        }
+        return raise;
+    }
+
+
+    @NotNull
+    private Map<String, Object> global(@NotNull String type) {
+        Token t = next();
+        List<Object> names = new ArrayList<>();
+        do {
+            names.add(expectName().text);
+        } while (acceptOp(","));
+        Map<String, Object> global = node(type, t);
+        global.put("names", names);
+        return global;
+    }
+
+
+    @NotNull
+    private Map<String, Object> importStatement() {
+        Token t = next();
+        List<Object> names = new ArrayList<>();
+        do {
+            Token start = peek();
+            String name = dottedName();
+            names.add(alias(name, acceptKeyword("as") ? expectName().text : null, start));
+        } while (acceptOp(","));
+        Map<String, Object> imp = node("Import", t);
+        imp.put("names", names);
+        return imp;
+    }
+
+
+    @NotNull
+    private Map<String, Object> importFrom() {
+        Token t = next();
+        int level = 0;
+        while (isOp(".") || isOp("...")) {
+            level += next().text.length();
+        }
+        String module = isKeyword("import") ? null : dottedName();
+        expectKeyword("import");
+
+        List<Object> names = new ArrayList<>();
+        if (isOp("*")) {
+            names.add(alias("*", null, next()));
+        } else {
+            boolean paren = acceptOp("(");
+            do {
+                if (paren && isOp(")")) {
+                    break;
+                }
+                Token start = peek();
+                String name = expectName().text;
+                names.add(alias(name, acceptKeyword("as") ? expectName().text : null, start));
+                if (!python3 && "__future__".equals(module) && name.equals("print_function")) {
+                    printStatement = false;
+                }
+            } while (acceptOp(","));
+            if (paren) {
+                expectOp(")");
+            }
+        }
+        if (names.isEmpty()) {
+            throw unexpected();
+        }
+
+        Map<String, Object> from = node("ImportFrom", t);
+        from.put("module", module);
+        from.put("names", names);
+        from.put("level", (double) level);
+        return from;
+    }
+
+
+    @NotNull
+    private Map<String, Object> alias(@NotNull String name, @Nullable String asname, @NotNull Token start) {
+        // Python 2 aliases have no position
+        Map<String, Object> alias = node("alias", python3 ? start : null);
+        alias.put("name", name);
+        alias.put("asname", asname);
+        return alias;
+    }
+
+
+    @NotNull
+    private String dottedName() {
+        StringBuilder sb = new StringBuilder(expectName().text);
+        while (acceptOp(".")) {
+            sb.append('.').append(expectName().text);
+        }
+        return sb.toString();
+    }
+
+
+    @NotNull
+    private Map<String, Object> printStatement() {
+        Token t = next();
+        Map<String, Object> print = node("Print", t);
+        List<Object> values = new ArrayList<>();
+        boolean nl = true;
+        boolean more = true;
+        if (acceptOp(">>")) {
+            print.put("dest", expression());
+            more = acceptOp(",");
+        }
+        while (more && !atStatementEnd()) {
+            values.add(expression());
+            nl = !acceptOp(",");
+            more = !nl;
+        }
+        print.put("values", values);
+        print.put("nl", nl);
+        return print;
+    }
+
+
+    @NotNull
+    private Map<String, Object> execStatement() {
+        Token t = next();
+        Map<String, Object> exec = node("Exec", t);
+        exec.put("body", binary(0));
+        if (acceptKeyword("in")) {
+            exec.put("globals", expression());
+            if (acceptOp(",")) {
+                exec.put("locals", expression());
+            }
+        }
+        return exec;
+    }
+
+
+    @NotNull
+    private Map<String, Object> ifStatement() {
+        Token t = next();   // if or elif
+        Map<String, Object> ifNode = node("If", t);
+        ifNode.put("test", namedExpression());
+        expectOp(":");
+        ifNode.put("body", block());
+
+        List<Object> orelse = new ArrayList<>();
+        if (isKeyword("elif")) {
+            orelse.add(ifStatement());
+        } else if (acceptKeyword("else")) {
+            expectOp(":");
+            orelse = block();
+        }
+        ifNode.put("orelse", orelse);
+        return ifNode;
+    }
+
+
+    @NotNull
+    private Map<String, Object> whileStatement() {
+        Token t = next();
+        Map<String, Object> loop = node("While", t);
+        loop.put("test", namedExpression());
+        expectOp(":");
+        loop.put("body", block());
+        loop.put("orelse", elseBlock());
+        return loop;
+    }
+
+
+    @NotNull
+    private Map<String, Object> forStatement() {
+        Token t = next();
+        Map<String, Object> loop = node("For", t);
+        loop.put("target", targetList());
+        expectKeyword("in");
+        loop.put("iter", starExpressions());
+        expectOp(":");
+        loop.put("body", block());
+        loop.put("orelse", elseBlock());
+        return loop;
+    }
+
+
+    @NotNull
+    private List<Object> elseBlock() {
+        if (acceptKeyword("else")) {
+            expectOp(":");
+            return block();
+        }
+        return new ArrayList<>();
+    }
+
+
+    @NotNull
+    private Map<String, Object> tryStatement() {
+        Token t = next();
+        expectOp(":");
+        List<Object> body = block();
+
+        List<Object> handlers = new ArrayList<>();
+        while (isKeyword("except")) {
+            Token e = next();
+            if (python3 && isOp("*")) {
+                throw unsupported("except*");
+            }
+            Map<String, Object> handler = node("ExceptHandler", e);
+            if (!isOp(":")) {
+                // dump_python.py writes the node's class over its "type" field
+                expression();
+                if (acceptKeyword("as")) {
+                    handler.put("name", python3 ? expectName().text : expression());
+                } else if (!python3 && acceptOp(",")) {
+                    handler.put("name", expression());
+                }
+            }
+            expectOp(":");
+            handler.put("body", block());
+            handlers.add(handler);
+        }
+
+        List<Object> orelse = new ArrayList<>();
+        if (!handlers.isEmpty()) {
+            orelse = elseBlock();
+        }
+        List<Object> finalbody = new ArrayList<>();
+        if (acceptKeyword("finally")) {
+            expectOp(":");
+            finalbody = block();
+        }
+        if (handlers.isEmpty() && finalbody.isEmpty()) {
+            throw unexpected();
+        }
+
+        if (python3) {
+            Map<String, Object> tryNode = node("Try", t);
+            tryNode.put("body", body);
+            tryNode.put("handlers", handlers);
+            tryNode.put("orelse", orelse);
+            tryNode.put("finalbody", finalbody);
+            return tryNode;
+        }
+
+        if (!handlers.isEmpty()) {
+            Map<String, Object> tryExcept = node("TryExcept", t);
+            tryExcept.put("body", body);
+            tryExcept.put("handlers", handlers);
+            tryExcept.put("orelse", orelse);
+            if (finalbody.isEmpty()) {
+                return tryExcept;
+            }
+            body = new ArrayList<>();
+            body.add(tryExcept);
+        }
+        Map<String, Object> tryFinally = node("TryFinally", t);
+        tryFinally.put("body", body);
+        tryFinally.put("finalbody", finalbody);
+        return tryFinally;
+    }
+
+
+    @NotNull
+    private Map<String, Object> withStatement() {
+        Token t = next();
+        List<Map<String, Object>> items = null;
+        if (python3 && isOp("(")) {
+            int save = p;
+            try {
+                p++;
+                items = withItems();
+                expectOp(")");
+                if (!isOp(":")) {
+                    throw unexpected();
+                }
+            } catch (SyntaxError e) {
+                p = save;
+                items = null;
+            }
+        }
+        if (items == null) {
+            items = withItems();
+        }
+        expectOp(":");
+        List<Object> body = block();
+
+        if (python3) {
+            Map<String, Object> with = node("With", t);
+            with.put("items", items);
+            with.put("body", body);
+            return with;
+        }
+
+        // Python 2 nests a With for each item
+        Map<String, Object> with = null;
+        for (int i = items.size() - 1; i >= 0; i--) {
+            with = node("With", t);
+            with.put("context_expr", items.get(i).get("context_expr"));
+            with.put("optional_vars", items.get(i).get("optional_vars"));
+            with.put("body", body);
+            body = new ArrayList<>();
+            body.add(with);
+        }
+        return with;
+    }
+
+
+    @NotNull
+    private List<Map<String, Object>> withItems() {
+        List<Map<String, Object>> items = new ArrayList<>();
+        do {
+            if (isOp(")") && !items.isEmpty()) {
+                break;
+            }
+            Map<String, Object> item = node("withitem", null);
+            item.put("context_expr", expression());
+            item.put("optional_vars", acceptKeyword("as") ? targetItem() : null);
+            items.add(item);
+        } while (acceptOp(","));
+        return items;
+    }
+
+
+    @NotNull
+    private Map<String, Object> decorated() {
+        Token at = peek();
+        List<Object> decorators = new ArrayList<>();
+        while (acceptOp("@")) {
+            decorators.add(namedExpression());
+            if (peek().type != NEWLINE) {
+                throw unexpected();
+            }
+            p++;
+        }
+        if (isKeyword("def")) {
+            return functionDef(decorators, at);
+        } else if (isKeyword("class")) {
+            return classDef(decorators, at);
+        } else if (python3 && isKeyword("async")) {
+            throw unsupported("async");
+        } else {
+            throw unexpected();
+        }
+    }
+
+
+    // Python 3 puts a decorated definition at its keyword, Python 2 at the first decorator
+    @NotNull
+    private Map<String, Object> functionDef(@NotNull List<Object> decorators, @Nullable Token at) {
+        Token t = next();
+        Map<String, Object> def = node("FunctionDef", python3 || at == null ? t : at);
+        def.put("name", expectName().text);
+        expectOp("(");
+        def.put("args", parameters(true, ")"));
+        expectOp(")");
+        if (python3 && acceptOp("->")) {
+            def.put("returns", expression());
+        }
+        expectOp(":");
+        def.put("body", block());
+        def.put("decorator_list", decorators);
+        return def;
+    }
+
+
+    @NotNull
+    private Map<String, Object> classDef(@NotNull List<Object> decorators, @Nullable Token at) {
+        Token t = next();
+        Map<String, Object> cls = node("ClassDef", python3 || at == null ? t : at);
+        cls.put("name", expectName().text);
+        Map<String, Object> call = new HashMap<>();
+        call.put("args", new ArrayList<>());
+        call.put("keywords", new ArrayList<>());
+        if (isOp("(")) {
+            arguments(call);
+        }
+        cls.put("bases", call.get("args"));
+        cls.put("keywords", call.get("keywords"));
+        expectOp(":");
+        cls.put("body", block());
+        cls.put("decorator_list", decorators);
+        return cls;
+    }
+
+
+    @NotNull
+    private Map<String, Object> parameters(boolean annotations, @NotNull String close) {
+        List<Object> posonly = new ArrayList<>();
+        List<Object> args = new ArrayList<>();
+        List<Object> defaults = new ArrayList<>();
+        List<Object> kwonly = new ArrayList<>();
+        List<Object> kwDefaults = new ArrayList<>();
+        String vararg = null;
+        String kwarg = null;
+        boolean star = false;
+
+        while (!isOp(close)) {
+            if (python3 && acceptOp("/")) {
+                posonly.addAll(args);
+                args.clear();
+            } else if (acceptOp("*")) {
+                star = true;
+                if (peek().type == NAME) {
+                    vararg = expectName().text;
+                    annotation(annotations);
+                }
+            } else if (acceptOp("**")) {
+                kwarg = expectName().text;
+                annotation(annotations);
+            } else {
+                Token name = expectName();
+                Map<String, Object> arg;
+                if (python3) {
+                    arg = node("arg", name);
+                    arg.put("arg", name.text);
+                    arg.put("annotation", annotation(annotations));
+                } else {
+                    arg = node("Name", name);
+                    arg.put("id", name.text);
+                }
+                Object value = acceptOp("=") ? expression() : null;
+                if (star) {
+                    kwonly.add(arg);
+                    kwDefaults.add(value);
+                } else {
+                    args.add(arg);
+                    if (value != null) {
+                        defaults.add(value);
+                    } else if (!defaults.isEmpty()) {
+                        throw error("non-default argument follows default argument");
+                    }
+                }
+            }
+            if (!acceptOp(",")) {
+                break;
+            }
+        }
+
+        Map<String, Object> arguments = node("arguments", null);
+        arguments.put("posonlyargs", posonly);
+        arguments.put("args", args);
+        arguments.put("defaults", defaults);
+        arguments.put("kwonlyargs", kwonly);
+        arguments.put("kw_defaults", kwDefaults);
+        arguments.put("vararg", vararg);
+        arguments.put("kwarg", kwarg);
+        return arguments;
+    }
+
+
+    @Nullable
+    private Map<String, Object> annotation(boolean allowed) {
+        return python3 && allowed && acceptOp(":") ? expression() : null;
+    }
+
+
+    @NotNull
+    private List<Object> block() {
+        List<Object> body = new ArrayList<>();
+        if (peek().type == NEWLINE) {
+            p++;
+            if (peek().type != INDENT) {
+                throw error("expected an indented block");
+            }
+            p++;
+            while (peek().type != DEDENT && peek().type != END) {
+                statement(body);
+            }
+            if (peek().type == DEDENT) {
+                p++;
+            }
+        } else {
+            simpleStatements(body);
+        }
+        return body;
+    }
+
+
+    // ------------------------- expressions -------------------------
+
+
+    // star_expressions: a tuple if there are commas
+    @NotNull
+    private Map<String, Object> starExpressions() {
+        Token start = peek();
+        Map<String, Object> first = starExpression();
+        if (!isOp(",")) {
+            return first;
+        }
+        List<Object> elts = new ArrayList<>();
+        elts.add(first);
+        while (acceptOp(",")) {
+            if (!startsExpression(peek())) {
+                break;
+            }
+            elts.add(starExpression());
+        }
+        return tuple(elts, start);
+    }
+
+
+    @NotNull
+    private Map<String, Object> starExpression() {
+        if (isOp("*")) {
+            return starred(next());
+        }
+        return expression();
+    }
+
+
+    @NotNull
+    private Map<String, Object> starred(@NotNull Token star) {
+        Map<String, Object> starred = node("Starred", star);
+        starred.put("value", binary(0));
+        return starred;
+    }
+
+
+    @NotNull
+    private List<Object> expressionList() {
+        List<Object> list = new ArrayList<>();
+        do {
+            if (!startsExpression(peek())) {
+                break;
+            }
+            list.add(binary(0));
+        } while (acceptOp(","));
+        if (list.isEmpty()) {
+            throw unexpected();
+        }
+        return list;
+    }
+
+
+    // targets of for loops and comprehensions
+    @NotNull
+    private Map<String, Object> targetList() {
+        Token start = peek();
+        Map<String, Object> first = targetItem();
+        if (!isOp(",")) {
+            return first;
+        }
+        List<Object> elts = new ArrayList<>();
+        elts.add(first);
+        while (acceptOp(",")) {
+            if (!startsExpression(peek()) || isKeyword("in")) {
+                break;
+            }
+            elts.add(targetItem());
+        }
+        return tuple(elts, start);
+    }
+
+
+    @NotNull
+    private Map<String, Object> targetItem() {
+        if (isOp("*")) {
+            return starred(next());
+        }
+        return binary(0);
+    }
+
+
+    @NotNull
+    private Map<String, Object> namedExpression() {
+        Map<String, Object> e = expression();
+        if (isOp(":=")) {
+            throw unsupported("assignment expression");
+        }
+        return e;
+    }
+
+
+    @NotNull
+    private Map<String, Object> starNamedExpression() {
+        if (isOp("*")) {
+            return starred(next());
+        }
+        return namedExpression();
+    }
+
+
+    @NotNull
+    private Map<String, Object> expression() {
+        if (isKeyword("lambda")) {
+            return lambda();
+        }
+        Token start = peek();
+        Map<String, Object> body = orTest();
+        if (!acceptKeyword("if")) {
+            return body;
+        }
+        Map<String, Object> ifExp = node("IfExp", start);
+        ifExp.put("body", body);
+        ifExp.put("test", orTest());
+        expectKeyword("else");
+        ifExp.put("orelse", expression());
+        return ifExp;
+    }
+
+
+    @NotNull
+    private Map<String, Object> lambda() {
+        Token t = next();
+        Map<String, Object> lambda = node("Lambda", t);
+        lambda.put("args", parameters(false, ":"));
+        expectOp(":");
+        lambda.put("body", expression());
+        return lambda;
+    }
+
+
+    @NotNull
+    private Map<String, Object> orTest() {
+        return boolOp("or", "Or");
+    }
+
+
+    @NotNull
+    private Map<String, Object> boolOp(@NotNull String keyword, @NotNull String op) {
+        Token start = peek();
+        Map<String, Object> first = keyword.equals("or") ? boolOp("and", "And") : notTest();
+        if (!isKeyword(keyword)) {
+            return first;
+        }
+        List<Object> values = new ArrayList<>();
+        values.add(first);
+        while (acceptKeyword(keyword)) {
+            values.add(keyword.equals("or") ? boolOp("and", "And") : notTest());
+        }
+        Map<String, Object> bool = node("BoolOp", start);
+        bool.put("op", op(op));
+        bool.put("values", values);
+        return bool;
+    }
+
+
+    @NotNull
+    private Map<String, Object> notTest() {
+        if (isKeyword("not")) {
+            Token t = next();
+            Map<String, Object> not = node("UnaryOp", t);
+            not.put("op", op("Not"));
+            not.put("operand", notTest());
+            return not;
+        }
+        return comparison();
+    }
+
+
+    @NotNull
+    private Map<String, Object> comparison() {
+        Token start = peek();
+        Map<String, Object> left = binary(0);
+        List<Object> ops = new ArrayList<>();
+        List<Object> comparators = new ArrayList<>();
+        String op;
+        while ((op = comparisonOp()) != null) {
+            ops.add(op(op));
+            comparators.add(binary(0));
+        }
+        if (ops.isEmpty()) {
+            return left;
+        }
+        Map<String, Object> compare = node("Compare", start);
+        compare.put("left", left);
+        compare.put("ops", ops);
+        compare.put("comparators", comparators);
+        return compare;
+    }
+
+
+    @Nullable
+    private String comparisonOp() {
+        Token t = peek();
+        if (t.type == OP) {
+            switch (t.text) {
+                case "<":
+                    p++;
+                    return "Lt";
+                case ">":
+                    p++;
+                    return "Gt";
+                case "==":
+                    p++;
+                    return "Eq";
+                case ">=":
+                    p++;
+                    return "GtE";
+                case "<=":
+                    p++;
+                    return "LtE";
+                case "!=":
+                    p++;
+                    return "NotEq";
+                case "<>":
+                    if (!python3) {
+                        p++;
+                        return "NotEq";
+                    }
+                    break;
+            }
+        } else if (t.type == NAME) {
+            if (t.text.equals("in")) {
+                p++;
+                return "In";
+            } else if (t.text.equals("not") && peek(1).type == NAME && peek(1).text.equals("in")) {
+                p += 2;
+                return "NotIn";
+            } else if (t.text.equals("is")) {
+                p++;
+                return acceptKeyword("not") ? "IsNot" : "Is";
+            }
+        }
+        return null;
+    }
+
+
+    // the binary operators, by precedence level
+    @NotNull
+    private Map<String, Object> binary(int level) {
+        if (level == LEVELS.length) {
+            return factor();
+        }
+        Token start = peek();
+        Map<String, Object> left = binary(level + 1);
+        while (true) {
+            Token t = peek();
+            if (t.type != OP || !Arrays.asList(LEVELS[level]).contains(t.text)) {
+                return left;
+            }
+            if (t.text.equals("@")) {
+                throw unsupported("matrix multiplication");
+            }
+            p++;
+            Map<String, Object> bin = node("BinOp", start);
+            bin.put("left", left);
+            bin.put("op", op(BINARY_OPS.get(t.text)));
+            bin.put("right", binary(level + 1));
+            left = bin;
+        }
+    }
+
+
+    @NotNull
+    private Map<String, Object> factor() {
+        Token t = peek();
+        if (t.type == OP && (t.text.equals("+") || t.text.equals("-") || t.text.equals("~"))) {
+            p++;
+            Map<String, Object> unary = node("UnaryOp", t);
+            unary.put("op", op(t.text.equals("+") ? "UAdd" : t.text.equals("-") ? "USub" : "Invert"));
+            unary.put("operand", factor());
+            return unary;
+        }
+        return power();
+    }
+
+
+    @NotNull
+    private Map<String, Object> power() {
+        Token start = peek();
+        if (python3 && isKeyword("await")) {
+            throw unsupported("await");
+        }
+        Map<String, Object> base = primary();
+        if (!acceptOp("**")) {
+            return base;
+        }
+        Map<String, Object> pow = node("BinOp", start);
+        pow.put("left", base);
+        pow.put("op", op("Pow"));
+        pow.put("right", factor());
+        return pow;
+    }
+
+
+    @NotNull
+    private Map<String, Object> primary() {
+        Token start = peek();
+        Map<String, Object> e = atom();
+        while (true) {
+            if (isOp("(")) {
+                Map<String, Object> call = node("Call", start);
+                call.put("func", e);
+                arguments(call);
+                e = call;
+            } else if (acceptOp("[")) {
+                Map<String, Object> sub = node("Subscript", start);
+                sub.put("value", e);
+                sub.put("slice", slices());
+                expectOp("]");
+                e = sub;
+            } else if (acceptOp(".")) {
+                Map<String, Object> attr = node("Attribute", start);
+                attr.put("value", e);
+                attr.put("attr", expectName().text);
+                e = attr;
+            } else {
+                return e;
+            }
+        }
+    }
+
+
+    // the arguments of a call or the bases of a class, from "(" to ")"
+    private void arguments(@NotNull Map<String, Object> call) {
+        Token open = next();
+        List<Object> args = new ArrayList<>();
+        List<Object> keywords = new ArrayList<>();
+
+        while (!isOp(")")) {
+            Token t = peek();
+            if (acceptOp("*")) {
+                if (python3) {
+                    Map<String, Object> starred = node("Starred", t);
+                    starred.put("value", expression());
+                    args.add(starred);
+                } else {
+                    call.put("starargs", expression());
+                }
+            } else if (acceptOp("**")) {
+                if (python3) {
+                    Map<String, Object> keyword = node("keyword", t);
+                    keyword.put("arg", null);
+                    keyword.put("value", expression());
+                    keywords.add(keyword);
+                } else {
+                    call.put("kwargs", expression());
+                }
+            } else if (t.type == NAME && peek(1).type == OP && peek(1).text.equals("=")) {
+                p += 2;
+                Map<String, Object> keyword = node("keyword", t);
+                keyword.put("arg", t.text);
+                keyword.put("value", expression());
+                keywords.add(keyword);
+            } else {
+                Map<String, Object> arg = namedExpression();
+                if (isKeyword("for")) {
+                    // a generator argument starts at the call's parenthesis
+                    Map<String, Object> gen = node("GeneratorExp", open);
+                    gen.put("elt", arg);
+                    gen.put("generators", comprehensions());
+                    arg = gen;
+                }
+                args.add(arg);
+            }
+            if (!acceptOp(",")) {
+                break;
+            }
+        }
+        expectOp(")");
+        call.put("args", args);
+        call.put("keywords", keywords);
+    }
+
+
+    @NotNull
+    private Object slices() {
+        Token start = peek();
+        Map<String, Object> first = slice();
+        if (!isOp(",")) {
+            return python3 ? first : index(first);
+        }
+        List<Object> elts = new ArrayList<>();
+        elts.add(first);
+        while (acceptOp(",")) {
+            if (isOp("]")) {
+                break;
+            }
+            elts.add(slice());
+        }
+
+        if (python3) {
+            return tuple(elts, start);
+        }
+        boolean hasSlice = false;
+        for (Object e : elts) {
+            hasSlice |= "Slice".equals(((Map<?, ?>) e).get("type"));
+        }
+        if (!hasSlice) {
+            return index(tuple(elts, start));
+        }
+        List<Object> dims = new ArrayList<>();
+        for (Object e : elts) {
+            dims.add(index(asNode(e)));
+        }
+        Map<String, Object> ext = node("ExtSlice", null);
+        ext.put("dims", dims);
+        return ext;
+    }
+
+
+    // Python 2 wraps subscripts that aren't slices
+    @NotNull
+    private Map<String, Object> index(@NotNull Map<String, Object> e) {
+        if ("Slice".equals(e.get("type")) || "Ellipsis".equals(e.get("type"))) {
+            return e;
+        }
+        Map<String, Object> index = node("Index", null);
+        index.put("value", e);
+        return index;
+    }
+
+
+    @NotNull
+    private Map<String, Object> slice() {
+        Token start = peek();
+        Map<String, Object> lower = null;
+        if (!isOp(":")) {
+            if (isOp("*")) {
+                return starred(next());
+            }
+            if (!python3 && isOp("...")) {
+                p++;
+                return node("Ellipsis", null);
+            }
+            lower = namedExpression();
+            if (!isOp(":")) {
+                return lower;
+            }
+        }
+        expectOp(":");
+        Map<String, Object> slice = node("Slice", start);
+        slice.put("lower", lower);
+        slice.put("upper", isOp(":") || isOp(",") || isOp("]") ? null : expression());
+        if (acceptOp(":")) {
+            slice.put("step", isOp(",") || isOp("]") ? null : expression());
+        }
+        return slice;
+    }
+
+
+    @NotNull
+    private Map<String, Object> atom() {
+        Token t = peek();
+        switch (t.type) {
+            case NAME:
+                if (!isKeyword(t.text) || (python3 && (t.text.equals("None") || t.text.equals("True") ||
+                        t.text.equals("False"))))
+                {
+                    p++;
+                    return name(t);
+                }
+                break;
+            case NUMBER:
+                p++;
+                return number(t);
+            case STRING:
+                return strings();
+            case OP:
+                switch (t.text) {
+                    case "(":
+                        return paren();
+                    case "[":
+                        return list();
+                    case "{":
+                        return dictOrSet();
+                    case "...":
+                        if (python3) {
+                            p++;
+                            return node("Ellipsis", t);
+                        }
+                        break;
+                    case "`":
+                        if (!python3) {
+                            p++;
+                            Map<String, Object> repr = node("Repr", t);
+                            repr.put("value", starExpressions());
+                            expectOp("`");
+                            return repr;
+                        }
+                        break;
+                }
+                break;
+        }
+        throw unexpected();
+    }
+
+
+    @NotNull
+    private Map<String, Object> name(@NotNull Token t) {
+        Map<String, Object> name = node("Name", t);
+        name.put("id", t.text);
+        return name;
+    }
+
+
+    @NotNull
+    private Map<String, Object> paren() {
+        Token open = next();
+        if (acceptOp(")")) {
+            return tuple(new ArrayList<>(), open);
+        }
+        if (isKeyword("yield")) {
+            Map<String, Object> yield = yieldExpression();
+            expectOp(")");
+            return yield;
+        }
+
+        Map<String, Object> first = starNamedExpression();
+        if (isKeyword("for")) {
+            Map<String, Object> gen = node("GeneratorExp", open);
+            gen.put("elt", first);
+            gen.put("generators", comprehensions());
+            expectOp(")");
+            return gen;
+        }
+        if (isOp(",")) {
+            List<Object> elts = new ArrayList<>();
+            elts.add(first);
+            while (acceptOp(",")) {
+                if (isOp(")")) {
+                    break;
+                }
+                elts.add(starNamedExpression());
+            }
+            expectOp(")");
+            return tuple(elts, open);
+        }
+        expectOp(")");
+        if ("Starred".equals(first.get("type"))) {
+            throw error("cannot use starred expression here");
+        }
+        return first;
+    }
+
+
+    @NotNull
+    private Map<String, Object> list() {
+        Token open = next();
+        List<Object> elts = new ArrayList<>();
+        if (!isOp("]")) {
+            Map<String, Object> first = starNamedExpression();
+            if (isKeyword("for")) {
+                Map<String, Object> comp = node("ListComp", open);
+                comp.put("elt", first);
+                comp.put("generators", comprehensions());
+                expectOp("]");
+                return comp;
+            }
+            elts.add(first);
+            while (acceptOp(",")) {
+                if (isOp("]")) {
+                    break;
+                }
+                elts.add(starNamedExpression());
+            }
+        }
+        expectOp("]");
+        Map<String, Object> list = node("List", open);
+        list.put("elts", elts);
+        return list;
+    }
+
+
+    @NotNull
+    private Map<String, Object> dictOrSet() {
+        Token open = next();
+        List<Object> keys = new ArrayList<>();
+        List<Object> values = new ArrayList<>();
+
+        if (!isOp("}") && !isOp("**")) {
+            Map<String, Object> first = starNamedExpression();
+            if (!acceptOp(":")) {
+                if (isKeyword("for")) {
+                    Map<String, Object> comp = node("SetComp", open);
+                    comp.put("elt", first);
+                    comp.put("generators", comprehensions());
+                    expectOp("}");
+                    return comp;
+                }
+                List<Object> elts = new ArrayList<>();
+                elts.add(first);
+                while (acceptOp(",")) {
+                    if (isOp("}")) {
+                        break;
+                    }
+                    elts.add(starNamedExpression());
+                }
+                expectOp("}");
+                Map<String, Object> set = node("Set", open);
+                set.put("elts", elts);
+                return set;
+            }
+
+            Map<String, Object> value = expression();
+            if (isKeyword("for")) {
+                Map<String, Object> comp = node("DictComp", open);
+                comp.put("key", first);
+                comp.put("value", value);
+                comp.put("generators", comprehensions());
+                expectOp("}");
+                return comp;
+            }
+            keys.add(first);
+            values.add(value);
+            if (!acceptOp(",")) {
+                expectOp("}");
+                return dict(keys, values, open);
+            }
+        }
+
+        while (!isOp("}")) {
+            if (acceptOp("**")) {
+                keys.add(null);
+                values.add(binary(0));
+            } else {
+                keys.add(expression());
+                expectOp(":");
+                values.add(expression());
+            }
+            if (!acceptOp(",")) {
+                break;
+            }
+        }
+        expectOp("}");
+        return dict(keys, values, open);
+    }
+
+
+    @NotNull
+    private Map<String, Object> dict(@NotNull List<Object> keys, @NotNull List<Object> values, @NotNull Token open) {
+        Map<String, Object> dict = node("Dict", open);
+        dict.put("keys", keys);
+        dict.put("values", values);
+        return dict;
+    }
+
+
+    @NotNull
+    private List<Object> comprehensions() {
+        List<Object> generators = new ArrayList<>();
+        while (acceptKeyword("for")) {
+            Map<String, Object> comp = node("comprehension", null);
+            comp.put("target", targetList());
+            expectKeyword("in");
+            comp.put("iter", orTest());
+            List<Object> ifs = new ArrayList<>();
+            while (acceptKeyword("if")) {
+                ifs.add(orTest());
+            }
+            comp.put("ifs", ifs);
+            generators.add(comp);
+            if (python3 && isKeyword("async")) {
+                throw unsupported("async");
+            }
+        }
+        return generators;
+    }
+
+
+    @NotNull
+    private Map<String, Object> yieldExpression() {
+        Token t = next();
+        if (python3 && acceptKeyword("from")) {
+            Map<String, Object> from = node("YieldFrom", t);
+            from.put("value", expression());
+            return from;
+        }
+        Map<String, Object> yield = node("Yield", t);
+        yield.put("value", startsExpression(peek()) ? starExpressions() : null);
+        return yield;
+    }
+
+
+    @NotNull
+    private Map<String, Object> tuple(@NotNull List<Object> elts, @NotNull Token start) {
+        Map<String, Object> tuple = node("Tuple", start);
+        tuple.put("elts", elts);
+        return tuple;
+    }
+
+
+    @NotNull
+    private Map<String, Object> op(@NotNull String type) {
+        return node(type, null);
+    }
+
+
+    // ------------------------- literals -------------------------
+
+
+    @NotNull
+    private Map<String, Object> number(@NotNull Token t) {
+        String text = python3 ? t.text.replace("_", "") : t.text;
+        char last = text.charAt(text.length() - 1);
+        Map<String, Object> num = node("Num", t);
+
+        if (last == 'j' || last == 'J') {
+            double imag = parseFloat(text.substring(0, text.length() - 1), t);
+            num.put("n", complexRepr(imag));
+            num.put("num_type", "complex");
+            num.put("real", 0.0);
+            num.put("imag", imag);
+            return num;
+        }
+
+        if (last == 'l' || last == 'L') {
+            if (python3) {
+                throw error("invalid decimal literal");
+            }
+            text = text.substring(0, text.length() - 1);
+        }
+
+        int radix = 10;
+        String digits = text;
+        String lower = text.toLowerCase();
+        if (lower.startsWith("0x")) {
+            radix = 16;
+            digits = text.substring(2);
+        } else if (lower.startsWith("0o")) {
+            radix = 8;
+            digits = text.substring(2);
+        } else if (lower.startsWith("0b")) {
+            radix = 2;
+            digits = text.substring(2);
+        } else if (lower.indexOf('.') >= 0 || lower.indexOf('e') >= 0) {
+            double d = parseFloat(text, t);
+            num.put("n", floatRepr(d));
+            num.put("num_type", "float");
+            return num;
+        } else if (text.length() > 1 && text.charAt(0) == '0' && !text.matches("0+")) {
+            if (python3) {
+                throw error("leading zeros in decimal integer literals are not permitted");
+            }
+            radix = 8;
+        }
+
+        try {
+            num.put("n", new BigInteger(digits, radix).toString());
+        } catch (NumberFormatException e) {
+            throw error("invalid number " + t.text);
+        }
+        num.put("num_type", "int");
+        return num;
+    }
+
+
+    private double parseFloat(@NotNull String text, @NotNull Token t) {
+        try {
+            return Double.parseDouble(text);
+        } catch (NumberFormatException e) {
+            throw error("invalid number " + t.text);
+        }
+    }
+
+
+    // as Python's repr() of a float
+    @NotNull
+    static String floatRepr(double d) {
+        if (Double.isInfinite(d)) {
+            return d > 0 ? "inf" : "-inf";
+        }
+        if (d == 0) {
+            return "0.0";
+        }
+
+        BigDecimal bd = new BigDecimal(Double.toString(Math.abs(d))).stripTrailingZeros();
+        String digits = bd.unscaledValue().toString();
+        int point = digits.length() - bd.scale();    // the value is 0.digits * 10^point
+        String sign = d < 0 ? "-" : "";
+
+        if (point > -4 && point <= 16) {
+            if (point <= 0) {
+                return sign + "0." + zeros(-point) + digits;
+            } else if (point >= digits.length()) {
+                return sign + digits + zeros(point - digits.length()) + ".0";
+            } else {
+                return sign + digits.substring(0, point) + "." + digits.substring(point);
+            }
+        }
+
+        int exp = point - 1;
+        String mantissa = digits.length() == 1 ? digits : digits.charAt(0) + "." + digits.substring(1);
+        return sign + mantissa + "e" + (exp < 0 ? "-" : "+") + (Math.abs(exp) < 10 ? "0" : "") + Math.abs(exp);
+    }
+
+
+    @NotNull
+    static String complexRepr(double imag) {
+        String r = floatRepr(imag);
+        if (r.endsWith(".0")) {
+            r = r.substring(0, r.length() - 2);
+        }
+        return r + "j";
+    }
+
+
+    @NotNull
+    private static String zeros(int n) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < n; i++) {
+            sb.append('0');
+        }
+        return sb.toString();
+    }
+
+
+    // adjacent string literals are one node
+    @NotNull
+    private Map<String, Object> strings() {
+        Token first = peek();
+        StringBuilder sb = new StringBuilder();
+        boolean sawBytes = false;
+        boolean sawText = false;
+
+        while (peek().type == STRING) {
+            Token t = next();
+            String text = t.text;
+            int quote = 0;
+            while (text.charAt(quote) != '"' && text.charAt(quote) != '\'') {
+                quote++;
+            }
+            String prefix = text.substring(0, quote).toLowerCase();
+            if (prefix.contains("f")) {
+                throw unsupported("f-string");
+            }
+            boolean raw = prefix.contains("r");
+            boolean bytes = python3 && prefix.contains("b");
+            boolean unicode = python3 ? !bytes : prefix.contains("u");
+            sawBytes |= bytes;
+            sawText |= !bytes;
+
+            int q = text.startsWith("\"\"\"", quote) || text.startsWith("'''", quote) ? 3 : 1;
+            String body = text.substring(quote + q, text.length() - q);
+            if (bytes) {
+                for (int i = 0; i < body.length(); i++) {
+                    if (body.charAt(i) >= 0x80) {
+                        throw error("bytes can only contain ASCII literal characters");
+                    }
+                }
+            }
+            if (raw) {
+                sb.append(body);
+            } else {
+                unescape(body, unicode, sb, t);
+            }
+        }
+
+        if (sawBytes && sawText) {
+            throw error("cannot mix bytes and nonbytes literals");
+        }
+        if (sawBytes) {
+            Map<String, Object> b = node("Bytes", first);
+            b.put("s", bytesRepr(sb.toString()));
+            return b;
+        }
+        Map<String, Object> str = node("Str", first);
+        str.put("s", sb.toString());
+        return str;
+    }
+
+
+    private void unescape(@NotNull String body, boolean unicode, @NotNull StringBuilder sb, @NotNull Token t) {
+        int n = body.length();
+        for (int i = 0; i < n; i++) {
+            char c = body.charAt(i);
+            if (c != '\\' || i + 1 >= n) {
+                sb.append(c);
+                continue;
+            }
+
+            char d = body.charAt(++i);
+            switch (d) {
+                case '\n':
+                    break;
+                case '\r':
+                    if (i + 1 < n && body.charAt(i + 1) == '\n') {
+                        i++;
+                    }
+                    break;
+                case '\\':
+                case '\'':
+                case '"':
+                    sb.append(d);
+                    break;
+                case 'a':
+                    sb.append('\u0007');
+                    break;
+                case 'b':
+                    sb.append('\b');
+                    break;
+                case 'f':
+                    sb.append('\f');
+                    break;
+                case 'n':
+                    sb.append('\n');
+                    break;
+                case 'r':
+                    sb.append('\r');
+                    break;
+                case 't':
+                    sb.append('\t');
+                    break;
+                case 'v':
+                    sb.append('\u000b');
+                    break;
+                case 'x':
+                    sb.append((char) hex(body, i + 1, 2, t));
+                    i += 2;
+                    break;
+                case 'u':
+                case 'U':
+                    if (!unicode) {
+                        sb.append('\\').append(d);
+                        break;
+                    }
+                    int len = d == 'u' ? 4 : 8;
+                    int cp = hex(body, i + 1, len, t);
+                    if (cp > Character.MAX_CODE_POINT) {
+                        throw error("illegal Unicode character");
+                    }
+                    sb.appendCodePoint(cp);
+                    i += len;
+                    break;
+                default:
+                    if (d >= '0' && d <= '7') {
+                        int v = d - '0';
+                        for (int k = 0; k < 2 && i + 1 < n && body.charAt(i + 1) >= '0' && body.charAt(i + 1) <= '7';
+                             k++)
+                        {
+                            v = v * 8 + body.charAt(++i) - '0';
+                        }
+                        sb.append((char) (unicode ? v : v & 0xff));
+                    } else {
+                        sb.append('\\').append(d);
+                    }
+            }
+        }
+    }
+
+
+    private int hex(@NotNull String body, int start, int len, @NotNull Token t) {
+        if (start + len > body.length()) {
+            throw error("truncated escape in string literal");
+        }
+        try {
+            return Integer.parseInt(body.substring(start, start + len), 16);
+        } catch (NumberFormatException e) {
+            throw error("truncated escape in string literal");
+        }
+    }
+
+
+    // as Python's repr() of a bytes object whose bytes are the chars of s
+    @NotNull
+    static String bytesRepr(@NotNull String s) {
+        char q = s.indexOf('\'') >= 0 && s.indexOf('"') < 0 ? '"' : '\'';
+        StringBuilder sb = new StringBuilder("b").append(q);
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == q || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c == '\t') {
+                sb.append("\\t");
+            } else if (c == '\n') {
+                sb.append("\\n");
+            } else if (c == '\r') {
+                sb.append("\\r");
+            } else if (c < ' ' || c >= 0x7f) {
+                sb.append(String.format("\\x%02x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.append(q).toString();
+    }
+
+
+    // ------------------------- tokens -------------------------
+
+
+    @NotNull
+    private Token peek() {
+        return tokens.get(p);
+    }
+
+
+    @NotNull
+    private Token peek(int k) {
+        return tokens.get(Math.min(p + k, tokens.size() - 1));
+    }
+
+
+    @NotNull
+    private Token next() {
+        Token t = tokens.get(p);
+        if (t.type != END) {
+            p++;
+        }
+        return t;
+    }
+
+
+    private boolean isOp(@NotNull String op) {
+        Token t = peek();
+        return t.type == OP && t.text.equals(op);
+    }
+
+
+    private boolean acceptOp(@NotNull String op) {
+        if (isOp(op)) {
+            p++;
+            return true;
+        }
+        return false;
+    }
+
+
+    private void expectOp(@NotNull String op) {
+        if (!acceptOp(op)) {
+            throw unexpected();
+        }
+    }
+
+
+    private boolean isKeyword(@NotNull String word) {
+        Token t = peek();
+        return t.type == NAME && t.text.equals(word) && isKeywordText(word);
+    }
+
+
+    private boolean isKeywordText(@NotNull String word) {
+        if (python3) {
+            return KEYWORDS3.contains(word);
+        } else {
+            return KEYWORDS2.contains(word) && (printStatement || !word.equals("print"));
+        }
+    }
+
+
+    private boolean acceptKeyword(@NotNull String word) {
+        if (isKeyword(word)) {
+            p++;
+            return true;
+        }
+        return false;
+    }
+
+
+    private void expectKeyword(@NotNull String word) {
+        if (!acceptKeyword(word)) {
+            throw unexpected();
+        }
+    }
+
+
+    @NotNull
+    private Token expectName() {
+        Token t = peek();
+        if (t.type != NAME || isKeywordText(t.text)) {
+            throw unexpected();
+        }
+        p++;
+        return t;
+    }
+
+
+    private boolean atStatementEnd() {
+        return peek().type == NEWLINE || isOp(";");
+    }
+
+
+    private boolean startsExpression(@NotNull Token t) {
+        switch (t.type) {
+            case NAME:
+                if (!isKeywordText(t.text)) {
+                    return true;
+                }
+                return t.text.equals("not") || t.text.equals("lambda") || t.text.equals("None") ||
+                        t.text.equals("True") || t.text.equals("False") || t.text.equals("await");
+            case NUMBER:
+            case STRING:
+                return true;
+            case OP:
+                return Arrays.asList("(", "[", "{", "-", "+", "~", "*", "...", "`").contains(t.text);
+            default:
+                return false;
+        }
+    }
+
+
+    @NotNull
+    private Map<String, Object> node(@NotNull String type, @Nullable Token at) {
+        Map<String, Object> node = new HashMap<>();
+        node.put("type", type);
+        if (at != null) {
+            int line = at.line - 1;
+            if (line >= lineStarts.length) {
+                // dump_python.py fails on lines it can't map
+                throw error("can't map line " + at.line);
+            }
+            node.put(POS, lineStarts[line] + at.col);
+        }
+        return node;
+    }
+
+
+    // every map in the trees is one made by node()
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> asNode(Object o) {
+        return (Map<String, Object>) o;
+    }
+
+
+    @NotNull
+    private SyntaxError unexpected() {
+        Token t = peek();
+        if (t.type == END) {
+            return new SyntaxError("unexpected EOF while parsing", t.line);
+        }
+        return new SyntaxError("invalid syntax at " + t, t.line);
+    }
+
+
+    @NotNull
+    private SyntaxError unsupported(@NotNull String what) {
+        return error(what + " is not supported");
+    }
+
+
+    @NotNull
+    private SyntaxError error(@NotNull String msg) {
+        return new SyntaxError(msg, peek().line);
+    }
+
+
+    // ------------------------- offsets -------------------------
+    // dump_python.py's improve_ast(), which computes the start and end offsets
+    // of nodes from their line and column and the text that follows
+
+
+    private void improve(@Nullable Object o) {
+        if (o instanceof List) {
+            for (Object x : (List<?>) o) {
+                improve(x);
+            }
+        } else if (o instanceof Map) {
+            Map<String, Object> node = asNode(o);
+            findStart(node);
+            findEnd(node);
+            addMissingNames(node);
+            for (Object v : new ArrayList<>(node.values())) {
+                if (v instanceof Map || v instanceof List) {
+                    improve(v);
+                }
+            }
+        }
+    }
+
+
+    @Nullable
+    private Integer findStart(@Nullable Object o) {
+        if (o instanceof List) {
+            List<?> l = (List<?>) o;
+            return l.isEmpty() ? null : findStart(l.get(0));
+        }
+        if (!(o instanceof Map)) {
+            return null;
+        }
+
+        Map<String, Object> node = asNode(o);
+        Object start = node.get("start");
+        if (start != null) {
+            return ((Number) start).intValue();
+        }
+
+        Integer ret;
+        String type = (String) node.get("type");
+        if (type.equals("Module")) {
+            ret = findStart(node.get("body"));
+        } else if (type.equals("BinOp")) {
+            Integer left = findStart(node.get("left"));
+            ret = left != null ? left : (Integer) node.get(POS);
+        } else {
+            ret = (Integer) node.get(POS);
+        }
+        if (ret != null) {
+            node.put("start", (double) ret);
+        }
+        return ret;
+    }
+
+
+    @Nullable
+    private Integer findEnd(@Nullable Object o) {
+        if (o instanceof List) {
+            List<?> l = (List<?>) o;
+            return l.isEmpty() ? null : findEnd(l.get(l.size() - 1));
+        }
+        if (!(o instanceof Map)) {
+            return null;
+        }
+
+        Map<String, Object> node = asNode(o);
+        Object end = node.get("end");
+        if (end != null) {
+            return ((Number) end).intValue();
+        }
+
+        Integer ret = null;
+        String type = (String) node.get("type");
+        switch (type) {
+            case "Module":
+            case "FunctionDef":
+            case "Lambda":
+            case "ClassDef":
+            case "ExceptHandler":
+                ret = findEnd(node.get("body"));
+                break;
+            case "Expr":
+            case "Yield":
+            case "Assign":
+            case "AugAssign":
+                ret = findEnd(node.get("value"));
+                break;
+            case "Str":
+                ret = stringEnd(findStart(node));
+                break;
+            case "Name":
+                ret = plus(findStart(node), ((String) node.get("id")).length());
+                break;
+            case "Attribute":
+                Integer valueEnd = findEnd(node.get("value"));
+                ret = endSeq((String) node.get("attr"), valueEnd == null ? 0 : valueEnd);
+                break;
+            case "Call":
+                Integer funcEnd = findEnd(node.get("func"));
+                if (funcEnd != null) {
+                    ret = matchParen('(', ')', funcEnd);
+                }
+                break;
+            case "Return":
+                ret = node.get("value") != null ? findEnd(node.get("value")) : plus(findStart(node), 6);
+                break;
+            case "For":
+            case "While":
+            case "If":
+            case "IfExp":
+                ret = findEnd(nonEmpty(node.get("orelse")) ? node.get("orelse") : node.get("body"));
+                break;
+            case "BinOp":
+                ret = findEnd(node.get("right"));
+                break;
+            case "BoolOp":
+                ret = findEnd(node.get("values"));
+                break;
+            case "Compare":
+                ret = findEnd(node.get("comparators"));
+                break;
+            case "UnaryOp":
+                ret = findEnd(node.get("operand"));
+                break;
+            case "Num":
+                ret = plus(findStart(node), ((String) node.get("n")).length());
+                break;
+            case "List":
+            case "Subscript":
+                ret = matchParen('[', ']', findStart(node));
+                break;
+            case "Tuple":
+                ret = findEnd(node.get("elts"));
+                break;
+            case "Dict":
+                ret = matchParen('{', '}', findStart(node));
+                break;
+            case "Try":
+            case "TryExcept":
+                if (nonEmpty(node.get("orelse"))) {
+                    ret = findEnd(node.get("orelse"));
+                } else if (nonEmpty(node.get("handlers"))) {
+                    ret = findEnd(node.get("handlers"));
+                } else {
+                    ret = findEnd(node.get("body"));
+                }
+                break;
+            case "Pass":
+                ret = plus(findStart(node), 4);
+                break;
+            case "Break":
+                ret = plus(findStart(node), 5);
+                break;
+            case "Continue":
+                ret = plus(findStart(node), 8);
+                break;
+            case "Print":
+            case "Global":
+                ret = startSeq("\n", findStart(node));
+                break;
+            case "Import":
+                ret = plus(findStart(node), 6);
+                break;
+            case "ImportFrom":
+                ret = plus(findStart(node), 4);
+                break;
+            default:
+                ret = plus(findStart(node), 3);
+        }
+
+        if (ret != null) {
+            node.put("end", (double) ret);
+        }
+        return ret;
+    }
+
+
+    // compares like Python's "x != []"
+    private static boolean nonEmpty(@Nullable Object o) {
+        return !(o instanceof List) || !((List<?>) o).isEmpty();
+    }
+
+
+    @Nullable
+    private static Integer plus(@Nullable Integer a, int b) {
+        return a == null ? null : a + b;
+    }
+
+
+    @Nullable
+    private Integer stringEnd(@Nullable Integer start) {
+        int i = start == null ? 0 : start;
+        int n = s.length();
+        while (i < n && s.charAt(i) != '"' && s.charAt(i) != '\'') {
+            i++;
+        }
+        String q;
+        if (i + 2 < n && s.startsWith("\"\"\"", i)) {
+            q = "\"\"\"";
+            i += 3;
+        } else if (i + 2 < n && s.startsWith("'''", i)) {
+            q = "'''";
+            i += 3;
+        } else if (i < n && s.charAt(i) == '"') {
+            q = "\"";
+            i += 1;
+        } else if (i < n && s.charAt(i) == '\'') {
+            q = "'";
+            i += 1;
+        } else {
+            return null;
+        }
+        return endSeq(q, i);
+    }
+
+
+    private int startSeq(@NotNull String pattern, @Nullable Integer start) {
+        int i = s.indexOf(pattern, start == null ? 0 : start);
+        return i < 0 ? s.length() : i;
+    }
+
+
+    private int endSeq(@NotNull String pattern, int start) {
+        int i = s.indexOf(pattern, start);
+        return i < 0 ? s.length() : i + pattern.length();
+    }
+
+
+    private int matchParen(char open, char close, @Nullable Integer from) {
+        int start = from == null ? 0 : from;
+        int n = s.length();
+        while (start < n && s.charAt(start) != open) {
+            start++;
+        }
+        if (start >= n) {
+            return n;
+        }
+
+        int left = 1;
+        int i = start + 1;
+        while (left > 0 && i < n) {
+            if (s.charAt(i) == open) {
+                left++;
+            } else if (s.charAt(i) == close) {
+                left--;
+            }
+            i++;
+        }
+        return i;
+    }
+
+
+    // the names of classes, functions and attributes get nodes of their own
+    private void addMissingNames(@NotNull Map<String, Object> node) {
+        String type = (String) node.get("type");
+        if (type.equals("ClassDef") || type.equals("FunctionDef")) {
+            String keyword = type.equals("ClassDef") ? "class" : "def";
+            Integer head = findStart(node);
+            int start = s.indexOf(keyword, head == null ? 0 : head) + keyword.length();
+            node.put("name_node", nameAt(start));
+        } else if (type.equals("Attribute")) {
+            Integer start = findEnd(node.get("value"));
+            if (start != null) {
+                node.put("attr_name", nameAt(start));
+            }
+        }
+    }
+
+
+    // dump_python.py's str_to_name()
+    @Nullable
+    private Map<String, Object> nameAt(int start) {
+        int i = start;
+        int n = s.length();
+        while (i < n && !isNameChar(s.charAt(i))) {
+            i++;
+        }
+        int nameStart = i;
+        StringBuilder id = new StringBuilder();
+        while (i < n && isNameChar(s.charAt(i))) {
+            id.append(s.charAt(i));
+            i++;
+        }
+        if (id.length() == 0) {
+            return null;
+        }
+        Map<String, Object> name = new HashMap<>();
+        name.put("type", "Name");
+        name.put("id", id.toString());
+        name.put("start", (double) nameStart);
+        name.put("end", (double) i);
+        return name;
+    }
+
+
+    private static boolean isNameChar(char c) {
+        return c == '_' || (c >= '0' && c <= '9') || (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+}
@@ -0,0 +1,182 @@
+package org.yinwang.pysonar;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.HashMap;
+import java.util.Map;
+
+
+/**
+ * A qualified name like "pkg.mod.Class.method", interned in a trie of
+ * its segments. There is one Qname for each name, so states and bindings
+ * share them, comparing them is comparing references, and extending a
+ * name with a segment seen before is a map lookup rather than a new
+ * string. A name holds its last segment, and makes the dotted string and
+ * the slash path from the segments the first time each is asked for,
+ * then keeps it. Names that are never printed cost no strings.
+ *
+ * Each analyzer has a trie of its own, see {@link Analyzer#qnames}, which
+ * it empties when it is closed. Names made with no analyzer, like those of
+ * the types built before one, are in a trie of their own.
+ */
+public final class Qname {
+
+    @Nullable
+    private final Qname parent;
+    @NotNull
+    private final String name;
+    @Nullable
+    private Map<String, Qname> children;    // made on the first child
+    // made on first use; two threads may both make one, which is harmless
+    @Nullable
+    private volatile String dotted;
+    @Nullable
+    private volatile String path;
+
+
+    private Qname(@Nullable Qname parent, @NotNull String name) {
+        this.parent = parent;
+        this.name = name;
+    }
+
+
+    /**
+     * The empty name at the root of a new trie.
+     */
+    @NotNull
+    public static Qname newRoot() {
+        return new Qname(null, "");
+    }
+
+
+    /**
+     * The empty name of the current analyzer.
+     */
+    @NotNull
+    public static Qname root() {
+        Analyzer analyzer = Analyzer.self;
+        return analyzer == null ? newRoot() : analyzer.qnames;
+    }
+
+
+    /**
+     * The Qname of a dotted name in the current analyzer. The empty string
+     * is {@link #root}.
+     */
+    @NotNull
+    public static Qname of(@NotNull String dotted) {
+        return root().extend(dotted);
+    }
+
+
+    /**
+     * This name followed by {@code name}, which may have dots in it.
+     */
+    @NotNull
+    public Qname extend(@NotNull String name) {
+        if (name.isEmpty() && parent == null) {
+            return this;
+        }
+        Qname q = this;
+        int from = 0;
+        int dot;
+        while ((dot = name.indexOf('.', from)) >= 0) {
+            q = q.child(name.substring(from, dot));
+            from = dot + 1;
+        }
+        return q.child(from == 0 ? name : name.substring(from));
+    }
+
+
+    @NotNull
+    private synchronized Qname child(@NotNull String segment) {
+        if (children == null) {
+            children = new HashMap<>(4);
+        }
+        Qname c = children.get(segment);
+        if (c == null) {
+            c = new Qname(this, segment);
+            children.put(segment, c);
+        }
+        return c;
+    }
+
+
+    /**
+     * Forgets the names under this one, which stay valid but are no
+     * longer shared with names made afterwards.
+     */
+    public synchronized void clear() {
+        children = null;
+    }
+
+
+    @Nullable
+    public Qname getParent() {
+        return parent;
+    }
+
+
+    /**
+     * The last segment.
+     */
+    @NotNull
+    public String getName() {
+        return name;
+    }
+
+
+    /**
+     * The name with slashes between its segments, and "%20", which
+     * stands for a dot in a file name, turned back into a dot. This is
+     * the path of a symbol in the JSON output and the symbol index.
+     */
+    @NotNull
+    public String toPath() {
+        String p = path;
+        if (p == null) {
+            p = path = join('/').replace("%20", ".");
+        }
+        return p;
+    }
+
+
+    @NotNull
+    private String join(char separator) {
+        if (parent == null) {
+            return name;
+        }
+        int length = 0;
+        int segments = 0;
+        for (Qname q = this; q.parent != null; q = q.parent) {
+            length += q.name.length() + 1;
+            segments++;
+        }
+        if (segments == 1) {
+            return name;
+        }
+        char[] chars = new char[length - 1];
+        int end = chars.length;
+        for (Qname q = this; q.parent != null; q = q.parent) {
+            int start = end - q.name.length();
+            q.name.getChars(0, q.name.length(), chars, start);
+            if (start > 0) {
+                chars[start - 1] = separator;
+            }
+            end = start - 1;
+        }
+        return new String(chars);
+    }
+
+
+    @NotNull
+    @Override
+    public String toString() {
+        String d = dotted;
+        if (d == null) {
+            d = dotted = join('.');
+        }
+        return d;
+    }
+}
@@ -0,0 +1,232 @@
+package org.yinwang.pysonar;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.yinwang.pysonar.ast.*;
+
+import java.util.*;
+
+
+/**
+ * Resolution pre-pass over a module's AST. Classifies every Name as local,
+ * enclosing, global or builtin, and records in {@link Name#scopeDepth} how
+ * many function scopes State.lookupResolved can skip for it.
+ *
+ * The bindings in a function's table only come from code lexically inside
+ * that function, so a function scope that never binds a name can be
+ * skipped. Class and module tables may also get attributes from elsewhere
+ * (e.g. "C.x = 1"), so they are never skipped. Names that are declared
+ * global (or nonlocal) anywhere on their scope chain keep depth -1 and are
+ * looked up the old way, with the global check.
+ */
+public class ScopeResolver {
+
+    enum ScopeType {
+        MODULE,
+        CLASS,
+        FUNCTION
+    }
+
+
+    static class Scope {
+        ScopeType scopeType;
+        @Nullable
+        Scope parent;
+        Set<String> bound = new HashSet<>();
+        Set<String> globals = new HashSet<>();
+        boolean importStar = false;
+        List<Name> names = new ArrayList<>();
+
+
+        Scope(ScopeType scopeType, @Nullable Scope parent) {
+            this.scopeType = scopeType;
+            this.parent = parent;
+        }
+
+
+        // the next table on the State chain; functions skip enclosing classes
+        @Nullable
+        Scope next() {
+            Scope s = parent;
+            if (scopeType == ScopeType.FUNCTION) {
+                while (s != null && s.scopeType == ScopeType.CLASS) {
+                    s = s.parent;
+                }
+            }
+            return s;
+        }
+
+
+        boolean mayBind(String id) {
+            return importStar || bound.contains(id);
+        }
+    }
+
+
+    @NotNull
+    private List<Scope> scopes = new ArrayList<>();
+
+
+    public static void resolve(@NotNull Module module) {
+        ScopeResolver resolver = new ScopeResolver();
+        Scope top = resolver.newScope(ScopeType.MODULE, null);
+        resolver.visit(module.body, top);
+        for (Scope s : resolver.scopes) {
+            for (Name n : s.names) {
+                classify(n, s);
+            }
+        }
+    }
+
+
+    @NotNull
+    private Scope newScope(ScopeType type, @Nullable Scope parent) {
+        Scope s = new Scope(type, parent);
+        scopes.add(s);
+        return s;
+    }
+
+
+    private void visit(@Nullable Node node, @NotNull Scope scope) {
+        if (node == null) {
+            return;
+        }
+
+        if (node instanceof Name) {
+            scope.names.add((Name) node);
+        } else if (node instanceof FunctionDef) {
+            FunctionDef fd = (FunctionDef) node;
+            if (!fd.isLamba) {
+                scope.bound.add(fd.name.id);
+            }
+            visitAll(fd.defaults, scope);
+
+            Scope fs = newScope(ScopeType.FUNCTION, scope);
+            if (fd.args != null) {
+                for (Node arg : fd.args) {
+                    addTargets(arg, fs);
+                }
+            }
+            if (fd.afterRest != null) {
+                for (Node arg : fd.afterRest) {
+                    addTargets(arg, fs);
+                }
+            }
+            addTargets(fd.vararg, fs);
+            addTargets(fd.kwarg, fs);
+            visitAll(fd.args, fs);
+            visit(fd.body, fs);
+        } else if (node instanceof ClassDef) {
+            ClassDef cd = (ClassDef) node;
+            scope.bound.add(cd.name.id);
+            visitAll(cd.bases, scope);
+            visit(cd.body, newScope(ScopeType.CLASS, scope));
+        } else {
+            if (node instanceof Global) {
+                for (Name n : ((Global) node).names) {
+                    scope.globals.add(n.id);
+                }
+            } else if (node instanceof Assign) {
+                addTargets(((Assign) node).target, scope);
+            } else if (node instanceof For) {
+                addTargets(((For) node).target, scope);
+            } else if (node instanceof Comprehension) {
+                addTargets(((Comprehension) node).target, scope);
+            } else if (node instanceof Withitem) {
+                addTargets(((Withitem) node).optional_vars, scope);
+            } else if (node instanceof Handler) {
+                addTargets(((Handler) node).binder, scope);
+            } else if (node instanceof Import) {
+                for (Alias a : ((Import) node).names) {
+                    addAlias(a, scope);
+                }
+            } else if (node instanceof ImportFrom) {
+                ImportFrom imp = (ImportFrom) node;
+                // loading the module binds its first segment too
+                if (imp.module != null && !imp.module.isEmpty()) {
+                    scope.bound.add(imp.module.get(0).id);
+                }
+                if (imp.isImportStar()) {
+                    scope.importStar = true;
+                }
+                for (Alias a : imp.names) {
+                    addAlias(a, scope);
+                }
+            }
+            visitAll(node.getChildren(), scope);
+        }
+    }
+
+
+    private void visitAll(@Nullable Collection<? extends Node> nodes, @NotNull Scope scope) {
+        if (nodes != null) {
+            for (Node n : nodes) {
+                visit(n, scope);
+            }
+        }
+    }
+
+
+    // same destructuring as Binder.bind
+    private static void addTargets(@Nullable Node target, @NotNull Scope scope) {
+        if (target instanceof Name) {
+            scope.bound.add(((Name) target).id);
+        } else if (target instanceof Tuple) {
+            for (Node n : ((Tuple) target).elts) {
+                addTargets(n, scope);
+            }
+        } else if (target instanceof PyList) {
+            for (Node n : ((PyList) target).elts) {
+                addTargets(n, scope);
+            }
+        } else if (target instanceof Starred) {
+            addTargets(((Starred) target).value, scope);
+        }
+    }
+
+
+    private static void addAlias(@NotNull Alias a, @NotNull Scope scope) {
+        if (!a.name.isEmpty()) {
+            scope.bound.add(a.name.get(0).id);
+        }
+        if (a.asname != null) {
+            scope.bound.add(a.asname.id);
+        }
+    }
+
+
+    private static void classify(@NotNull Name n, @NotNull Scope scope) {
+        for (Scope s = scope; s != null; s = s.next()) {
+            if (s.globals.contains(n.id)) {
+                n.type = NameType.GLOBAL;
+                n.scopeDepth = -1;
+                return;
+            }
+        }
+
+        int depth = 0;
+        boolean skipping = true;
+        NameType type = NameType.BUILTIN;
+
+        for (Scope s = scope; s != null; s = s.next()) {
+            if (s.mayBind(n.id)) {
+                if (s == scope) {
+                    type = NameType.LOCAL;
+                } else if (s.scopeType == ScopeType.MODULE) {
+                    type = NameType.GLOBAL;
+                } else {
+                    type = NameType.ENCLOSING;
+                }
+                break;
+            }
+            if (skipping && s.scopeType == ScopeType.FUNCTION) {
+                depth++;
+            } else {
+                skipping = false;
+            }
+        }
+
+        n.type = type;
+        n.scopeDepth = depth;
+    }
+}
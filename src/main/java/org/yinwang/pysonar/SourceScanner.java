@@ -0,0 +1,124 @@
+package org.yinwang.pysonar;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+
+
+/**
+ * Finds the source files under a file or directory in a single walk.
+ *
+ * Symbolic links are followed; a link back to one of its own ancestors is
+ * reported by the walk as a loop and skipped. Directories and files matching
+ * one of the exclude globs (e.g. "venv", "*.egg", "vendor/**") are skipped,
+ * where a glob is matched against both the file name and the path relative to
+ * the root.
+ */
+public class SourceScanner {
+
+    @NotNull
+    private String suffix;
+    @NotNull
+    private List<PathMatcher> excludes = new ArrayList<>();
+
+
+    public SourceScanner(@NotNull String suffix, @Nullable List<String> excludes) {
+        this.suffix = suffix;
+        if (excludes != null) {
+            FileSystem fs = FileSystems.getDefault();
+            for (String glob : excludes) {
+                this.excludes.add(fs.getPathMatcher("glob:" + glob));
+            }
+        }
+    }
+
+
+    /**
+     * Parses a comma separated list of globs, as given on the command line.
+     */
+    @NotNull
+    public static List<String> parseGlobs(@Nullable Object option) {
+        List<String> globs = new ArrayList<>();
+        if (option instanceof String) {
+            for (String g : ((String) option).split(",")) {
+                if (!g.trim().isEmpty()) {
+                    globs.add(g.trim());
+                }
+            }
+        }
+        return globs;
+    }
+
+
+    /**
+     * Returns the source files under {@code root} in directory walk order.
+     */
+    @NotNull
+    public Deque<String> scan(@NotNull String root) {
+        final Path rootPath = Paths.get(root);
+        final Deque<String> files = new ArrayDeque<>();
+
+        try {
+            Files.walkFileTree(rootPath, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE,
+                    new SimpleFileVisitor<Path>() {
+                        @NotNull
+                        @Override
+                        public FileVisitResult preVisitDirectory(@NotNull Path dir, BasicFileAttributes attrs) {
+                            if (!dir.equals(rootPath) && isExcluded(rootPath, dir)) {
+                                return FileVisitResult.SKIP_SUBTREE;
+                            }
+                            return FileVisitResult.CONTINUE;
+                        }
+
+
+                        @NotNull
+                        @Override
+                        public FileVisitResult visitFile(@NotNull Path file, @NotNull BasicFileAttributes attrs) {
+                            if (!attrs.isDirectory() &&
+                                    file.toString().endsWith(suffix) &&
+                                    !isExcluded(rootPath, file))
+                            {
+                                files.add(file.toString());
+                            }
+                            return FileVisitResult.CONTINUE;
+                        }
+
+
+                        @NotNull
+                        @Override
+                        public FileVisitResult visitFileFailed(@NotNull Path file, IOException e) {
+                            if (e instanceof FileSystemLoopException) {
+                                _.msg("Skipping symlink loop: " + file);
+                            } else {
+                                _.msg("Failed to read: " + file + ", " + e);
+                            }
+                            return FileVisitResult.CONTINUE;
+                        }
+                    });
+        } catch (IOException e) {
+            _.msg("Failed to scan: " + root + ", " + e);
+        }
+
+        return files;
+    }
+
+
+    private boolean isExcluded(@NotNull Path root, @NotNull Path path) {
+        if (excludes.isEmpty()) {
+            return false;
+        }
+
+        Path name = path.getFileName();
+        Path rel = root.relativize(path);
+        for (PathMatcher m : excludes) {
+            if ((name != null && m.matches(name)) || m.matches(rel)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
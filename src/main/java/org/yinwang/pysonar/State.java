@@ -7,6 +7,7 @@ import org.yinwang.pysonar.types.ModuleType;
 import org.yinwang.pysonar.types.Type;
 import org.yinwang.pysonar.types.UnionType;
 
+import java.io.File;
 import java.util.*;
 import java.util.Map.Entry;
 
@@ -22,6 +23,14 @@ public class State {
     }
 
 
+    /**
+     * Work that fills in a state, put off until the state is first read.
+     */
+    public interface Deferred {
+        void force();
+    }
+
+
     @Nullable
     public Map<String, Set<Binding>> table = new HashMap<>();
     @Nullable
@@ -35,7 +44,28 @@ public class State {
     public StateType stateType;
     public Type type;
     @NotNull
-    public String path = "";
+    private Qname path = Qname.root();
+
+    // Attribute lookup caches. They only depend on the states in the MRO,
+    // so each is stamped with the sum of the versions of those states when
+    // it was filled, and is stale once the sum differs. Versions only grow,
+    // so a change to one class invalidates the caches of its subclasses
+    // and of no other class.
+    //
+    // States are not thread-safe: the analyzer changes them on one thread.
+    // The caches are filled on reads too, so the methods that touch them
+    // are synchronized, for readers like the daemon's query threads.
+    private long tableVersion = 0;      // bumped on every change to the table
+    private long supersVersion = 0;     // bumped on every change to the supers
+    @Nullable
+    private List<State> mro;
+    private long mroStamp;
+    @Nullable
+    private Map<String, Set<Binding>> attrCache;
+    private long attrCacheStamp;
+
+    @Nullable
+    private Deferred deferred;
 
 
     public State(@Nullable State parent, StateType type) {
@@ -50,7 +80,10 @@ public class State {
     }
 
 
+    // s is forced first, so the copy has all of its bindings and nothing
+    // left to defer
     public State(@NotNull State s) {
+        s.force();
         if (s.table != null) {
             this.table = new HashMap<>();
             this.table.putAll(s.table);
@@ -58,7 +91,9 @@ public class State {
         this.parent = s.parent;
         this.stateType = s.stateType;
         this.forwarding = s.forwarding;
-        this.supers = s.supers;
+        if (s.supers != null) {
+            this.supers = new ArrayList<>(s.supers);
+        }
         this.globalNames = s.globalNames;
         this.type = s.type;
         this.path = s.path;
@@ -67,6 +102,8 @@ public class State {
 
     // erase and overwrite this to s's contents
     public void overwrite(@NotNull State s) {
+        s.force();
+        this.deferred = null;
         this.table = s.table;
         this.parent = s.parent;
         this.stateType = s.stateType;
@@ -75,6 +112,11 @@ public class State {
         this.globalNames = s.globalNames;
         this.type = s.type;
         this.path = s.path;
+        synchronized (this) {
+            this.mro = null;
+            supersVersion++;
+        }
+        changed();
     }
 
 
@@ -85,6 +127,8 @@ public class State {
 
 
     public void merge(State other) {
+        force();
+        other.force();
         for (Map.Entry<String, Set<Binding>> e1 : table.entrySet()) {
             Set<Binding> b1 = e1.getValue();
             Set<Binding> b2 = other.table.get(e1.getKey());
@@ -133,6 +177,17 @@ public class State {
             supers = new ArrayList<>();
         }
         supers.add(sup);
+        synchronized (this) {
+            mro = null;
+            attrCache = null;
+            supersVersion++;
+        }
+    }
+
+
+    // called after any change to the table
+    private void changed() {
+        tableVersion++;
     }
 
 
@@ -163,6 +218,7 @@ public class State {
     public void remove(String id) {
         if (table != null) {
             table.remove(id);
+            changed();
         }
     }
 
@@ -171,7 +227,7 @@ public class State {
     public void insert(String id, @NotNull Node node, @NotNull Type type, Binding.Kind kind) {
         Binding b = new Binding(id, node, type, kind);
         if (type instanceof ModuleType) {
-            b.setQname(type.asModuleType().qname);
+            b.setQname(type.table.getQname());
         } else {
             b.setQname(extendPath(id));
         }
@@ -183,6 +239,7 @@ public class State {
     @NotNull
     public Set<Binding> update(String id, @NotNull Set<Binding> bs) {
         table.put(id, bs);
+        changed();
         return bs;
     }
 
@@ -192,26 +249,75 @@ public class State {
         Set<Binding> bs = new HashSet<>(1);
         bs.add(b);
         table.put(id, bs);
+        changed();
         return bs;
     }
 
 
     public void setPath(@NotNull String path) {
+        this.path = Qname.of(path);
+    }
+
+
+    public void setPath(@NotNull Qname path) {
         this.path = path;
     }
 
 
+    @NotNull
+    public Qname getQname() {
+        return path;
+    }
+
+
+    /**
+     * The qualified name of this scope, like "pkg.mod.Class".
+     */
+    @NotNull
+    public String getPath() {
+        return path.toString();
+    }
+
+
     public void setType(Type type) {
         this.type = type;
     }
 
 
+    /**
+     * Put off filling in this state until it is first read. Inserting into
+     * it doesn't count as reading.
+     */
+    public void defer(@NotNull Deferred d) {
+        deferred = d;
+    }
+
+
+    public boolean isDeferred() {
+        return deferred != null;
+    }
+
+
+    /**
+     * Run the deferred work, if any. It is cleared first, so reads during
+     * the work see the partial table, like a circular import does.
+     */
+    public void force() {
+        if (deferred != null) {
+            Deferred d = deferred;
+            deferred = null;
+            d.force();
+        }
+    }
+
+
     /**
      * Look up a name in the current symbol table only. Don't recurse on the
      * parent table.
      */
     @Nullable
     public Set<Binding> lookupLocal(String name) {
+        force();
         if (table == null) {
             return null;
         } else {
@@ -244,6 +350,30 @@ public class State {
     }
 
 
+    /**
+     * Look up a name that has been resolved by {@link ScopeResolver}. Nothing
+     * on the chain declares it global, and the first {@code depth} function
+     * tables are known not to bind it, so they are skipped and the rest of
+     * the chain is searched without the global check.
+     */
+    @Nullable
+    public Set<Binding> lookupResolved(@NotNull String name, int depth) {
+        State s = this;
+        for (int i = 0; i < depth && s.parent != null && s.stateType == StateType.FUNCTION; i++) {
+            s = s.parent;
+        }
+
+        while (s != null) {
+            Set<Binding> b = s.lookupLocal(name);
+            if (b != null) {
+                return b;
+            }
+            s = s.parent;
+        }
+        return null;
+    }
+
+
     /**
      * Look up a name in the module if it is declared as global, otherwise look
      * it up locally.
@@ -261,38 +391,172 @@ public class State {
 
     /**
      * Look up an attribute in the type hierarchy.  Don't look at parent link,
-     * because the enclosing scope may not be a super class. The search is
-     * "depth first, left to right" as in Python's (old) multiple inheritance
-     * rule. The new MRO can be implemented, but will probably not introduce
-     * much difference.
+     * because the enclosing scope may not be a super class. The search follows
+     * the linearized supers from {@link #getMro()}. Results found in supers
+     * are cached per attribute until the hierarchy or a super's table changes.
      */
-    @NotNull
-    private static Set<State> looked = new HashSet<>();    // circularity prevention
+    @Nullable
+    public Set<Binding> lookupAttr(String attr) {
+        Set<Binding> b = lookupLocal(attr);
+        if (b != null || supers == null || supers.isEmpty()) {
+            return b;
+        } else {
+            return lookupSupers(attr);
+        }
+    }
 
 
     @Nullable
-    public Set<Binding> lookupAttr(String attr) {
-        if (looked.contains(this)) {
-            return null;
+    private synchronized Set<Binding> lookupSupers(String attr) {
+        List<State> linearized = getMro();
+        if (attrCache != null && attrCacheStamp == tableStamp(linearized)) {
+            if (attrCache.containsKey(attr)) {
+                return attrCache.get(attr);
+            }
         } else {
-            Set<Binding> b = lookupLocal(attr);
+            attrCache = new HashMap<>();
+        }
+
+        Set<Binding> b = null;
+        for (int i = 1; i < linearized.size(); i++) {
+            b = linearized.get(i).lookupLocal(attr);
             if (b != null) {
-                return b;
-            } else {
-                if (supers != null && !supers.isEmpty()) {
-                    looked.add(this);
-                    for (State p : supers) {
-                        b = p.lookupAttr(attr);
-                        if (b != null) {
-                            looked.remove(this);
-                            return b;
-                        }
-                    }
-                    looked.remove(this);
-                    return null;
-                } else {
+                break;
+            }
+        }
+
+        // after the lookups, which may have filled in deferred supers
+        attrCacheStamp = tableStamp(linearized);
+        attrCache.put(attr, b);   // may be null
+        return b;
+    }
+
+
+    private static long tableStamp(@NotNull List<State> linearized) {
+        long stamp = 0;
+        for (int i = 1; i < linearized.size(); i++) {
+            stamp += linearized.get(i).tableVersion;
+        }
+        return stamp;
+    }
+
+
+    private static long supersStamp(@NotNull List<State> linearized) {
+        long stamp = 0;
+        for (State s : linearized) {
+            stamp += s.supersVersion;
+        }
+        return stamp;
+    }
+
+
+    /**
+     * Returns this state followed by its supers in method resolution order.
+     * This is Python's C3 linearization. Hierarchies that C3 rejects, or that
+     * are circular, fall back to "depth first, left to right" order with
+     * duplicates removed, which is the rule of Python's old-style classes.
+     */
+    @NotNull
+    public synchronized List<State> getMro() {
+        // the MRO depends only on the supers of the states in it
+        if (mro == null || mroStamp != supersStamp(mro)) {
+            List<State> ret = linearize(this, new HashMap<State, List<State>>(), new HashSet<State>());
+            if (ret == null) {
+                ret = new ArrayList<>();
+                linearizeDepthFirst(this, ret);
+            }
+            mro = ret;
+            mroStamp = supersStamp(ret);
+            attrCache = null;
+        }
+        return mro;
+    }
+
+
+    // C3 linearization, null if it fails or the supers are circular
+    @Nullable
+    private static List<State> linearize(@NotNull State s,
+                                         @NotNull Map<State, List<State>> done,
+                                         @NotNull Set<State> visiting)
+    {
+        List<State> ret = done.get(s);
+        if (ret != null) {
+            return ret;
+        }
+
+        if (!visiting.add(s)) {
+            return null;
+        }
+
+        List<List<State>> seqs = new ArrayList<>();
+        if (s.supers != null) {
+            for (State sup : s.supers) {
+                List<State> l = linearize(sup, done, visiting);
+                if (l == null) {
                     return null;
                 }
+                seqs.add(new ArrayList<>(l));
+            }
+            seqs.add(new ArrayList<>(s.supers));
+        }
+        visiting.remove(s);
+
+        ret = new ArrayList<>();
+        ret.add(s);
+
+        while (true) {
+            State next = null;
+            for (List<State> seq : seqs) {
+                if (!seq.isEmpty()) {
+                    State head = seq.get(0);
+                    if (!inTail(head, seqs)) {
+                        next = head;
+                        break;
+                    }
+                }
+            }
+
+            if (next == null) {
+                for (List<State> seq : seqs) {
+                    if (!seq.isEmpty()) {
+                        return null;     // inconsistent hierarchy
+                    }
+                }
+                break;
+            }
+
+            ret.add(next);
+            for (List<State> seq : seqs) {
+                if (!seq.isEmpty() && seq.get(0) == next) {
+                    seq.remove(0);
+                }
+            }
+        }
+
+        done.put(s, ret);
+        return ret;
+    }
+
+
+    private static boolean inTail(State s, @NotNull List<List<State>> seqs) {
+        for (List<State> seq : seqs) {
+            for (int i = 1; i < seq.size(); i++) {
+                if (seq.get(i) == s) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+
+    private static void linearizeDepthFirst(@NotNull State s, @NotNull List<State> out) {
+        if (!out.contains(s)) {
+            out.add(s);
+            if (s.supers != null) {
+                for (State sup : s.supers) {
+                    linearizeDepthFirst(sup, out);
+                }
             }
         }
     }
@@ -381,12 +645,15 @@ public class State {
 
 
     public void putAll(@NotNull State other) {
+        other.force();
         table.putAll(other.table);
+        changed();
     }
 
 
     @NotNull
     public Set<String> keySet() {
+        force();
         if (table != null) {
             return table.keySet();
         } else {
@@ -397,6 +664,7 @@ public class State {
 
     @NotNull
     public Collection<Binding> values() {
+        force();
         if (table != null) {
             Set<Binding> ret = new HashSet<>();
             for (Set<Binding> bs : table.values()) {
@@ -410,6 +678,7 @@ public class State {
 
     @NotNull
     public Set<Entry<String, Set<Binding>>> entrySet() {
+        force();
         if (table != null) {
             return table.entrySet();
         }
@@ -418,17 +687,20 @@ public class State {
 
 
     public boolean isEmpty() {
+        force();
         return table == null || table.isEmpty();
     }
 
 
     @NotNull
-    public String extendPath(@NotNull String name) {
-        name = _.moduleName(name);
-        if (path.equals("")) {
-            return name;
+    public Qname extendPath(@NotNull String name) {
+        // most names are identifiers, which moduleName leaves alone
+        if (name.indexOf('/') >= 0 || name.indexOf(File.separatorChar) >= 0 ||
+                name.endsWith(Analyzer.self.suffix))
+        {
+            name = _.moduleName(name);
         }
-        return path + "." + name;
+        return path.extend(name);
     }
 
 
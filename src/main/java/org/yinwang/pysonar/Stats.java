@@ -1,52 +1,360 @@
 package org.yinwang.pysonar;
 
-import java.util.HashMap;
+import com.google.gson.GsonBuilder;
+import org.jetbrains.annotations.NotNull;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.*;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
 
-public class Stats {
-    Map<String, Object> contents = new HashMap<>();
 
+/**
+ * The metrics of an analysis: counters, histograms, and the wall and CPU
+ * time of its phases, all safe to update from any thread without locks.
+ * Names are dotted, like "cache.diskHits" or "parse.fileMillis".
+ *
+ * The registry of the latest analyzer is registered as the MXBean
+ * "org.yinwang.pysonar:type=Stats", and {@link #writeJson} writes it out
+ * for dashboards.
+ */
+public class Stats implements StatsMXBean {
 
-    public void putInt(String key, long value) {
-        contents.put(key, value);
+    public static final String MBEAN_NAME = "org.yinwang.pysonar:type=Stats";
+
+    @NotNull
+    private final ConcurrentMap<String, Counter> counters = new ConcurrentHashMap<>();
+    @NotNull
+    private final ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<>();
+    @NotNull
+    private final ConcurrentMap<String, PhaseTimes> phases = new ConcurrentHashMap<>();
+    @NotNull
+    private final AtomicLong heapHighWater = new AtomicLong();
+    private final long startMillis = System.currentTimeMillis();
+
+
+    public static class Counter {
+        private final AtomicLong value = new AtomicLong();
+
+
+        public void inc() {
+            value.incrementAndGet();
+        }
+
+
+        public void add(long x) {
+            value.addAndGet(x);
+        }
+
+
+        public void set(long x) {
+            value.set(x);
+        }
+
+
+        public long get() {
+            return value.get();
+        }
     }
 
 
-    public void inc(String key, long x) {
-        Long old = getInt(key);
+    /**
+     * Counts values in power of two buckets, which is enough for the
+     * percentiles of times and sizes to within a factor of two. Bucket i
+     * holds the values from 2^(i-1) to 2^i - 1.
+     */
+    public static class Histogram {
+        private final AtomicLongArray buckets = new AtomicLongArray(64);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+
+        public void record(long value) {
+            if (value < 0) {
+                value = 0;
+            }
+            buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(value));
+            count.incrementAndGet();
+            sum.addAndGet(value);
+            long m;
+            while (value > (m = max.get()) && !max.compareAndSet(m, value)) {
+            }
+        }
+
+
+        public long getCount() {
+            return count.get();
+        }
+
 
-        if (old == null) {
-            contents.put(key, 1);
-        } else {
-            contents.put(key, old + x);
+        // an upper bound of the value below which the fraction q of the values are
+        public long percentile(double q) {
+            long n = count.get();
+            if (n == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(q * n);
+            long seen = 0;
+            for (int i = 0; i < 64; i++) {
+                seen += buckets.get(i);
+                if (seen >= rank) {
+                    return Math.min(i == 0 ? 0 : (1L << i) - 1, max.get());
+                }
+            }
+            return max.get();
+        }
+
+
+        @NotNull
+        Map<String, Object> toMap() {
+            Map<String, Object> m = new LinkedHashMap<>();
+            long n = count.get();
+            m.put("count", n);
+            m.put("sum", sum.get());
+            m.put("mean", n == 0 ? 0 : sum.get() / n);
+            m.put("p50", percentile(0.5));
+            m.put("p90", percentile(0.9));
+            m.put("p99", percentile(0.99));
+            m.put("max", max.get());
+            return m;
         }
     }
 
 
+    private static class PhaseTimes {
+        final AtomicLong count = new AtomicLong();
+        final AtomicLong wallNanos = new AtomicLong();
+        final AtomicLong cpuNanos = new AtomicLong();
+    }
+
+
+    /**
+     * A running phase, ended by {@link #end}. Phases may nest; the time of
+     * an inner phase is also counted in the outer one. CPU time is that of
+     * the thread that started the phase.
+     */
+    public class Phase {
+        @NotNull
+        private final String name;
+        private final long wallStart = System.nanoTime();
+        private final long cpuStart = cpuTime();
+
+
+        private Phase(@NotNull String name) {
+            this.name = name;
+        }
+
+
+        public void end() {
+            PhaseTimes times = phases.get(name);
+            if (times == null) {
+                phases.putIfAbsent(name, new PhaseTimes());
+                times = phases.get(name);
+            }
+            times.count.incrementAndGet();
+            times.wallNanos.addAndGet(System.nanoTime() - wallStart);
+            long cpu = cpuTime();
+            if (cpu >= 0 && cpuStart >= 0) {
+                times.cpuNanos.addAndGet(cpu - cpuStart);
+            }
+            sampleHeap();
+        }
+    }
+
+
+    @NotNull
+    public Counter counter(@NotNull String name) {
+        Counter c = counters.get(name);
+        if (c == null) {
+            counters.putIfAbsent(name, new Counter());
+            c = counters.get(name);
+        }
+        return c;
+    }
+
+
+    @NotNull
+    public Histogram histogram(@NotNull String name) {
+        Histogram h = histograms.get(name);
+        if (h == null) {
+            histograms.putIfAbsent(name, new Histogram());
+            h = histograms.get(name);
+        }
+        return h;
+    }
+
+
+    @NotNull
+    public Phase start(@NotNull String phase) {
+        return new Phase(phase);
+    }
+
+
+    private static long cpuTime() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        return bean.isCurrentThreadCpuTimeSupported() ? bean.getCurrentThreadCpuTime() : -1;
+    }
+
+
+    /**
+     * Records the heap in use now if it is the most seen so far. Called at
+     * the end of every phase; the peak of the heap pools, which also
+     * counts garbage not yet collected, is in the report too.
+     */
+    public void sampleHeap() {
+        long used = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+        long m;
+        while (used > (m = heapHighWater.get()) && !heapHighWater.compareAndSet(m, used)) {
+        }
+    }
+
+
+    private static long heapPoolPeaks() {
+        long total = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null) {
+                total += pool.getPeakUsage().getUsed();
+            }
+        }
+        return total;
+    }
+
+
+    public void putInt(String key, long value) {
+        counter(key).set(value);
+    }
+
+
+    public void inc(String key, long x) {
+        counter(key).add(x);
+    }
+
+
     public void inc(String key) {
-        inc(key, 1);
+        counter(key).inc();
     }
 
 
     public Long getInt(String key) {
-        Long ret = (Long) contents.get(key);
-        if (ret == null) {
-            return 0L;
-        } else {
-            return ret;
+        Counter c = counters.get(key);
+        return c == null ? 0L : c.get();
+    }
+
+
+    public long getStartMillis() {
+        return startMillis;
+    }
+
+
+    /**
+     * Wall time of a phase so far, in milliseconds.
+     */
+    public long getPhaseMillis(@NotNull String phase) {
+        PhaseTimes times = phases.get(phase);
+        return times == null ? 0 : times.wallNanos.get() / 1000000;
+    }
+
+
+    @Override
+    @NotNull
+    public Map<String, Long> getCounters() {
+        Map<String, Long> m = new TreeMap<>();
+        for (Map.Entry<String, Counter> e : counters.entrySet()) {
+            m.put(e.getKey(), e.getValue().get());
+        }
+        return m;
+    }
+
+
+    @NotNull
+    public Map<String, Object> toMap() {
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("startMillis", startMillis);
+        report.put("elapsedMillis", System.currentTimeMillis() - startMillis);
+        report.put("counters", getCounters());
+
+        Map<String, Object> hs = new TreeMap<>();
+        for (Map.Entry<String, Histogram> e : histograms.entrySet()) {
+            hs.put(e.getKey(), e.getValue().toMap());
+        }
+        report.put("histograms", hs);
+
+        Map<String, Object> ps = new TreeMap<>();
+        for (Map.Entry<String, PhaseTimes> e : phases.entrySet()) {
+            Map<String, Object> p = new LinkedHashMap<>();
+            p.put("count", e.getValue().count.get());
+            p.put("wallMillis", e.getValue().wallNanos.get() / 1000000);
+            p.put("cpuMillis", e.getValue().cpuNanos.get() / 1000000);
+            ps.put(e.getKey(), p);
+        }
+        report.put("phases", ps);
+
+        sampleHeap();
+        Map<String, Object> heap = new LinkedHashMap<>();
+        heap.put("highWaterBytes", heapHighWater.get());
+        heap.put("poolPeakBytes", heapPoolPeaks());
+        heap.put("maxBytes", Runtime.getRuntime().maxMemory());
+        report.put("heap", heap);
+        return report;
+    }
+
+
+    @Override
+    @NotNull
+    public String getJson() {
+        return new GsonBuilder().setPrettyPrinting().create().toJson(toMap());
+    }
+
+
+    public void writeJson(@NotNull String path) {
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(path), UTF_8)) {
+            out.write(getJson());
+            out.write('\n');
+        } catch (IOException e) {
+            _.msg("Failed to write metrics to " + path + ": " + e);
+        }
+    }
+
+
+    /**
+     * Makes this the registry JMX clients see, replacing the one of an
+     * earlier analyzer in the same JVM.
+     */
+    public void register() {
+        try {
+            ObjectName name = new ObjectName(MBEAN_NAME);
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(this, name);
+        } catch (Exception e) {
+            _.msg("Failed to register metrics with JMX: " + e);
         }
     }
 
 
+    @NotNull
     public String print() {
         StringBuilder sb = new StringBuilder();
 
-        for (Map.Entry<String, Object> e : contents.entrySet()) {
+        for (Map.Entry<String, Long> e : getCounters().entrySet()) {
             sb.append("\n- " + e.getKey() + ": " + e.getValue());
         }
 
         return sb.toString();
     }
-
 }
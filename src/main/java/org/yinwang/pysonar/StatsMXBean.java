@@ -0,0 +1,15 @@
+package org.yinwang.pysonar;
+
+import java.util.Map;
+
+
+/**
+ * What JMX clients see of {@link Stats}.
+ */
+public interface StatsMXBean {
+
+    Map<String, Long> getCounters();
+
+
+    String getJson();
+}
@@ -0,0 +1,547 @@
+package org.yinwang.pysonar;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.*;
+
+
+/**
+ * Search index over the qualified names of the bindings of an analysis,
+ * stored in a file that is memory-mapped for queries, so a query process
+ * does not need to run the analysis or load the whole index.
+ *
+ * A query matches a symbol by
+ * <ul>
+ * <li>exact name or name prefix ("Anal" finds Analyzer),
+ * <li>camel humps or underscore words ("gFB" and "gfb" find getFooBar and get_foo_bar),
+ * <li>substring of the qualified name, through a trigram index ("pkg.util.he").
+ * </ul>
+ * All matching is case insensitive. Results are ranked by how they match,
+ * then by binding kind (classes and functions first) and export status, as
+ * JSONDump computes it, and then by qname length.
+ *
+ * File layout, all integers big endian:
+ * <pre>
+ *   header     magic, version, count, and the positions of the sections below
+ *   records    per symbol: qname, name, file (string positions), kind, exported, start, end
+ *   names      symbol ids sorted by lower-case name
+ *   humps      symbol ids sorted by hump initials
+ *   trigrams   sorted trigram keys (long), posting list starts, posting lists of ids
+ *   strings    length-prefixed UTF-8
+ * </pre>
+ */
+public class SymbolIndex {
+
+    private static final int MAGIC = 0x50595358;  // "PYSX"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 4 * 9;
+    private static final int RECORD_SIZE = 4 * 3 + 4 + 4 * 2;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // match classes, best first
+    private static final int EXACT = 0;
+    private static final int PREFIX = 1;
+    private static final int HUMPS = 2;
+    private static final int SUBSTRING = 3;
+
+    private static final Binding.Kind[] KINDS = Binding.Kind.values();
+    private static final int[] KIND_RANK = new int[KINDS.length];
+
+
+    static {
+        Binding.Kind[] order = {
+                Binding.Kind.CLASS,
+                Binding.Kind.FUNCTION,
+                Binding.Kind.METHOD,
+                Binding.Kind.CONSTRUCTOR,
+                Binding.Kind.MODULE,
+                Binding.Kind.ATTRIBUTE,
+                Binding.Kind.SCOPE,
+                Binding.Kind.VARIABLE,
+                Binding.Kind.PARAMETER
+        };
+        for (int i = 0; i < order.length; i++) {
+            KIND_RANK[order[i].ordinal()] = i;
+        }
+    }
+
+
+    public static class Symbol {
+        public String qname;
+        public String name;
+        public String file;
+        public Binding.Kind kind;
+        public boolean exported;
+        public int start;
+        public int end;
+        int match;
+
+
+        @NotNull
+        @Override
+        public String toString() {
+            return qname + " (" + kind + (exported ? ", exported" : "") + ") " + file + ":" + start;
+        }
+    }
+
+
+    @NotNull
+    private ByteBuffer buf;
+    private int count;
+    private int recordsPos;
+    private int namesPos;
+    private int humpsPos;
+    private int nTrigrams;
+    private int trigramKeysPos;
+    private int postingStartsPos;
+    private int postingsPos;
+
+
+    private SymbolIndex(@NotNull ByteBuffer buf) throws IOException {
+        this.buf = buf;
+        if (buf.getInt(0) != MAGIC || buf.getInt(4) != VERSION) {
+            throw new IOException("not a symbol index, or of another version");
+        }
+        count = buf.getInt(8);
+        recordsPos = buf.getInt(12);
+        namesPos = buf.getInt(16);
+        humpsPos = buf.getInt(20);
+        nTrigrams = buf.getInt(24);
+        trigramKeysPos = buf.getInt(28);
+        postingStartsPos = buf.getInt(32);
+        postingsPos = postingStartsPos + 4 * (nTrigrams + 1);
+    }
+
+
+    /**
+     * Maps an index file written by {@link #write}.
+     */
+    @NotNull
+    public static SymbolIndex open(@NotNull String path) throws IOException {
+        try (RandomAccessFile f = new RandomAccessFile(path, "r");
+             FileChannel ch = f.getChannel())
+        {
+            MappedByteBuffer mapped = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            return new SymbolIndex(mapped);
+        }
+    }
+
+
+    public int size() {
+        return count;
+    }
+
+
+    // ------------------------- writing -----------------------
+
+
+    /**
+     * Writes the index of all source bindings of a finished analysis.
+     */
+    public static void write(@NotNull Analyzer analyzer, @NotNull String path) throws IOException {
+        // one symbol per qname, as in JSONDump
+        List<Binding> symbols = new ArrayList<>();
+        Set<String> seen = new HashSet<>();
+        for (Binding b : analyzer.getAllBindings()) {
+            if (b.getFile() != null && !b.isBuiltin() && b.start >= 0 && seen.add(b.getQname())) {
+                symbols.add(b);
+            }
+        }
+        write(symbols, path);
+    }
+
+
+    static void write(@NotNull final List<Binding> symbols, @NotNull String path) throws IOException {
+        int n = symbols.size();
+        final String[] lowerNames = new String[n];
+        final String[] humps = new String[n];
+        for (int i = 0; i < n; i++) {
+            lowerNames[i] = symbols.get(i).name.toLowerCase();
+            humps[i] = humps(symbols.get(i).name);
+        }
+
+        Integer[] byName = sortedIds(lowerNames);
+        Integer[] byHumps = sortedIds(humps);
+
+        // trigram -> ids, ids ascending
+        TreeMap<Long, List<Integer>> trigrams = new TreeMap<>();
+        for (int i = 0; i < n; i++) {
+            String q = symbols.get(i).getQname().toLowerCase();
+            Set<Long> keys = new HashSet<>();
+            for (int j = 0; j + 3 <= q.length(); j++) {
+                keys.add(trigram(q, j));
+            }
+            for (Long k : keys) {
+                List<Integer> ids = trigrams.get(k);
+                if (ids == null) {
+                    ids = new ArrayList<>();
+                    trigrams.put(k, ids);
+                }
+                ids.add(i);
+            }
+        }
+
+        int nPostings = 0;
+        for (List<Integer> ids : trigrams.values()) {
+            nPostings += ids.size();
+        }
+
+        int recordsPos = HEADER_SIZE;
+        int namesPos = recordsPos + n * RECORD_SIZE;
+        int humpsPos = namesPos + 4 * n;
+        int trigramKeysPos = humpsPos + 4 * n;
+        int postingStartsPos = trigramKeysPos + 8 * trigrams.size();
+        int stringsPos = postingStartsPos + 4 * (trigrams.size() + 1) + 4 * nPostings;
+
+        ByteArrayOutputStream strings = new ByteArrayOutputStream();
+        Map<String, Integer> stringPos = new HashMap<>();
+
+        File tmp = new File(path + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(n);
+            out.writeInt(recordsPos);
+            out.writeInt(namesPos);
+            out.writeInt(humpsPos);
+            out.writeInt(trigrams.size());
+            out.writeInt(trigramKeysPos);
+            out.writeInt(postingStartsPos);
+
+            for (Binding b : symbols) {
+                out.writeInt(stringsPos + intern(b.getQname(), strings, stringPos));
+                out.writeInt(stringsPos + intern(b.name, strings, stringPos));
+                out.writeInt(stringsPos + intern(b.getFile(), strings, stringPos));
+                out.writeByte(b.kind.ordinal());
+                out.writeByte(b.isExported() ? 1 : 0);
+                out.writeShort(0);
+                out.writeInt(b.start);
+                out.writeInt(b.end);
+            }
+
+            for (int id : byName) {
+                out.writeInt(id);
+            }
+            for (int id : byHumps) {
+                out.writeInt(id);
+            }
+
+            for (long k : trigrams.keySet()) {
+                out.writeLong(k);
+            }
+            int start = 0;
+            for (List<Integer> ids : trigrams.values()) {
+                out.writeInt(start);
+                start += ids.size();
+            }
+            out.writeInt(start);
+            for (List<Integer> ids : trigrams.values()) {
+                for (int id : ids) {
+                    out.writeInt(id);
+                }
+            }
+
+            strings.writeTo(out);
+        }
+
+        File dest = new File(path);
+        if (!tmp.renameTo(dest)) {
+            dest.delete();
+            if (!tmp.renameTo(dest)) {
+                throw new IOException("Failed to move index into place: " + path);
+            }
+        }
+    }
+
+
+    @NotNull
+    private static Integer[] sortedIds(@NotNull final String[] keys) {
+        Integer[] ids = new Integer[keys.length];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = i;
+        }
+        Arrays.sort(ids, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return keys[a].compareTo(keys[b]);
+            }
+        });
+        return ids;
+    }
+
+
+    private static int intern(@NotNull String s, @NotNull ByteArrayOutputStream strings,
+                              @NotNull Map<String, Integer> stringPos) throws IOException
+    {
+        Integer pos = stringPos.get(s);
+        if (pos == null) {
+            pos = strings.size();
+            byte[] bytes = s.getBytes(UTF8);
+            DataOutputStream out = new DataOutputStream(strings);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+            stringPos.put(s, pos);
+        }
+        return pos;
+    }
+
+
+    // first letter of each word: camelCase humps and underscore separated words
+    @NotNull
+    static String humps(@NotNull String name) {
+        StringBuilder sb = new StringBuilder();
+        char prev = '_';
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c != '_' && (prev == '_' || (Character.isUpperCase(c) && !Character.isUpperCase(prev)))) {
+                sb.append(Character.toLowerCase(c));
+            }
+            prev = c;
+        }
+        return sb.toString();
+    }
+
+
+    private static long trigram(@NotNull String s, int i) {
+        return ((long) s.charAt(i) << 32) | ((long) s.charAt(i + 1) << 16) | s.charAt(i + 2);
+    }
+
+
+    // ------------------------- reading -----------------------
+
+
+    @NotNull
+    private String string(int pos) {
+        int len = buf.getInt(pos);
+        byte[] bytes = new byte[len];
+        ByteBuffer b = buf.duplicate();
+        b.position(pos + 4);
+        b.get(bytes);
+        return new String(bytes, UTF8);
+    }
+
+
+    @NotNull
+    private String name(int id) {
+        return string(buf.getInt(recordsPos + id * RECORD_SIZE + 4));
+    }
+
+
+    @NotNull
+    private String qname(int id) {
+        return string(buf.getInt(recordsPos + id * RECORD_SIZE));
+    }
+
+
+    @NotNull
+    private Symbol symbol(int id, int match) {
+        int r = recordsPos + id * RECORD_SIZE;
+        Symbol s = new Symbol();
+        s.qname = string(buf.getInt(r));
+        s.name = string(buf.getInt(r + 4));
+        s.file = string(buf.getInt(r + 8));
+        s.kind = KINDS[buf.get(r + 12)];
+        s.exported = buf.get(r + 13) != 0;
+        s.start = buf.getInt(r + 16);
+        s.end = buf.getInt(r + 20);
+        s.match = match;
+        return s;
+    }
+
+
+    /**
+     * Returns up to {@code limit} best matches for {@code query}.
+     */
+    @NotNull
+    public List<Symbol> search(@NotNull String query, int limit) {
+        String q = query.toLowerCase();
+        Map<Integer, Integer> matches = new HashMap<>();
+        if (q.isEmpty()) {
+            return new ArrayList<>();
+        }
+
+        // name prefix
+        for (int i = lowerBound(namesPos, q, false); i < count; i++) {
+            int id = buf.getInt(namesPos + 4 * i);
+            String name = name(id).toLowerCase();
+            if (!name.startsWith(q)) {
+                break;
+            }
+            addMatch(matches, id, name.equals(q) ? EXACT : PREFIX);
+        }
+
+        // camel humps
+        for (int i = lowerBound(humpsPos, q, true); i < count; i++) {
+            int id = buf.getInt(humpsPos + 4 * i);
+            if (!humps(name(id)).startsWith(q)) {
+                break;
+            }
+            addMatch(matches, id, HUMPS);
+        }
+
+        // substring of the qname
+        if (q.length() >= 3) {
+            for (int id : trigramCandidates(q)) {
+                if (qname(id).toLowerCase().contains(q)) {
+                    addMatch(matches, id, SUBSTRING);
+                }
+            }
+        }
+
+        List<Symbol> ret = new ArrayList<>(matches.size());
+        for (Map.Entry<Integer, Integer> e : matches.entrySet()) {
+            ret.add(symbol(e.getKey(), e.getValue()));
+        }
+        Collections.sort(ret, new Comparator<Symbol>() {
+            @Override
+            public int compare(@NotNull Symbol a, @NotNull Symbol b) {
+                if (a.match != b.match) {
+                    return a.match - b.match;
+                } else if (a.kind != b.kind) {
+                    return KIND_RANK[a.kind.ordinal()] - KIND_RANK[b.kind.ordinal()];
+                } else if (a.exported != b.exported) {
+                    return a.exported ? -1 : 1;
+                } else if (a.qname.length() != b.qname.length()) {
+                    return a.qname.length() - b.qname.length();
+                } else {
+                    return a.qname.compareTo(b.qname);
+                }
+            }
+        });
+        return ret.size() > limit ? new ArrayList<>(ret.subList(0, limit)) : ret;
+    }
+
+
+    private static void addMatch(@NotNull Map<Integer, Integer> matches, int id, int match) {
+        Integer old = matches.get(id);
+        if (old == null || match < old) {
+            matches.put(id, match);
+        }
+    }
+
+
+    // first position in a sorted id array whose key is >= q
+    private int lowerBound(int arrayPos, @NotNull String q, boolean byHumps) {
+        int lo = 0, hi = count;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            String name = name(buf.getInt(arrayPos + 4 * mid));
+            String key = byHumps ? humps(name) : name.toLowerCase();
+            if (key.compareTo(q) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+
+    // ids that contain all trigrams of q, by intersecting posting lists
+    @NotNull
+    private List<Integer> trigramCandidates(@NotNull String q) {
+        List<int[]> lists = new ArrayList<>();
+        for (int j = 0; j + 3 <= q.length(); j++) {
+            int[] range = postings(trigram(q, j));
+            if (range == null) {
+                return new ArrayList<>();
+            }
+            lists.add(range);
+        }
+
+        // shortest list first
+        Collections.sort(lists, new Comparator<int[]>() {
+            @Override
+            public int compare(int[] a, int[] b) {
+                return (a[1] - a[0]) - (b[1] - b[0]);
+            }
+        });
+
+        List<Integer> ret = new ArrayList<>();
+        int[] first = lists.get(0);
+        for (int p = first[0]; p < first[1]; p++) {
+            int id = buf.getInt(postingsPos + 4 * p);
+            boolean all = true;
+            for (int k = 1; k < lists.size() && all; k++) {
+                all = containsId(lists.get(k), id);
+            }
+            if (all) {
+                ret.add(id);
+            }
+        }
+        return ret;
+    }
+
+
+    // [start, end) of the posting list of a trigram
+    @Nullable
+    private int[] postings(long key) {
+        int lo = 0, hi = nTrigrams - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            long k = buf.getLong(trigramKeysPos + 8 * mid);
+            if (k < key) {
+                lo = mid + 1;
+            } else if (k > key) {
+                hi = mid - 1;
+            } else {
+                return new int[]{buf.getInt(postingStartsPos + 4 * mid),
+                        buf.getInt(postingStartsPos + 4 * (mid + 1))};
+            }
+        }
+        return null;
+    }
+
+
+    private boolean containsId(@NotNull int[] range, int id) {
+        int lo = range[0], hi = range[1] - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int v = buf.getInt(postingsPos + 4 * mid);
+            if (v < id) {
+                lo = mid + 1;
+            } else if (v > id) {
+                hi = mid - 1;
+            } else {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    private static void usage() {
+        System.out.println("Usage: java org.yinwang.pysonar.SymbolIndex build <file-or-dir> <index-file>");
+        System.out.println("       java org.yinwang.pysonar.SymbolIndex query <index-file> <query> [limit]");
+        System.exit(0);
+    }
+
+
+    public static void main(@NotNull String[] args) throws Exception {
+        if (args.length < 3) {
+            usage();
+        }
+
+        if (args[0].equals("build")) {
+            Analyzer analyzer = new Analyzer();
+            analyzer.analyze(args[1]);
+            analyzer.finish();
+            write(analyzer, args[2]);
+            analyzer.close();
+        } else if (args[0].equals("query")) {
+            SymbolIndex index = open(args[1]);
+            int limit = args.length > 3 ? Integer.parseInt(args[3]) : 20;
+            for (Symbol s : index.search(args[2], limit)) {
+                System.out.println(s);
+            }
+        } else {
+            usage();
+        }
+    }
+}
@@ -2,12 +2,42 @@ package org.yinwang.pysonar;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import org.apache.commons.io.FileUtils;
 import org.yinwang.pysonar.ast.Dummy;
 import org.yinwang.pysonar.ast.Node;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.file.Files;
 import java.util.*;
-
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Runs the .test directories under a path and checks the references found
+ * against refs.json in each, or with -exp writes refs.json.
+ *
+ * With -perf, it checks performance instead. Each .test directory is
+ * analyzed in a JVM of its own, with an empty cache directory, --workers
+ * of them at a time. Each run records the bytes allocated by all threads
+ * and the heap still in use after finish() and a full GC. These are
+ * compared with perf-budgets.json in the path, and a run fails if one is
+ * over its budget by more than the tolerance and the slack given in that
+ * file. -perf -exp writes the file from the measured values. The wall
+ * time of analyze() and finish() is reported too, but not budgeted: it
+ * depends on the machine and on what else runs on it.
+ *
+ * With -parsers, it parses the Python files under the path with both
+ * dump_python.py and the parser in the JVM and reports the ASTs that
+ * differ; it fails if any do.
+ */
 public class Test {
 
     static Gson gson = new GsonBuilder().setPrettyPrinting().create();
@@ -98,9 +128,10 @@ public class Test {
         for (Map<String, Object> r : expectedRefs) {
             Map<String, Object> refMap = (Map<String, Object>) r.get("ref");
             Dummy dummy = makeDummy(refMap);
+            Node ref = analyzer.getOffsetIndex().nodeAt(dummy.file, dummy.start, dummy.end);
 
             List<Map<String, Object>> dests = (List<Map<String, Object>>) r.get("dests");
-            List<Binding> actualDests = analyzer.getReferences().get(dummy);
+            List<Binding> actualDests = analyzer.getOffsetIndex().bindingsOf(ref);
             List<Map<String, Object>> failedDests = new ArrayList<>();
 
             for (Map<String, Object> d : dests) {
@@ -222,13 +253,403 @@ public class Test {
     }
 
 
+    // ------------------------- performance -----------------------
+
+
+    static final String BUDGETS_FILE = "perf-budgets.json";
+    static final String[] METRICS = {"wallMillis", "allocatedBytes", "retainedBytes"};
+    static final String[] BUDGETED = {"allocatedBytes", "retainedBytes"};
+    private static final String RESULT_PREFIX = "perf-result: ";
+
+
+    static class PerfBudgets {
+        double memoryTolerance = 0.25;
+        // allowed on top, so the noise of small corpora doesn't fail them
+        long memorySlackBytes = 1024 * 1024;
+        Map<String, Map<String, Long>> corpora = new TreeMap<>();
+    }
+
+
+    /**
+     * Analyzes one corpus in this JVM and measures it. Called in the
+     * child process started by {@link #runPerfChild}.
+     */
+    static Map<String, Long> measure(String dir, String cacheDir) {
+        long baseline = usedHeapAfterGc();
+        long allocated = allocatedBytes();
+
+        Map<String, Object> options = new HashMap<>();
+        options.put("quiet", true);
+        options.put("cache-dir", cacheDir);
+        Analyzer analyzer = new Analyzer(options);
+        long start = System.nanoTime();
+        analyzer.analyze(dir);
+        analyzer.finish();
+        long wall = (System.nanoTime() - start) / 1000000;
+
+        // before close(), which ends the analyzer's threads
+        long allocatedAfter = allocatedBytes();
+        long retained = usedHeapAfterGc() - baseline;
+        analyzer.close();
+
+        Map<String, Long> result = new LinkedHashMap<>();
+        result.put("wallMillis", wall);
+        result.put("allocatedBytes", allocated < 0 || allocatedAfter < 0 ? -1 : allocatedAfter - allocated);
+        result.put("retainedBytes", Math.max(0, retained));
+        return result;
+    }
+
+
+    private static long usedHeapAfterGc() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+
+    // bytes allocated so far by the live threads, such as the analyzer's
+    // and the module resolver's, or -1 where the JVM doesn't tell
+    private static long allocatedBytes() {
+        try {
+            com.sun.management.ThreadMXBean bean =
+                    (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+            long total = 0;
+            for (long bytes : bean.getThreadAllocatedBytes(bean.getAllThreadIds())) {
+                if (bytes > 0) {
+                    total += bytes;
+                }
+            }
+            return total;
+        } catch (Throwable e) {
+            return -1;
+        }
+    }
+
+
+    /**
+     * Measures {@code dir} in a new JVM with this one's class path and
+     * heap options, and an empty cache directory, so that no state is
+     * shared between corpora or with earlier runs.
+     */
+    static Map<String, Long> runPerfChild(String dir) throws Exception {
+        File cacheDir = Files.createTempDirectory("pysonar-perf-").toFile();
+        try {
+            return runPerfChild(dir, cacheDir.getPath());
+        } finally {
+            FileUtils.deleteQuietly(cacheDir);
+        }
+    }
+
+
+    private static Map<String, Long> runPerfChild(String dir, String cacheDir) throws Exception {
+        List<String> command = new ArrayList<>();
+        command.add(_.makePathString(System.getProperty("java.home"), "bin", "java"));
+        for (String arg : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+            if (!arg.startsWith("-agentlib") && !arg.startsWith("-javaagent") && !arg.startsWith("-Xrunjdwp")) {
+                command.add(arg);
+            }
+        }
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(Test.class.getName());
+        command.add("-perf-child");
+        command.add("--cache-dir");
+        command.add(cacheDir);
+        command.add(dir);
+
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        String result = null;
+        StringBuilder output = new StringBuilder();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith(RESULT_PREFIX)) {
+                    result = line.substring(RESULT_PREFIX.length());
+                } else {
+                    output.append(line).append('\n');
+                }
+            }
+        }
+        int status = process.waitFor();
+        if (status != 0 || result == null) {
+            throw new Exception("exit status " + status + "\n" + output);
+        }
+
+        Map<String, Long> measured = new LinkedHashMap<>();
+        Map<String, Object> parsed = gson.fromJson(result, Map.class);
+        for (String metric : METRICS) {
+            measured.put(metric, ((Number) parsed.get(metric)).longValue());
+        }
+        return measured;
+    }
+
+
+    public static boolean perfAll(String path, boolean exp, int workers) throws Exception {
+        List<String> corpora = new ArrayList<>();
+        findCorpora(path, corpora);
+        Collections.sort(corpora);
+
+        String budgetsFile = _.makePathString(path, BUDGETS_FILE);
+        PerfBudgets budgets = new PerfBudgets();
+        String json = _.readFile(budgetsFile);
+        if (json != null) {
+            budgets = gson.fromJson(json, PerfBudgets.class);
+        } else if (!exp) {
+            _.testmsg("Budgets not found in: " + budgetsFile + ". Please run Test with -perf -exp to generate");
+            return false;
+        }
+
+        _.testmsg("measuring " + corpora.size() + " corpora with " + workers + " workers");
+        ExecutorService pool = Executors.newFixedThreadPool(workers);
+        Map<String, Future<Map<String, Long>>> futures = new LinkedHashMap<>();
+        for (final String dir : corpora) {
+            futures.put(dir, pool.submit(new java.util.concurrent.Callable<Map<String, Long>>() {
+                @Override
+                public Map<String, Long> call() throws Exception {
+                    return runPerfChild(dir);
+                }
+            }));
+        }
+        pool.shutdown();
+
+        List<String> failed = new ArrayList<>();
+        Map<String, Map<String, Long>> measured = new TreeMap<>();
+        for (Map.Entry<String, Future<Map<String, Long>>> e : futures.entrySet()) {
+            String name = new File(path).toURI().relativize(new File(e.getKey()).toURI()).getPath();
+            name = name.endsWith("/") ? name.substring(0, name.length() - 1) : name;
+            try {
+                measured.put(name, e.getValue().get());
+            } catch (Exception x) {
+                _.testmsg("  * " + name + ": failed to run: " + x.getCause());
+                failed.add(name);
+                continue;
+            }
+            if (!exp) {
+                String problem = checkBudget(measured.get(name), budgets.corpora.get(name), budgets);
+                _.testmsg("  * " + name + ": " + formatPerf(measured.get(name)) + (problem == null ? "" : "  " + problem));
+                if (problem != null) {
+                    failed.add(name);
+                }
+            } else {
+                _.testmsg("  * " + name + ": " + formatPerf(measured.get(name)));
+            }
+        }
+
+        if (exp) {
+            budgets.corpora = new TreeMap<>();
+            for (Map.Entry<String, Map<String, Long>> e : measured.entrySet()) {
+                Map<String, Long> budget = new LinkedHashMap<>();
+                for (String metric : BUDGETED) {
+                    budget.put(metric, e.getValue().get(metric));
+                }
+                budgets.corpora.put(e.getKey(), budget);
+            }
+            _.writeFile(budgetsFile, gson.toJson(budgets));
+            _.testmsg("budgets written to " + budgetsFile);
+            return failed.isEmpty();
+        } else if (failed.isEmpty()) {
+            _.testmsg("all within budget");
+            return true;
+        } else {
+            _.testmsg("over budget or failed: ");
+            for (String f : failed) {
+                _.testmsg("  * " + f);
+            }
+            return false;
+        }
+    }
+
+
+    // null if within budget
+    static String checkBudget(Map<String, Long> measured, Map<String, Long> budget, PerfBudgets budgets) {
+        if (budget == null) {
+            return "no budget";
+        }
+        List<String> over = new ArrayList<>();
+        for (String metric : BUDGETED) {
+            Long limit = budget.get(metric);
+            long value = measured.get(metric);
+            if (limit == null || limit < 0 || value < 0) {
+                continue;
+            }
+            if (value > limit * (1 + budgets.memoryTolerance) + budgets.memorySlackBytes) {
+                over.add(metric + " " + value + " > " + limit + " +" + Math.round(budgets.memoryTolerance * 100) +
+                        "% +" + budgets.memorySlackBytes);
+            }
+        }
+        return over.isEmpty() ? null : "OVER BUDGET: " + over;
+    }
+
+
+    static String formatPerf(Map<String, Long> m) {
+        return m.get("wallMillis") + " ms, " +
+                _.printMem(m.get("allocatedBytes")) + " allocated, " +
+                _.printMem(m.get("retainedBytes")) + " retained";
+    }
+
+
+    static void findCorpora(String path, List<String> corpora) {
+        File file_or_dir = new File(path);
+        if (file_or_dir.isDirectory()) {
+            if (path.endsWith(".test")) {
+                corpora.add(path);
+            } else {
+                for (File file : file_or_dir.listFiles()) {
+                    findCorpora(file.getPath(), corpora);
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Parses the Python files under path with both dump_python.py and the
+     * parser in the JVM, and reports the files whose ASTs differ and the
+     * time each took. Files with constructs the JVM parser can't convert
+     * are skipped.
+     */
+    public static boolean compareParsers(String path) {
+        Map<String, Object> options = new HashMap<>();
+        options.put("quiet", true);
+        Analyzer analyzer = new Analyzer(options);
+        Parser external = new Parser(false);
+        Parser inJvm = new Parser(true);
+
+        int nFiles = 0;
+        int nSkipped = 0;
+        int nDiffer = 0;
+        long externalTime = 0;
+        long inJvmTime = 0;
+        for (String file : new SourceScanner(".py", null).scan(path)) {
+            String error = null;
+            try {
+                PythonParser.parseFile(file);
+            } catch (PythonParser.SyntaxError e) {
+                error = e.getMessage();
+                if (error.contains(" is not supported")) {
+                    nSkipped++;
+                    continue;
+                }
+            }
+
+            long t = System.nanoTime();
+            // null when no interpreter here can parse it, e.g. Python 2
+            // code without a Python 2
+            Node expected;
+            try {
+                expected = external.parseFile(file);
+            } catch (RuntimeException e) {
+                System.out.println(file + ": dump_python.py failed: " + e);
+                nSkipped++;
+                continue;
+            }
+            if (expected == null) {
+                nSkipped++;
+                continue;
+            }
+            externalTime += System.nanoTime() - t;
+
+            t = System.nanoTime();
+            Node actual = inJvm.parseFile(file);
+            inJvmTime += System.nanoTime() - t;
+
+            nFiles++;
+            String diff = diffAst(expected, actual, "");
+            if (diff != null) {
+                nDiffer++;
+                System.out.println(file + diff);
+                if (error != null) {
+                    System.out.println("  " + error);
+                }
+            }
+        }
+        external.close();
+        inJvm.close();
+        analyzer.close();
+
+        System.out.println(nFiles + " files, " + nDiffer + " differ, " + nSkipped + " skipped");
+        System.out.println(String.format("dump_python.py: %.1f ms, java: %.1f ms", externalTime / 1e6, inJvmTime / 1e6));
+        return nDiffer == 0;
+    }
+
+
+    // the first difference between two ASTs, or null
+    static String diffAst(Object a, Object b, String path) {
+        if (a == null || b == null) {
+            return a == b ? null : path + ": " + a + " vs " + b;
+        }
+        if (a.getClass() != b.getClass()) {
+            return path + ": " + a.getClass().getSimpleName() + " vs " + b.getClass().getSimpleName();
+        }
+        if (a instanceof List) {
+            List la = (List) a;
+            List lb = (List) b;
+            if (la.size() != lb.size()) {
+                return path + ": " + la.size() + " vs " + lb.size() + " elements";
+            }
+            for (int i = 0; i < la.size(); i++) {
+                String d = diffAst(la.get(i), lb.get(i), path + "[" + i + "]");
+                if (d != null) {
+                    return d;
+                }
+            }
+            return null;
+        }
+        if (!(a instanceof Node)) {
+            if (a instanceof String && ((String) a).startsWith("lambda%") && ((String) b).startsWith("lambda%")) {
+                return null;    // generated names
+            }
+            return a.equals(b) ? null : path + ": " + a + " vs " + b;
+        }
+
+        for (Class<?> c = a.getClass(); c != Object.class; c = c.getSuperclass()) {
+            for (Field f : c.getDeclaredFields()) {
+                if (Modifier.isStatic(f.getModifiers()) || f.getName().equals("parent")) {
+                    continue;
+                }
+                f.setAccessible(true);
+                try {
+                    String d = diffAst(f.get(a), f.get(b), path + "/" + a.getClass().getSimpleName() + "." + f.getName());
+                    if (d != null) {
+                        return d;
+                    }
+                } catch (IllegalAccessException e) {
+                    return path + ": " + e;
+                }
+            }
+        }
+        return null;
+    }
+
+
     public static void main(String[] args) throws Exception {
         Options options = new Options(args);
         List<String> argsList = options.getArgs();
         String inputDir = _.unifyPath(argsList.get(0));
 
+        if (options.hasOption("perf-child")) {
+            String cacheDir = (String) options.get("cache-dir");
+            System.out.println(RESULT_PREFIX + gson.toJson(measure(inputDir, cacheDir)).replace("\n", ""));
+            System.exit(0);
+        }
+
+        if (options.hasOption("parsers")) {
+            System.exit(compareParsers(inputDir) ? 0 : 1);
+        }
+
         // generate expected file?
         boolean exp = options.hasOption("exp");
+        if (options.hasOption("perf")) {
+            int workers = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+            if (options.get("workers") != null) {
+                workers = Integer.parseInt((String) options.get("workers"));
+            }
+            if (!perfAll(inputDir, exp, workers)) {
+                System.exit(1);
+            }
+            System.exit(0);
+        }
         testAll(inputDir, exp);
     }
 }
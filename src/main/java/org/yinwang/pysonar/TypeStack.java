@@ -2,26 +2,50 @@ package org.yinwang.pysonar;
 
 import org.jetbrains.annotations.NotNull;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.HashSet;
+import java.util.Set;
 
 
+/**
+ * Set of object pairs currently under comparison, used to break cycles in
+ * recursive types. Pairs are compared by identity and are unordered, so
+ * contains(a, b) is the same as contains(b, a).
+ */
 public class TypeStack {
 
-    class Pair {
-        public Object first;
-        public Object second;
+    public static class Pair {
+        public final Object first;
+        public final Object second;
 
 
         public Pair(Object first, Object second) {
             this.first = first;
             this.second = second;
         }
+
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Pair)) {
+                return false;
+            } else {
+                Pair p = (Pair) obj;
+                return p.first == first && p.second == second ||
+                        p.first == second && p.second == first;
+            }
+        }
+
+
+        @Override
+        public int hashCode() {
+            // symmetric in first and second
+            return System.identityHashCode(first) ^ System.identityHashCode(second);
+        }
     }
 
 
     @NotNull
-    private List<Pair> stack = new ArrayList<>();
+    private Set<Pair> stack = new HashSet<>();
 
 
     public void push(Object first, Object second) {
@@ -30,19 +54,12 @@ public class TypeStack {
 
 
     public void pop(Object first, Object second) {
-        stack.remove(stack.size() - 1);
+        stack.remove(new Pair(first, second));
     }
 
 
     public boolean contains(Object first, Object second) {
-        for (Pair p : stack) {
-            if (p.first == first && p.second == second ||
-                    p.first == second && p.second == first)
-            {
-                return true;
-            }
-        }
-        return false;
+        return stack.contains(new Pair(first, second));
     }
 
 }
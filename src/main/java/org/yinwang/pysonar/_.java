@@ -194,6 +194,45 @@ public class _ {
     }
 
 
+    /**
+     * Hash of the names and contents of the resources under a directory or
+     * jar URL, to tell whether an earlier copy of them is still current.
+     * Jar entries are hashed by their recorded CRC and size without reading
+     * them.
+     */
+    @NotNull
+    public static String getResourcesHash(URL originUrl) throws Exception {
+        StringBuilder sb = new StringBuilder();
+        URLConnection urlConnection = originUrl.openConnection();
+        if (urlConnection instanceof JarURLConnection) {
+            JarURLConnection jarConnection = (JarURLConnection) urlConnection;
+            List<String> entries = new ArrayList<>();
+            Enumeration<JarEntry> em = jarConnection.getJarFile().entries();
+            while (em.hasMoreElements()) {
+                JarEntry entry = em.nextElement();
+                if (entry.getName().startsWith(jarConnection.getEntryName())) {
+                    entries.add(entry.getName() + ":" + entry.getCrc() + ":" + entry.getSize());
+                }
+            }
+            Collections.sort(entries);
+            for (String e : entries) {
+                sb.append(e).append("\n");
+            }
+        } else if (urlConnection instanceof FileURLConnection) {
+            File dir = new File(originUrl.getPath());
+            List<File> files = new ArrayList<>(FileUtils.listFiles(dir, null, true));
+            Collections.sort(files);
+            for (File f : files) {
+                sb.append(f.getPath().substring(dir.getPath().length())).append(":")
+                        .append(getContentHash(getBytesFromFile(f.getPath()))).append("\n");
+            }
+        } else {
+            die("Unsupported URL type: " + urlConnection);
+        }
+        return getContentHash(sb.toString().getBytes(UTF_8));
+    }
+
+
     public static void copyJarResourcesRecursively(File destination, JarURLConnection jarConnection) {
         JarFile jarFile;
         try {
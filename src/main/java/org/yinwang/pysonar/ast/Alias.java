@@ -22,6 +22,13 @@ public class Alias extends Node {
     }
 
 
+    @NotNull
+    @Override
+    public List<Node> getChildren() {
+        return children(name, asname);
+    }
+
+
     @NotNull
     @Override
     public Type transform(State s) {
@@ -5,6 +5,8 @@ import org.yinwang.pysonar.Binder;
 import org.yinwang.pysonar.State;
 import org.yinwang.pysonar.types.Type;
 
+import java.util.List;
+
 
 public class Assign extends Node {
 
@@ -23,6 +25,13 @@ public class Assign extends Node {
     }
 
 
+    @NotNull
+    @Override
+    public List<Node> getChildren() {
+        return children(target, value);
+    }
+
+
     @NotNull
     @Override
     public Type transform(@NotNull State s) {
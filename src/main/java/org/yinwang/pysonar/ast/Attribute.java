@@ -60,6 +60,13 @@ public class Attribute extends Node {
     }
 
 
+    @NotNull
+    @Override
+    public List<Node> getChildren() {
+        return children(target, attr);
+    }
+
+
     @NotNull
     @Override
     public Type transform(State s) {
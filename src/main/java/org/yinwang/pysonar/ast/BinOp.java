@@ -5,6 +5,8 @@ import org.yinwang.pysonar.State;
 import org.yinwang.pysonar.types.Type;
 import org.yinwang.pysonar.types.UnionType;
 
+import java.util.List;
+
 
 public class BinOp extends Node {
 
@@ -25,6 +27,13 @@ public class BinOp extends Node {
     }
 
 
+    @NotNull
+    @Override
+    public List<Node> getChildren() {
+        return children(left, right);
+    }
+
+
     @NotNull
     @Override
     public Type transform(State s) {
@@ -24,6 +24,13 @@ public class Block extends Node {
     }
 
 
+    @NotNull
+    @Override
+    public List<Node> getChildren() {
+        return children(seq);
+    }
+
+
     @NotNull
     @Override
     public Type transform(@NotNull State state) {
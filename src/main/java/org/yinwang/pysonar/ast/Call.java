@@ -41,6 +41,13 @@ public class Call extends Node {
      * used by Analyzer.applyUncalled. By using a static method we avoid building
      * a NCall node for those dummy calls.
      */
+    @NotNull
+    @Override
+    public List<Node> getChildren() {
+        return children(func, args, keywords, kwargs, starargs);
+    }
+
+
     @NotNull
     @Override
     public Type transform(State s) {
@@ -147,12 +154,39 @@ public class Call extends Node {
                 func.func.vararg, func.func.kwarg,
                 pTypes, func.defaultTypes, hash, kw, star);
 
+        Stats stats = Analyzer.self.stats;
+        stats.inc("inference.calls");
         Type cachedTo = func.getMapping(fromType);
         if (cachedTo != null) {
+            stats.inc("inference.memoHits");
             func.setSelfType(null);
             return cachedTo;
         } else {
-            Type toType = transformExpr(func.func.body, funcTable);
+            Type toType;
+            Budget budget = Analyzer.self.budget;
+            Budget.Frame frame = budget.enterFunction();
+            Profiler profiler = Analyzer.self.profiler;
+            if (profiler != null) {
+                profiler.enter(func.func, funcTable.getPath(), "function");
+            }
+            try {
+                toType = transformExpr(func.func.body, funcTable);
+            } catch (Budget.Exceeded e) {
+                func.setSelfType(null);
+                if (!budget.owns(frame, e)) {
+                    throw e;
+                }
+                // widen, and remember it so the body isn't tried again
+                Analyzer.self.putProblem(func.func.name, budget.describe(frame) + ", result is unknown");
+                func.addMapping(fromType, Type.UNKNOWN);
+                return Type.UNKNOWN;
+            } finally {
+                budget.exit(frame);
+                if (profiler != null) {
+                    profiler.exit();
+                }
+            }
+
             if (missingReturn(toType)) {
                 Analyzer.self.putProblem(func.func.name, "Function not always return a value");
 
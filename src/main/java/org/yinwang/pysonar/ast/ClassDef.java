@@ -26,6 +26,13 @@ public class ClassDef extends Node {
     }
 
 
+    @NotNull
+    @Override
+    public List<Node> getChildren() {
+        return children(name, bases, body);
+    }
+
+
     @NotNull
     @Override
     public Type transform(@NotNull State s) {
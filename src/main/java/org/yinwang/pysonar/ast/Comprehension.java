@@ -26,6 +26,13 @@ public class Comprehension extends Node {
     }
 
 
+    @NotNull
+    @Override
+    public List<Node> getChildren() {
+        return children(target, iter, ifs);
+    }
+
+
     @NotNull
     @Override
     public Type transform(@NotNull State s) {
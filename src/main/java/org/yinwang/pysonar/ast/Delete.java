@@ -19,6 +19,13 @@ public class Delete extends Node {
     }
 
 
+    @NotNull
+    @Override
+    public List<Node> getChildren() {
+        return children(targets);
+    }
+
+
     @NotNull
     @Override
     public Type transform(@NotNull State s) {
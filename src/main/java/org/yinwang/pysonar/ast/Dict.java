@@ -23,6 +23,13 @@ public class Dict extends Node {
     }
 
 
+    @NotNull
+    @Override
+    public List<Node> getChildren() {
+        return children(keys, values);
+    }
+
+
     @NotNull
     @Override
     public Type transform(State s) {
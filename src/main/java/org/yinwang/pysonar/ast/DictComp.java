@@ -30,6 +30,13 @@ public class DictComp extends Node {
      * This will erase the original values of the variables even after the
      * comprehension.
      */
+    @NotNull
+    @Override
+    public List<Node> getChildren() {
+        return children(key, value, generators);
+    }
+
+
     @NotNull
     @Override
     public Type transform(State s) {
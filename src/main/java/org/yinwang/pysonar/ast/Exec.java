@@ -4,6 +4,8 @@ import org.jetbrains.annotations.NotNull;
 import org.yinwang.pysonar.State;
 import org.yinwang.pysonar.types.Type;
 
+import java.util.List;
+
 
 public class Exec extends Node {
 
@@ -21,6 +23,13 @@ public class Exec extends Node {
     }
 
 
+    @NotNull
+    @Override
+    public List<Node> getChildren() {
+        return children(body, globals, locals);
+    }
+
+
     @NotNull
     @Override
     public Type transform(State s) {
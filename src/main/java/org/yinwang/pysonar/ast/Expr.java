@@ -4,6 +4,8 @@ import org.jetbrains.annotations.NotNull;
 import org.yinwang.pysonar.State;
 import org.yinwang.pysonar.types.Type;
 
+import java.util.List;
+
 
 /**
  * Expression statement.
@@ -20,6 +22,13 @@ public class Expr extends Node {
     }
 
 
+    @NotNull
+    @Override
+    public List<Node> getChildren() {
+        return children(value);
+    }
+
+
     @NotNull
     @Override
     public Type transform(State s) {
@@ -20,6 +20,13 @@ public class ExtSlice extends Node {
     }
 
 
+    @NotNull
+    @Override
+    public List<Node> getChildren() {
+        return children(dims);
+    }
+
+
     @NotNull
     @Override
     public Type transform(State s) {
@@ -7,6 +7,8 @@ import org.yinwang.pysonar.State;
 import org.yinwang.pysonar.types.Type;
 import org.yinwang.pysonar.types.UnionType;
 
+import java.util.List;
+
 
 public class For extends Node {
 
@@ -28,6 +30,13 @@ public class For extends Node {
     }
 
 
+    @NotNull
+    @Override
+    public List<Node> getChildren() {
+        return children(target, iter, body, orelse);
+    }
+
+
     @NotNull
     @Override
     public Type transform(@NotNull State s) {
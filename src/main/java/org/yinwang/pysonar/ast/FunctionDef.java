@@ -50,6 +50,13 @@ public class FunctionDef extends Node {
     }
 
 
+    @NotNull
+    @Override
+    public List<Node> getChildren() {
+        return children(name, args, defaults, vararg, kwarg, afterRest, body);
+    }
+
+
     @NotNull
     @Override
     public Type transform(@NotNull State s) {
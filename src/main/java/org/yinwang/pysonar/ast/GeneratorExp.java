@@ -27,6 +27,13 @@ public class GeneratorExp extends Node {
      * Python's list comprehension will erase any variable used in generators.
      * This is wrong, but we "respect" this bug here.
      */
+    @NotNull
+    @Override
+    public List<Node> getChildren() {
+        return children(elt, generators);
+    }
+
+
     @NotNull
     @Override
     public Type transform(State s) {
@@ -19,6 +19,13 @@ public class Global extends Node {
     }
 
 
+    @NotNull
+    @Override
+    public List<Node> getChildren() {
+        return children(names);
+    }
+
+
     @NotNull
     @Override
     public Type transform(State s) {
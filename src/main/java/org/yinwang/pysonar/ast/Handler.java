@@ -25,6 +25,13 @@ public class Handler extends Node {
     }
 
 
+    @NotNull
+    @Override
+    public List<Node> getChildren() {
+        return children(exceptions, binder, body);
+    }
+
+
     @NotNull
     @Override
     public Type transform(@NotNull State s) {
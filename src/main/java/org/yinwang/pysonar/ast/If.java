@@ -5,6 +5,8 @@ import org.yinwang.pysonar.State;
 import org.yinwang.pysonar.types.Type;
 import org.yinwang.pysonar.types.UnionType;
 
+import java.util.List;
+
 
 public class If extends Node {
 
@@ -23,6 +25,13 @@ public class If extends Node {
     }
 
 
+    @NotNull
+    @Override
+    public List<Node> getChildren() {
+        return children(test, body, orelse);
+    }
+
+
     @NotNull
     @Override
     public Type transform(@NotNull State s) {
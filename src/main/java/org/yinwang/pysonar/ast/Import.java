@@ -21,6 +21,13 @@ public class Import extends Node {
     }
 
 
+    @NotNull
+    @Override
+    public List<Node> getChildren() {
+        return children(names);
+    }
+
+
     @NotNull
     @Override
     public Type transform(@NotNull State s) {
@@ -30,6 +30,13 @@ public class ImportFrom extends Node {
     }
 
 
+    @NotNull
+    @Override
+    public List<Node> getChildren() {
+        return children(module, names);
+    }
+
+
     @NotNull
     @Override
     public Type transform(@NotNull State s) {
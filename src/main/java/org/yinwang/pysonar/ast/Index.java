@@ -4,6 +4,8 @@ import org.jetbrains.annotations.NotNull;
 import org.yinwang.pysonar.State;
 import org.yinwang.pysonar.types.Type;
 
+import java.util.List;
+
 
 public class Index extends Node {
 
@@ -17,6 +19,13 @@ public class Index extends Node {
     }
 
 
+    @NotNull
+    @Override
+    public List<Node> getChildren() {
+        return children(value);
+    }
+
+
     @NotNull
     @Override
     public Type transform(State s) {
@@ -4,6 +4,8 @@ import org.jetbrains.annotations.NotNull;
 import org.yinwang.pysonar.State;
 import org.yinwang.pysonar.types.Type;
 
+import java.util.List;
+
 
 /**
  * Represents a keyword argument (name=value) in a function call.
@@ -23,6 +25,13 @@ public class Keyword extends Node {
     }
 
 
+    @NotNull
+    @Override
+    public List<Node> getChildren() {
+        return children(value);
+    }
+
+
     @NotNull
     @Override
     public Type transform(State s) {
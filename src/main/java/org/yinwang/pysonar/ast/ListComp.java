@@ -28,6 +28,13 @@ public class ListComp extends Node {
      * This will erase the original values of the variables even after the
      * comprehension.
      */
+    @NotNull
+    @Override
+    public List<Node> getChildren() {
+        return children(elt, generators);
+    }
+
+
     @NotNull
     @Override
     public Type transform(State s) {
@@ -8,6 +8,8 @@ import org.yinwang.pysonar._;
 import org.yinwang.pysonar.types.ModuleType;
 import org.yinwang.pysonar.types.Type;
 
+import java.util.List;
+
 
 public class Module extends Node {
 
@@ -22,6 +24,13 @@ public class Module extends Node {
     }
 
 
+    @NotNull
+    @Override
+    public List<Node> getChildren() {
+        return children(body);
+    }
+
+
     @NotNull
     @Override
     public Type transform(@NotNull State s) {
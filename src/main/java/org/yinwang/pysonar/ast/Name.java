@@ -13,8 +13,9 @@ import java.util.Set;
 public class Name extends Node {
 
     @NotNull
-    public final String id;  // identifier
+    public String id;  // identifier; not final, so trees read from the disk cache can share it
     public NameType type;
+    public int scopeDepth = -1;     // function scopes to skip at lookup, set by ScopeResolver
 
 
     public Name(String id) {
@@ -41,7 +42,13 @@ public class Name extends Node {
     @NotNull
     @Override
     public Type transform(@NotNull State s) {
-        Set<Binding> b = s.lookup(id);
+        Set<Binding> b;
+        if (scopeDepth >= 0) {
+            b = s.lookupResolved(id, scopeDepth);
+        } else {
+            b = s.lookup(id);
+        }
+
         if (b != null) {
             Analyzer.self.putRef(this, b);
             Analyzer.self.resolved.add(this);
@@ -3,7 +3,9 @@ package org.yinwang.pysonar.ast;
 
 public enum NameType {
     LOCAL,
+    ENCLOSING,
     INSTANCE,
     CLASS,
-    GLOBAL
+    GLOBAL,
+    BUILTIN
 }
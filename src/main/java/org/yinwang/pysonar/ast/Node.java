@@ -10,6 +10,7 @@ import org.yinwang.pysonar.types.UnionType;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 
 
@@ -20,6 +21,9 @@ import java.util.List;
  */
 public abstract class Node implements java.io.Serializable, Comparable<Object> {
 
+    // ASTs are cached on disk; see AstCache.VERSION for when to change this
+    private static final long serialVersionUID = 1L;
+
     public String file;
     public int start;
     public int end;
@@ -89,6 +93,38 @@ public abstract class Node implements java.io.Serializable, Comparable<Object> {
     }
 
 
+    /**
+     * The child nodes of this node, for passes over the whole tree. Nodes
+     * with children override this.
+     */
+    @NotNull
+    public List<Node> getChildren() {
+        return Collections.emptyList();
+    }
+
+
+    /**
+     * A list of the non-null nodes in {@code parts}, each of which is a
+     * node, a collection of nodes, or null.
+     */
+    @NotNull
+    protected static List<Node> children(@NotNull Object... parts) {
+        List<Node> ret = new ArrayList<>();
+        for (Object part : parts) {
+            if (part instanceof Node) {
+                ret.add((Node) part);
+            } else if (part instanceof Collection) {
+                for (Object n : (Collection<?>) part) {
+                    if (n != null) {
+                        ret.add((Node) n);
+                    }
+                }
+            }
+        }
+        return ret;
+    }
+
+
     @Nullable
     public Str getDocString() {
         Node body = null;
@@ -115,6 +151,10 @@ public abstract class Node implements java.io.Serializable, Comparable<Object> {
 
     @NotNull
     public static Type transformExpr(@NotNull Node n, State s) {
+        Analyzer.self.budget.step();
+        if (Analyzer.self.profiler != null) {
+            Analyzer.self.profiler.step();
+        }
         return n.transform(s);
     }
 
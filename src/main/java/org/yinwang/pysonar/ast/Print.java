@@ -22,6 +22,13 @@ public class Print extends Node {
     }
 
 
+    @NotNull
+    @Override
+    public List<Node> getChildren() {
+        return children(dest, values);
+    }
+
+
     @NotNull
     @Override
     public Type transform(State s) {
@@ -4,6 +4,8 @@ import org.jetbrains.annotations.NotNull;
 import org.yinwang.pysonar.State;
 import org.yinwang.pysonar.types.Type;
 
+import java.util.List;
+
 
 public class Raise extends Node {
 
@@ -21,6 +23,13 @@ public class Raise extends Node {
     }
 
 
+    @NotNull
+    @Override
+    public List<Node> getChildren() {
+        return children(exceptionType, inst, traceback);
+    }
+
+
     @NotNull
     @Override
     public Type transform(State s) {
@@ -17,4 +17,10 @@ public abstract class Sequence extends Node {
         addChildren(elts);
     }
 
+
+    @NotNull
+    @Override
+    public List<Node> getChildren() {
+        return children(elts);
+    }
 }
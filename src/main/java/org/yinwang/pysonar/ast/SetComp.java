@@ -23,6 +23,13 @@ public class SetComp extends Node {
     }
 
 
+    @NotNull
+    @Override
+    public List<Node> getChildren() {
+        return children(elt, generators);
+    }
+
+
     @NotNull
     @Override
     public Type transform(State s) {
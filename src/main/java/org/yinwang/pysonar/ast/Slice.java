@@ -5,6 +5,8 @@ import org.yinwang.pysonar.State;
 import org.yinwang.pysonar.types.ListType;
 import org.yinwang.pysonar.types.Type;
 
+import java.util.List;
+
 
 public class Slice extends Node {
 
@@ -22,6 +24,13 @@ public class Slice extends Node {
     }
 
 
+    @NotNull
+    @Override
+    public List<Node> getChildren() {
+        return children(lower, step, upper);
+    }
+
+
     @NotNull
     @Override
     public Type transform(State s) {
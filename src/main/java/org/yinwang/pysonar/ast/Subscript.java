@@ -5,6 +5,8 @@ import org.jetbrains.annotations.Nullable;
 import org.yinwang.pysonar.State;
 import org.yinwang.pysonar.types.*;
 
+import java.util.List;
+
 
 public class Subscript extends Node {
 
@@ -22,6 +24,13 @@ public class Subscript extends Node {
     }
 
 
+    @NotNull
+    @Override
+    public List<Node> getChildren() {
+        return children(value, slice);
+    }
+
+
     @NotNull
     @Override
     public Type transform(State s) {
@@ -29,6 +29,13 @@ public class Try extends Node {
     }
 
 
+    @NotNull
+    @Override
+    public List<Node> getChildren() {
+        return children(handlers, body, orelse, finalbody);
+    }
+
+
     @NotNull
     @Override
     public Type transform(State s) {
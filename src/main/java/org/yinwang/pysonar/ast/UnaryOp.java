@@ -4,6 +4,8 @@ import org.jetbrains.annotations.NotNull;
 import org.yinwang.pysonar.State;
 import org.yinwang.pysonar.types.Type;
 
+import java.util.List;
+
 
 public class UnaryOp extends Node {
 
@@ -19,6 +21,13 @@ public class UnaryOp extends Node {
     }
 
 
+    @NotNull
+    @Override
+    public List<Node> getChildren() {
+        return children(operand);
+    }
+
+
     @NotNull
     @Override
     public Type transform(State s) {
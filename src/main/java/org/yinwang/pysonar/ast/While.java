@@ -5,6 +5,8 @@ import org.yinwang.pysonar.State;
 import org.yinwang.pysonar.types.Type;
 import org.yinwang.pysonar.types.UnionType;
 
+import java.util.List;
+
 
 public class While extends Node {
 
@@ -22,6 +24,13 @@ public class While extends Node {
     }
 
 
+    @NotNull
+    @Override
+    public List<Node> getChildren() {
+        return children(test, body, orelse);
+    }
+
+
     @NotNull
     @Override
     public Type transform(State s) {
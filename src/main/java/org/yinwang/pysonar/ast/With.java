@@ -24,6 +24,13 @@ public class With extends Node {
     }
 
 
+    @NotNull
+    @Override
+    public List<Node> getChildren() {
+        return children(items, body);
+    }
+
+
     @NotNull
     @Override
     public Type transform(@NotNull State s) {
@@ -5,6 +5,8 @@ import org.jetbrains.annotations.Nullable;
 import org.yinwang.pysonar.State;
 import org.yinwang.pysonar.types.Type;
 
+import java.util.List;
+
 
 /**
  * A name alias.  Used for the components of import and import-from statements.
@@ -33,6 +35,13 @@ public class Withitem extends Node {
 
 
     // dummy, will never be called
+    @NotNull
+    @Override
+    public List<Node> getChildren() {
+        return children(optional_vars, context_expr);
+    }
+
+
     @NotNull
     @Override
     public Type transform(State s) {
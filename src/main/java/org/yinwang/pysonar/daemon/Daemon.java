@@ -0,0 +1,381 @@
+package org.yinwang.pysonar.daemon;
+
+import com.google.gson.Gson;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.yinwang.pysonar.*;
+import org.yinwang.pysonar.ast.Node;
+import org.yinwang.pysonar.types.Type;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Keeps one analyzed project in memory and answers queries about it over a
+ * socket on the loopback interface. Changes to source files under the
+ * project are picked up with a WatchService and trigger a re-analysis in the
+ * background; queries keep being answered from the previous analysis until
+ * the new one is finished.
+ *
+ * The protocol is line based. Each request is one line:
+ *
+ * <pre>
+ *   def FILE OFFSET       definitions of the name at OFFSET
+ *   refs FILE OFFSET      references to the bindings at OFFSET
+ *   type FILE OFFSET      type of the name at OFFSET
+ *   outline FILE          outline of FILE
+ *   files                 analyzed files
+ *   status                analysis generation and time
+ * </pre>
+ *
+ * and each answer is one line of JSON. A connection can be kept open for
+ * any number of requests. At most --clients connections (16 by default)
+ * are served at a time; more wait for one of them to close.
+ */
+public class Daemon {
+
+    private static final int DEFAULT_PORT = 7070;
+    private static final int DEFAULT_CLIENTS = 16;
+    private static final long SETTLE_MILLIS = 300;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static Gson gson = new Gson();
+
+    @NotNull
+    private String root;
+    @NotNull
+    private Map<String, Object> options;
+
+    private volatile QueryIndex index;
+    private volatile int generation = 0;
+    private volatile long analysisTime = 0;
+    @Nullable
+    private Analyzer analyzer;
+
+    @NotNull
+    private final Set<String> changed = new HashSet<>();
+    @NotNull
+    private ExecutorService workers;
+
+
+    public Daemon(@NotNull String root, @NotNull Map<String, Object> options) {
+        this.root = _.unifyPath(root);
+        this.options = options;
+        int clients = DEFAULT_CLIENTS;
+        if (options.get("clients") != null) {
+            clients = Integer.parseInt((String) options.get("clients"));
+        }
+        this.workers = Executors.newFixedThreadPool(clients, new ThreadFactory() {
+            @Override
+            public Thread newThread(@NotNull Runnable r) {
+                Thread t = new Thread(r, "pysonar-client");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+
+    /**
+     * Runs on one thread only: the first analysis, then the watcher thread.
+     * The new analyzer and its index are built first and then swapped in;
+     * the old analyzer is closed only after the queries still running on
+     * the old index are done.
+     */
+    private void analyze() {
+        long start = System.currentTimeMillis();
+        Analyzer old = analyzer;
+        QueryIndex oldIndex = index;
+        if (old != null) {
+            // the new analyzer reads unchanged files back from the disk cache,
+            // so the old trees only take up memory
+            old.clearAstCache();
+        }
+
+        Analyzer next = new Analyzer(options);
+        QueryIndex nextIndex;
+        try {
+            next.analyze(root);
+            next.finish();
+            nextIndex = new QueryIndex(next);
+        } catch (RuntimeException e) {
+            next.close();
+            throw e;
+        }
+
+        analyzer = next;
+        index = nextIndex;
+        if (oldIndex != null) {
+            oldIndex.retire();
+        }
+        if (old != null) {
+            old.close();
+        }
+
+        generation++;
+        analysisTime = System.currentTimeMillis() - start;
+        _.msg("analysis " + generation + " finished in " + _.formatTime(analysisTime));
+    }
+
+
+    public void serve(int port) throws IOException {
+        analyze();
+
+        Thread watcher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    watch();
+                } catch (Exception e) {
+                    _.msg("File watcher stopped: " + e);
+                }
+            }
+        }, "pysonar-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+
+        ServerSocket server = new ServerSocket(port, 50, InetAddress.getByName(null));
+        _.msg("listening on " + server.getLocalSocketAddress());
+        while (true) {
+            final Socket client = server.accept();
+            workers.submit(new Runnable() {
+                @Override
+                public void run() {
+                    handle(client);
+                }
+            });
+        }
+    }
+
+
+    private void handle(@NotNull Socket client) {
+        try {
+            client.setTcpNoDelay(true);
+            BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream(), UTF8));
+            Writer out = new BufferedWriter(new OutputStreamWriter(client.getOutputStream(), UTF8));
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.trim().equals("quit")) {
+                    break;
+                }
+                out.write(answer(line.trim()));
+                out.write('\n');
+                out.flush();
+            }
+        } catch (IOException e) {
+            // client went away
+        } finally {
+            try {
+                client.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+
+    @NotNull
+    String answer(@NotNull String request) {
+        QueryIndex idx = index;
+        while (!idx.acquire()) {
+            // retired by a new analysis, which has put its index in place
+            idx = index;
+        }
+        try {
+            return answer(request, idx);
+        } finally {
+            idx.release();
+        }
+    }
+
+
+    @NotNull
+    private String answer(@NotNull String request, @NotNull QueryIndex idx) {
+        Map<String, Object> ret = new LinkedHashMap<>();
+
+        try {
+            int sp = request.indexOf(' ');
+            String command = sp < 0 ? request : request.substring(0, sp);
+            String arg = sp < 0 ? "" : request.substring(sp + 1).trim();
+
+            if (command.equals("outline")) {
+                ret.put("outline", outlineJson(idx.outline(arg)));
+            } else if (command.equals("files")) {
+                ret.put("files", idx.getFiles());
+            } else if (command.equals("status")) {
+                ret.put("generation", generation);
+                ret.put("analysisTime", analysisTime);
+                ret.put("files", idx.getFiles().size());
+            } else if (command.equals("def") || command.equals("refs") || command.equals("type")) {
+                int last = arg.lastIndexOf(' ');
+                if (last < 0) {
+                    ret.put("error", "usage: " + command + " FILE OFFSET");
+                } else {
+                    String file = arg.substring(0, last);
+                    int offset = Integer.parseInt(arg.substring(last + 1));
+
+                    if (command.equals("def")) {
+                        List<Object> defs = new ArrayList<>();
+                        for (Binding b : idx.bindingsAt(file, offset)) {
+                            defs.add(bindingJson(b));
+                        }
+                        ret.put("defs", defs);
+                    } else if (command.equals("refs")) {
+                        List<Object> refs = new ArrayList<>();
+                        for (Node n : idx.referencesOf(file, offset)) {
+                            refs.add(nodeJson(n));
+                        }
+                        ret.put("refs", refs);
+                    } else {
+                        Type t = idx.typeAt(file, offset);
+                        ret.put("type", t == null ? null : idx.print(t));
+                    }
+                }
+            } else {
+                ret.put("error", "unknown command: " + command);
+            }
+        } catch (NumberFormatException e) {
+            ret.put("error", "bad offset: " + e.getMessage());
+        } catch (Exception e) {
+            ret.put("error", e.toString());
+        }
+
+        return gson.toJson(ret);
+    }
+
+
+    @NotNull
+    private static Map<String, Object> bindingJson(@NotNull Binding b) {
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("name", b.name);
+        m.put("qname", b.getQname());
+        m.put("kind", b.kind.toString());
+        m.put("file", b.getFile());
+        m.put("start", b.start);
+        m.put("end", b.end);
+        return m;
+    }
+
+
+    @NotNull
+    private static Map<String, Object> nodeJson(@NotNull Node n) {
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("file", n.file);
+        m.put("start", n.start);
+        m.put("end", n.end);
+        return m;
+    }
+
+
+    @NotNull
+    private static List<Object> outlineJson(@NotNull List<Outliner.Entry> entries) {
+        List<Object> ret = new ArrayList<>();
+        for (Outliner.Entry e : entries) {
+            Map<String, Object> m = new LinkedHashMap<>();
+            m.put("qname", e.getQname());
+            m.put("kind", e.kind.toString());
+            m.put("offset", e.getOffset());
+            if (e.hasChildren()) {
+                m.put("children", outlineJson(e.getChildren()));
+            }
+            ret.add(m);
+        }
+        return ret;
+    }
+
+
+    /**
+     * Waits for changes under the project and analyzes the whole project
+     * again. Events are collected until none arrive for SETTLE_MILLIS, so
+     * that saving many files at once (e.g. a checkout) costs one analysis.
+     * A failed analysis is reported, and the previous one keeps answering
+     * until a later change analyzes successfully.
+     */
+    private void watch() throws IOException, InterruptedException {
+        final WatchService ws = FileSystems.getDefault().newWatchService();
+        final Map<WatchKey, Path> dirs = new HashMap<>();
+        register(ws, dirs, Paths.get(root));
+
+        while (true) {
+            WatchKey key = ws.take();
+            do {
+                Path dir = dirs.get(key);
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW || dir == null) {
+                        changed.add(root);
+                        continue;
+                    }
+                    Path p = dir.resolve((Path) event.context());
+                    if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(p)) {
+                        register(ws, dirs, p);
+                        changed.add(p.toString());
+                    } else if (p.toString().endsWith(".py")) {
+                        changed.add(p.toString());
+                    }
+                }
+                if (!key.reset()) {
+                    dirs.remove(key);
+                }
+            } while ((key = ws.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS)) != null);
+
+            if (!changed.isEmpty()) {
+                _.msg("changed: " + changed);
+                changed.clear();
+                try {
+                    analyze();
+                } catch (Exception e) {
+                    _.msg("analysis failed, still answering from analysis " + generation + ": " + e);
+                }
+            }
+        }
+    }
+
+
+    private static void register(@NotNull final WatchService ws, @NotNull final Map<WatchKey, Path> dirs,
+                                 @NotNull Path start) throws IOException
+    {
+        Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+            @NotNull
+            @Override
+            public FileVisitResult preVisitDirectory(@NotNull Path dir, BasicFileAttributes attrs) throws IOException {
+                WatchKey key = dir.register(ws,
+                        StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE,
+                        StandardWatchEventKinds.ENTRY_MODIFY);
+                dirs.put(key, dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+
+    private static void usage() {
+        System.out.println("Usage: java org.yinwang.pysonar.daemon.Daemon <project-dir> [--port PORT] [--clients N]");
+        System.exit(0);
+    }
+
+
+    public static void main(@NotNull String[] args) throws Exception {
+        Options options = new Options(args);
+        List<String> argsList = options.getArgs();
+        if (argsList.isEmpty()) {
+            usage();
+        }
+
+        int port = DEFAULT_PORT;
+        if (options.get("port") != null) {
+            port = Integer.parseInt((String) options.get("port"));
+        }
+        new Daemon(argsList.get(0), options.getOptionsMap()).serve(port);
+    }
+}
@@ -0,0 +1,151 @@
+package org.yinwang.pysonar.daemon;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import org.jetbrains.annotations.NotNull;
+import org.yinwang.pysonar.Options;
+import org.yinwang.pysonar._;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.*;
+import java.util.concurrent.*;
+
+
+/**
+ * Load test for a running Daemon. Each client thread keeps one connection
+ * open and sends def/refs/type queries at random offsets of the analyzed
+ * files; the latencies of all queries are reported at the end.
+ */
+public class LoadTest {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String[] COMMANDS = {"def", "refs", "type"};
+
+    private int port;
+    private int clients;
+    private int queries;
+
+
+    public LoadTest(int port, int clients, int queries) {
+        this.port = port;
+        this.clients = clients;
+        this.queries = queries;
+    }
+
+
+    public void run() throws Exception {
+        final List<String> files = fetchFiles();
+        if (files.isEmpty()) {
+            _.die("The daemon has no analyzed files");
+        }
+
+        final Map<String, Integer> sizes = new HashMap<>();
+        for (String f : files) {
+            sizes.put(f, (int) Math.max(1, new File(f).length()));
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(clients);
+        List<Future<long[]>> results = new ArrayList<>();
+        for (int c = 0; c < clients; c++) {
+            final long seed = c;
+            results.add(pool.submit(new Callable<long[]>() {
+                @Override
+                public long[] call() throws Exception {
+                    return runClient(files, sizes, new Random(seed));
+                }
+            }));
+        }
+
+        long start = System.nanoTime();
+        long[] all = new long[clients * queries];
+        int i = 0;
+        for (Future<long[]> f : results) {
+            for (long t : f.get()) {
+                all[i++] = t;
+            }
+        }
+        long wall = System.nanoTime() - start;
+        pool.shutdown();
+
+        Arrays.sort(all);
+        System.out.println("queries: " + all.length + " from " + clients + " clients");
+        System.out.println("throughput: " + (long) (all.length / (wall / 1e9)) + " queries/s");
+        System.out.println("p50: " + micros(all, 0.50) + " us");
+        System.out.println("p90: " + micros(all, 0.90) + " us");
+        System.out.println("p99: " + micros(all, 0.99) + " us");
+        System.out.println("max: " + all[all.length - 1] / 1000 + " us");
+    }
+
+
+    private static long micros(@NotNull long[] sorted, double q) {
+        return sorted[Math.min(sorted.length - 1, (int) (sorted.length * q))] / 1000;
+    }
+
+
+    @NotNull
+    private long[] runClient(@NotNull List<String> files, @NotNull Map<String, Integer> sizes,
+                             @NotNull Random rand) throws IOException
+    {
+        long[] times = new long[queries];
+        try (Socket s = connect()) {
+            BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), UTF8));
+            Writer out = new BufferedWriter(new OutputStreamWriter(s.getOutputStream(), UTF8));
+
+            for (int i = 0; i < queries; i++) {
+                String file = files.get(rand.nextInt(files.size()));
+                String command = COMMANDS[rand.nextInt(COMMANDS.length)];
+                String request = command + " " + file + " " + rand.nextInt(sizes.get(file));
+
+                long t = System.nanoTime();
+                out.write(request);
+                out.write('\n');
+                out.flush();
+                if (in.readLine() == null) {
+                    throw new EOFException("daemon closed the connection");
+                }
+                times[i] = System.nanoTime() - t;
+            }
+        }
+        return times;
+    }
+
+
+    @NotNull
+    private List<String> fetchFiles() throws IOException {
+        try (Socket s = connect()) {
+            Writer out = new OutputStreamWriter(s.getOutputStream(), UTF8);
+            out.write("files\n");
+            out.flush();
+            String reply = new BufferedReader(new InputStreamReader(s.getInputStream(), UTF8)).readLine();
+            Map<String, List<String>> map = new Gson().fromJson(reply,
+                    new TypeToken<Map<String, List<String>>>() {}.getType());
+            return map.get("files");
+        }
+    }
+
+
+    @NotNull
+    private Socket connect() throws IOException {
+        Socket s = new Socket(InetAddress.getByName(null), port);
+        s.setTcpNoDelay(true);
+        return s;
+    }
+
+
+    public static void main(@NotNull String[] args) throws Exception {
+        Options options = new Options(args);
+        int port = intOption(options, "port", 7070);
+        int clients = intOption(options, "clients", 4);
+        int queries = intOption(options, "queries", 10000);
+        new LoadTest(port, clients, queries).run();
+    }
+
+
+    private static int intOption(@NotNull Options options, String key, int dflt) {
+        Object v = options.get(key);
+        return v == null ? dflt : Integer.parseInt((String) v);
+    }
+}
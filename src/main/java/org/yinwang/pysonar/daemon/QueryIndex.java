@@ -0,0 +1,162 @@
+package org.yinwang.pysonar.daemon;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.yinwang.pysonar.Analyzer;
+import org.yinwang.pysonar.Binding;
+import org.yinwang.pysonar.OffsetIndex;
+import org.yinwang.pysonar.Outliner;
+import org.yinwang.pysonar.State;
+import org.yinwang.pysonar.ast.Node;
+import org.yinwang.pysonar.types.ModuleType;
+import org.yinwang.pysonar.types.Type;
+import org.yinwang.pysonar.types.UnionType;
+
+import java.util.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+
+/**
+ * Read-only view of one finished analysis, arranged by file for the
+ * daemon's queries. It is built once after Analyzer.finish() and never
+ * changes afterwards, so it can be queried from any number of threads
+ * while the next analysis is running.
+ *
+ * Queries don't read {@link Analyzer#self}, which belongs to the analysis
+ * running meanwhile: deferred tables are filled in here, on the analysis
+ * thread, and types are printed with the options of this analysis. Each
+ * query runs between {@link #acquire} and {@link #release}, so that
+ * {@link #retire} can wait for the queries still running before the
+ * analyzer behind the index is closed.
+ */
+public class QueryIndex {
+
+    @NotNull
+    private final OffsetIndex offsets;
+    // file -> module symbol table, for outlines
+    @NotNull
+    private final Map<String, State> moduleTables = new HashMap<>();
+    @NotNull
+    private final List<String> files;
+    private final boolean multiline;
+    private final boolean debug;
+    @NotNull
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private boolean retired = false;
+
+
+    public QueryIndex(@NotNull Analyzer analyzer) {
+        this.offsets = analyzer.getOffsetIndex();
+        this.files = analyzer.getLoadedFiles();
+        this.multiline = analyzer.multilineFunType;
+        this.debug = analyzer.hasOption("debug");
+
+        for (Binding b : analyzer.getAllBindings()) {
+            String file = b.getFile();
+            if (file != null && !b.isBuiltin() &&
+                    b.kind == Binding.Kind.MODULE && b.type instanceof ModuleType)
+            {
+                b.type.table.force();
+                moduleTables.put(file, b.type.table);
+            }
+        }
+    }
+
+
+    /**
+     * Starts a query. Returns false if the index has been retired, and then
+     * the query should go to the index that replaced it.
+     */
+    public boolean acquire() {
+        lock.readLock().lock();
+        if (retired) {
+            lock.readLock().unlock();
+            return false;
+        } else {
+            return true;
+        }
+    }
+
+
+    public void release() {
+        lock.readLock().unlock();
+    }
+
+
+    /**
+     * Waits until no query is running on this index and refuses new ones.
+     */
+    public void retire() {
+        lock.writeLock().lock();
+        try {
+            retired = true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+
+    @NotNull
+    public String print(@NotNull Type type) {
+        return type.print(multiline, debug);
+    }
+
+
+    @NotNull
+    public List<String> getFiles() {
+        return files;
+    }
+
+
+    /**
+     * Bindings at {@code offset}: those of the reference there, or else the
+     * bindings whose defining name covers it.
+     */
+    @NotNull
+    public List<Binding> bindingsAt(@NotNull String file, int offset) {
+        List<Binding> bs = offsets.bindingsOf(offsets.nodeAt(file, offset));
+        if (bs != null) {
+            return bs;
+        } else {
+            return offsets.definitionsAt(file, offset);
+        }
+    }
+
+
+    @NotNull
+    public List<Node> referencesOf(@NotNull String file, int offset) {
+        Set<Node> ret = new LinkedHashSet<>();
+        for (Binding b : bindingsAt(file, offset)) {
+            ret.addAll(b.refs);
+        }
+        return new ArrayList<>(ret);
+    }
+
+
+    @Nullable
+    public Type typeAt(@NotNull String file, int offset) {
+        List<Binding> bs = bindingsAt(file, offset);
+        if (bs.isEmpty()) {
+            return null;
+        } else if (bs.size() == 1) {
+            return bs.get(0).type;
+        } else {
+            Type ret = bs.get(0).type;
+            for (int i = 1; i < bs.size(); i++) {
+                ret = UnionType.union(ret, bs.get(i).type);
+            }
+            return ret;
+        }
+    }
+
+
+    @NotNull
+    public List<Outliner.Entry> outline(@NotNull String file) {
+        State table = moduleTables.get(file);
+        if (table == null) {
+            return new ArrayList<>();
+        }
+        return new Outliner().generate(table, file);
+    }
+}
@@ -4,6 +4,7 @@ import org.jetbrains.annotations.NotNull;
 import org.yinwang.pysonar.Analyzer;
 import org.yinwang.pysonar.Options;
 import org.yinwang.pysonar.Progress;
+import org.yinwang.pysonar.Stats;
 import org.yinwang.pysonar._;
 
 import java.io.File;
@@ -56,8 +57,11 @@ public class Demo {
         _.msg("\nGenerating HTML");
         makeOutputDir();
 
+        Stats.Phase phase = analyzer.stats.start("link");
         linker = new Linker(rootPath, OUTPUT_DIR);
         linker.findLinks(analyzer);
+        phase.end();
+        phase = analyzer.stats.start("export");
 
         int rootLength = rootPath.length();
 
@@ -84,6 +88,7 @@ public class Demo {
                 }
             }
         }
+        phase.end();
 
         _.msg("\nWrote " + analyzer.getLoadedFiles().size() + " files to " + OUTPUT_DIR);
     }
@@ -83,7 +83,7 @@ class Linker {
 
 
     private void processDef(@NotNull Binding binding) {
-        String qname = binding.qname;
+        String qname = binding.getQname();
         int hash = binding.hashCode();
 
         if (binding.isURL() || binding.start < 0 || seenDef.contains(hash)) {
@@ -93,7 +93,7 @@ class Linker {
         seenDef.add(hash);
         Style style = new Style(Style.Type.ANCHOR, binding.start, binding.end);
         style.message = binding.type.toString();
-        style.url = binding.qname;
+        style.url = binding.getQname();
         style.id = qname;
         addFileStyle(binding.getFile(), style);
     }
@@ -109,7 +109,7 @@ class Linker {
         seenDef.add(hash);
         Style style = new Style(Style.Type.ANCHOR, binding.start, binding.end);
         style.message = binding.type.toString();
-        style.url = binding.qname;
+        style.url = binding.getQname();
         style.id = "" + Math.abs(binding.hashCode());
 
         Set<Node> refs = binding.refs;
@@ -124,7 +124,7 @@ class Linker {
 
 
     void processRef(@NotNull Node ref, @NotNull List<Binding> bindings) {
-        String qname = bindings.iterator().next().qname;
+        String qname = bindings.iterator().next().getQname();
         int hash = ref.hashCode();
 
         if (!seenRef.contains(hash)) {
@@ -267,6 +267,7 @@ class Linker {
     @Nullable
     private String toURL(@NotNull Binding binding, String filename) {
 
+        // builtins and bindings with a documentation URL link to the docs
         if (binding.isBuiltin()) {
             return binding.getURL();
         }
@@ -282,7 +283,7 @@ class Linker {
             return null;
         }
 
-        String anchor = "#" + binding.qname;
+        String anchor = "#" + binding.getQname();
         if (binding.getFirstFile().equals(filename)) {
             return anchor;
         }
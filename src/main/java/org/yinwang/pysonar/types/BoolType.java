@@ -1,6 +1,5 @@
 package org.yinwang.pysonar.types;
 
-import org.yinwang.pysonar.Analyzer;
 import org.yinwang.pysonar.State;
 
 
@@ -58,7 +57,7 @@ public class BoolType extends Type {
 
     @Override
     protected String printType(CyclicTypeRecorder ctr) {
-        if (Analyzer.self.hasOption("debug")) {
+        if (ctr.debug) {
             return "bool(" + value + ")";
         } else {
             return "bool";
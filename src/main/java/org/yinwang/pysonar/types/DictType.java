@@ -14,7 +14,7 @@ public class DictType extends Type {
         keyType = key0;
         valueType = val0;
         table.addSuper(Analyzer.self.builtins.BaseDict.table);
-        table.setPath(Analyzer.self.builtins.BaseDict.table.path);
+        table.setPath(Analyzer.self.builtins.BaseDict.table.getQname());
     }
 
 
@@ -36,15 +36,16 @@ public class DictType extends Type {
 
     @Override
     public boolean equals(Object other) {
-        if (typeStack.contains(this, other)) {
-            return true;
-        } else if (other instanceof DictType) {
-            typeStack.push(this, other);
+        return TypeEquality.equal(this, other);
+    }
+
+
+    @Override
+    protected boolean equalTo(@NotNull Type other, @NotNull TypeEquality eq) {
+        if (other instanceof DictType) {
             DictType co = (DictType) other;
-            boolean ret = (co.keyType.equals(keyType) &&
-                    co.valueType.equals(valueType));
-            typeStack.pop(this, other);
-            return ret;
+            return eq.check(co.keyType, keyType) &&
+                    eq.check(co.valueType, valueType);
         } else {
             return false;
         }
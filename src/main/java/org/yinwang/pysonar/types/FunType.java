@@ -36,7 +36,7 @@ public class FunType extends Type {
     public FunType(Type from, Type to) {
         addMapping(from, to);
         table.addSuper(Analyzer.self.builtins.BaseFunction.table);
-        table.setPath(Analyzer.self.builtins.BaseFunction.table.path);
+        table.setPath(Analyzer.self.builtins.BaseFunction.table.getQname());
     }
 
 
@@ -91,7 +91,7 @@ public class FunType extends Type {
     public boolean equals(Object other) {
         if (other instanceof FunType) {
             FunType fo = (FunType) other;
-            return fo.table.path.equals(table.path) || this == other;
+            return fo.table.getQname() == table.getQname() || this == other;
         } else {
             return false;
         }
@@ -209,7 +209,7 @@ public class FunType extends Type {
 
                 if (!seen.contains(as)) {
                     if (i != 0) {
-                        if (Analyzer.self.multilineFunType) {
+                        if (ctr.multiline) {
                             sb.append("\n| ");
                         } else {
                             sb.append(" | ");
@@ -15,7 +15,7 @@ public class InstanceType extends Type {
     public InstanceType(@NotNull Type c) {
         table.setStateType(State.StateType.INSTANCE);
         table.addSuper(c.table);
-        table.setPath(c.table.path);
+        table.setPath(c.table.getQname());
         classType = c;
     }
 
@@ -34,16 +34,33 @@ public class InstanceType extends Type {
 
     @Override
     public boolean equals(Object other) {
+        return TypeEquality.equal(this, other);
+    }
+
+
+    @Override
+    protected boolean equalTo(@NotNull Type other, @NotNull TypeEquality eq) {
         if (other instanceof InstanceType) {
             InstanceType iother = (InstanceType) other;
             // for now ignore the case where an instance of the same class is modified
-            if (classType.equals(iother.classType) &&
-                    table.keySet().equals(iother.table.keySet()))
-            {
-                return true;
-            }
+            return eq.check(classType, iother.classType) &&
+                    sameKeys(table, iother.table);
+        } else {
+            return false;
+        }
+    }
+
+
+    private static boolean sameKeys(@NotNull State s1, @NotNull State s2) {
+        s1.force();
+        s2.force();
+        if (s1.table == s2.table) {
+            return true;
+        } else if (s1.isEmpty() || s2.isEmpty()) {
+            return s1.isEmpty() && s2.isEmpty();
+        } else {
+            return s1.table.size() == s2.table.size() && s1.keySet().equals(s2.keySet());
         }
-        return false;
     }
 
 
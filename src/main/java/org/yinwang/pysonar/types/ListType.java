@@ -24,7 +24,7 @@ public class ListType extends Type {
     public ListType(Type elt0) {
         eltType = elt0;
         table.addSuper(Analyzer.self.builtins.BaseList.table);
-        table.setPath(Analyzer.self.builtins.BaseList.table.path);
+        table.setPath(Analyzer.self.builtins.BaseList.table.getQname());
     }
 
 
@@ -67,14 +67,15 @@ public class ListType extends Type {
 
     @Override
     public boolean equals(Object other) {
-        if (typeStack.contains(this, other)) {
-            return true;
-        } else if (other instanceof ListType) {
+        return TypeEquality.equal(this, other);
+    }
+
+
+    @Override
+    protected boolean equalTo(@NotNull Type other, @NotNull TypeEquality eq) {
+        if (other instanceof ListType) {
             ListType co = (ListType) other;
-            typeStack.push(this, other);
-            boolean ret = co.eltType.equals(eltType);
-            typeStack.pop(this, other);
-            return ret;
+            return eq.check(co.eltType, eltType);
         } else {
             return false;
         }
@@ -1,8 +1,6 @@
 package org.yinwang.pysonar.types;
 
 
-import org.yinwang.pysonar.Analyzer;
-
 public class StrType extends Type {
 
     public String value;
@@ -21,7 +19,7 @@ public class StrType extends Type {
 
     @Override
     protected String printType(CyclicTypeRecorder ctr) {
-        if (Analyzer.self.hasOption("debug") && value != null) {
+        if (ctr.debug && value != null) {
             return "str(" + value + ")";
         } else {
             return "str";
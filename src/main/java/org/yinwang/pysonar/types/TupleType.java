@@ -16,7 +16,7 @@ public class TupleType extends Type {
     public TupleType() {
         this.eltTypes = new ArrayList<>();
         table.addSuper(Analyzer.self.builtins.BaseTuple.table);
-        table.setPath(Analyzer.self.builtins.BaseTuple.table.path);
+        table.setPath(Analyzer.self.builtins.BaseTuple.table.getQname());
     }
 
 
@@ -72,26 +72,26 @@ public class TupleType extends Type {
 
     @Override
     public boolean equals(Object other) {
-        if (typeStack.contains(this, other)) {
-            return true;
-        } else if (other instanceof TupleType) {
+        return TypeEquality.equal(this, other);
+    }
+
+
+    @Override
+    protected boolean equalTo(@NotNull Type other, @NotNull TypeEquality eq) {
+        if (other instanceof TupleType) {
             List<Type> types1 = eltTypes;
             List<Type> types2 = ((TupleType) other).eltTypes;
 
             if (types1.size() == types2.size()) {
-                typeStack.push(this, other);
                 for (int i = 0; i < types1.size(); i++) {
-                    if (!types1.get(i).equals(types2.get(i))) {
-                        typeStack.pop(this, other);
+                    if (!eq.check(types1.get(i), types2.get(i))) {
                         return false;
                     }
                 }
-                typeStack.pop(this, other);
                 return true;
             } else {
                 return false;
             }
-
         } else {
             return false;
         }
@@ -1,8 +1,8 @@
 package org.yinwang.pysonar.types;
 
 import org.jetbrains.annotations.NotNull;
+import org.yinwang.pysonar.Analyzer;
 import org.yinwang.pysonar.State;
-import org.yinwang.pysonar.TypeStack;
 import org.yinwang.pysonar._;
 
 import java.util.HashMap;
@@ -19,10 +19,6 @@ public abstract class Type {
     public boolean mutated = false;
 
 
-    @NotNull
-    protected static TypeStack typeStack = new TypeStack();
-
-
     public Type() {
     }
 
@@ -73,10 +69,22 @@ public abstract class Type {
     }
 
 
+    /**
+     * Compares this type with {@code other} one level deep. Structural types
+     * override this and compare their component types through {@code eq},
+     * which takes care of cycles. The default is plain {@link #equals}.
+     */
+    protected boolean equalTo(@NotNull Type other, @NotNull TypeEquality eq) {
+        return equals(other);
+    }
+
+
     /**
      * Internal class to support printing in the presence of type-graph cycles.
      */
     protected class CyclicTypeRecorder {
+        final boolean multiline;    // function types one arrow per line
+        final boolean debug;        // values of literal types
         int count = 0;
         @NotNull
         private Map<Type, Integer> elements = new HashMap<>();
@@ -84,6 +92,12 @@ public abstract class Type {
         private Set<Type> used = new HashSet<>();
 
 
+        CyclicTypeRecorder(boolean multiline, boolean debug) {
+            this.multiline = multiline;
+            this.debug = debug;
+        }
+
+
         public Integer push(Type t) {
             count += 1;
             elements.put(t, count);
@@ -118,7 +132,18 @@ public abstract class Type {
     @NotNull
     @Override
     public String toString() {
-        return printType(new CyclicTypeRecorder());
+        Analyzer a = Analyzer.self;
+        return print(a != null && a.multilineFunType, a != null && a.hasOption("debug"));
+    }
+
+
+    /**
+     * Prints the type without consulting the current analyzer, for threads
+     * other than the analyzer's.
+     */
+    @NotNull
+    public String print(boolean multiline, boolean debug) {
+        return printType(new CyclicTypeRecorder(multiline, debug));
     }
 
 
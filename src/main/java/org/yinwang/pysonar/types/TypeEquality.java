@@ -0,0 +1,81 @@
+package org.yinwang.pysonar.types;
+
+import org.jetbrains.annotations.NotNull;
+import org.yinwang.pysonar.TypeStack;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Structural equality of types in the presence of type-graph cycles.
+ *
+ * A pair that is reached again while it is still being compared is assumed
+ * to be equal. Results of finished pairs are remembered for the rest of the
+ * comparison. A negative result is always final, but a positive one may rest
+ * on an assumption that later fails, so positive results are dropped again
+ * when a pair that was in progress when they were recorded turns out unequal.
+ *
+ * One instance is used for one top-level comparison only, so there is no
+ * shared state between comparisons.
+ */
+public class TypeEquality {
+
+    @NotNull
+    private TypeStack assumed = new TypeStack();
+    @NotNull
+    private Map<TypeStack.Pair, Boolean> results = new HashMap<>();
+    @NotNull
+    private List<TypeStack.Pair> provisional = new ArrayList<>();
+
+
+    private TypeEquality() {
+    }
+
+
+    public static boolean equal(@NotNull Type t1, Object t2) {
+        if (t1 == t2) {
+            return true;
+        } else if (!(t2 instanceof Type)) {
+            return false;
+        } else {
+            return new TypeEquality().check(t1, (Type) t2);
+        }
+    }
+
+
+    public boolean check(@NotNull Type t1, @NotNull Type t2) {
+        if (t1 == t2) {
+            return true;
+        }
+
+        TypeStack.Pair pair = new TypeStack.Pair(t1, t2);
+        Boolean cached = results.get(pair);
+        if (cached != null) {
+            return cached;
+        }
+
+        if (assumed.contains(t1, t2)) {
+            return true;
+        }
+
+        int mark = provisional.size();
+        assumed.push(t1, t2);
+        boolean ret = t1.equalTo(t2, this);
+        assumed.pop(t1, t2);
+
+        if (ret) {
+            provisional.add(pair);
+            results.put(pair, true);
+        } else {
+            // results recorded after this pair was pushed may depend on it
+            for (int i = provisional.size() - 1; i >= mark; i--) {
+                results.remove(provisional.remove(i));
+            }
+            results.put(pair, false);
+        }
+        return ret;
+    }
+}
@@ -3,9 +3,7 @@ package org.yinwang.pysonar.types;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
-import java.util.Collection;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.*;
 
 
 public class UnionType extends Type {
@@ -124,29 +122,19 @@ public class UnionType extends Type {
 
     @Override
     public boolean equals(Object other) {
-        if (typeStack.contains(this, other)) {
-            return true;
-        } else if (other instanceof UnionType) {
+        return TypeEquality.equal(this, other);
+    }
+
+
+    @Override
+    protected boolean equalTo(@NotNull Type other, @NotNull TypeEquality eq) {
+        if (other instanceof UnionType) {
             Set<Type> types1 = types;
             Set<Type> types2 = ((UnionType) other).types;
             if (types1.size() != types2.size()) {
                 return false;
             } else {
-                typeStack.push(this, other);
-                for (Type t : types2) {
-                    if (!types1.contains(t)) {
-                        typeStack.pop(this, other);
-                        return false;
-                    }
-                }
-                for (Type t : types1) {
-                    if (!types2.contains(t)) {
-                        typeStack.pop(this, other);
-                        return false;
-                    }
-                }
-                typeStack.pop(this, other);
-                return true;
+                return containsAll(types1, types2, eq) && containsAll(types2, types1, eq);
             }
         } else {
             return false;
@@ -154,9 +142,47 @@ public class UnionType extends Type {
     }
 
 
+    // same as types1.containsAll(types2), but compares elements through eq,
+    // only with the elements of types1 that have the same hash code
+    private static boolean containsAll(@NotNull Set<Type> types1, @NotNull Set<Type> types2,
+                                       @NotNull TypeEquality eq)
+    {
+        Map<Integer, List<Type>> buckets = new HashMap<>(types1.size() * 2);
+        for (Type t1 : types1) {
+            List<Type> bucket = buckets.get(t1.hashCode());
+            if (bucket == null) {
+                bucket = new ArrayList<>(1);
+                buckets.put(t1.hashCode(), bucket);
+            }
+            bucket.add(t1);
+        }
+
+        for (Type t2 : types2) {
+            List<Type> bucket = buckets.get(t2.hashCode());
+            if (bucket == null) {
+                return false;
+            }
+            boolean found = false;
+            for (Type t1 : bucket) {
+                if (t1 == t2 || eq.check(t2, t1)) {
+                    found = true;
+                    break;
+                }
+            }
+            if (!found) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    // the sum of the members' hash codes, so that equal unions hash alike and
+    // unions with different members rarely share a bucket in containsAll;
+    // members are never unions themselves, so this doesn't recurse
     @Override
     public int hashCode() {
-        return "UnionType".hashCode();
+        return types.hashCode();
     }
 
 
@@ -1,4 +1,5 @@
 import ast
+import bisect
 import re
 import sys
 import codecs
@@ -11,10 +12,16 @@ from ast import *
 is_python3 = hasattr(sys.version_info, 'major') and (sys.version_info.major == 3)
 
 
+# attributes that Parser.convert doesn't read, left out of the output
+skipped_fields = frozenset(['lineno', 'col_offset', 'end_lineno', 'end_col_offset',
+                            'ctx', 'kind', 'type_comment', 'type_ignores',
+                            'extra_attr', 'filename', '_fields'])
+
+
 class AstEncoder(JSONEncoder):
     def default(self, o):
         if hasattr(o, '__dict__'):
-            d = o.__dict__
+            d = dict((k, v) for k, v in o.__dict__.items() if k not in skipped_fields)
             # workaround: decode strings if it's not Python3 code
             if not is_python3:
                 for k in d:
@@ -32,9 +39,9 @@ enc = 'latin1'
 def parse_dump(filename, output, end_mark):
     try:
         if is_python3:
-            encoder = AstEncoder()
+            encoder = AstEncoder(separators=(',', ':'))
         else:
-            encoder = AstEncoder(encoding=enc)
+            encoder = AstEncoder(encoding=enc, separators=(',', ':'))
 
         tree = parse_file(filename)
         encoded = encoder.encode(tree)
@@ -107,15 +114,38 @@ def improve_ast(node, s):
     improve_node(node, s)
 
 
-# build global table 'idxmap' for lineno <-> index oonversion
+# build global tables for lineno <-> index conversion and bracket matching
 def build_index_map(s):
     global line_starts
-    idx = 0
     line_starts = [0]
-    while idx < len(s):
-        if s[idx] == '\n':
-            line_starts.append(idx + 1)
-        idx += 1
+    idx = s.find('\n')
+    while idx >= 0:
+        line_starts.append(idx + 1)
+        idx = s.find('\n', idx + 1)
+    build_bracket_index(s)
+
+
+# for each kind of bracket, the sorted offsets of the opening ones and the
+# end of the bracket that closes each, found in one pass over the source.
+# Like match_paren, it counts brackets in strings and comments too.
+def build_bracket_index(s):
+    global bracket_opens, bracket_ends
+    bracket_opens = {'(': [], '[': [], '{': []}
+    bracket_ends = {'(': {}, '[': {}, '{': {}}
+    stacks = {'(': [], '[': [], '{': []}
+    for m in bracket_re.finditer(s):
+        c = m.group()
+        if c in stacks:
+            bracket_opens[c].append(m.start())
+            stacks[c].append(m.start())
+        else:
+            stack = stacks[closing_bracket[c]]
+            if stack:
+                bracket_ends[closing_bracket[c]][stack.pop()] = m.end()
+
+
+bracket_re = re.compile(r'[][(){}]')
+closing_bracket = {')': '(', ']': '[', '}': '{'}
 
 
 # convert (line, col) to offset index
@@ -125,11 +155,7 @@ def map_idx(line, col):
 
 # convert offset index into (line, col)
 def map_line_col(idx):
-    line = 0
-    for start in line_starts:
-        if idx < start:
-            break
-        line += 1
+    line = bisect.bisect_right(line_starts, idx)
     col = idx - line_starts[line - 1]
     return (line, col)
 
@@ -209,8 +235,8 @@ def find_end(node, s):
 
     elif isinstance(node, Str):
         i = find_start(node, s)
-        while s[i] != '"' and s[i] != "'":
-            i += 1
+        m = quote_re.search(s, i)
+        i = m.start() if m else len(s)
 
         if i + 2 < len(s) and s[i:i + 3] == '"""':
             q = '"""'
@@ -368,34 +394,6 @@ def add_missing_names(node, s):
             node.name_node = str_to_name(s, start)
             node._fields += ('name_node',)
 
-        # keyword_start = find_start(node, s)
-        # node.keyword_node = str_to_name(s, keyword_start)
-        # node._fields += ('keyword_node',)
-
-        if node.args.vararg != None:
-            if len(node.args.args) > 0:
-                vstart = find_end(node.args.args[-1], s)
-            else:
-                vstart = find_end(node.name_node, s)
-            if vstart != None:
-                vname = str_to_name(s, vstart)
-                node.vararg_name = vname
-        else:
-            node.vararg_name = None
-        node._fields += ('vararg_name',)
-
-        if node.args.kwarg != None:
-            if len(node.args.args) > 0:
-                kstart = find_end(node.args.args[-1], s)
-            else:
-                kstart = find_end(node.vararg_name, s)
-            if kstart:
-                kname = str_to_name(s, kstart)
-                node.kwarg_name = kname
-        else:
-            node.kwarg_name = None
-        node._fields += ('kwarg_name',)
-
     elif isinstance(node, Attribute):
         start = find_end(node.value, s)
         if start is not None:
@@ -403,28 +401,6 @@ def add_missing_names(node, s):
             node.attr_name = name
             node._fields = ('value', 'attr_name')  # remove attr for node size accuracy
 
-    elif isinstance(node, Compare):
-        start = find_start(node, s)
-        if start is not None:
-            node.opsName = convert_ops(node.ops, s, start)
-            node._fields += ('opsName',)
-
-    elif (isinstance(node, BoolOp) or
-              isinstance(node, BinOp) or
-              isinstance(node, UnaryOp) or
-              isinstance(node, AugAssign)):
-        if hasattr(node, 'left'):
-            start = find_end(node.left, s)
-        else:
-            start = find_start(node, s)
-        if start is not None:
-            ops = convert_ops([node.op], s, start)
-        else:
-            ops = []
-        if ops != []:
-            node.op_node = ops[0]
-            node._fields += ('op_node',)
-
     elif isinstance(node, Num):
         if isinstance(node.n, int) or (not is_python3 and isinstance(node.n, long)):
             type = 'int'
@@ -466,114 +442,28 @@ def end_seq(s, pat, start):
 
 # find matching close paren from start
 def match_paren(s, open, close, start):
-    while start < len(s) and s[start] != open:
-        start += 1
-    if start >= len(s):
+    opens = bracket_opens[open]
+    k = bisect.bisect_left(opens, start)
+    if k == len(opens):
         return len(s)
-
-    left = 1
-    i = start + 1
-    while left > 0 and i < len(s):
-        if s[i] == open:
-            left += 1
-        elif s[i] == close:
-            left -= 1
-        i += 1
-    return i
+    return bracket_ends[open].get(opens[k], len(s))
 
 
 # convert string to Name
 def str_to_name(s, start):
-    i = start;
-    while i < len(s) and not is_alpha(s[i]):
-        i += 1
-    name_start = i
-
-    ret = []
-    while i < len(s) and is_alpha(s[i]):
-        ret.append(s[i])
-        i += 1
-    name_end = i
-
-    id1 = ''.join(ret)
-    if id1 == '':
+    m = name_re.search(s, start)
+    if m is None:
         return None
     else:
-        name = Name(id1, None)
-        name.start = name_start
-        name.end = name_end
-        name.lineno, name.col_offset = map_line_col(name_start)
+        name = Name(m.group(), None)
+        name.start = m.start()
+        name.end = m.end()
+        name.lineno, name.col_offset = map_line_col(name.start)
         return name
 
 
-def convert_ops(ops, s, start):
-    syms = []
-    for op in ops:
-        if type(op) in ops_map:
-            syms.append(ops_map[type(op)])
-        else:
-            print("[WARNING] operator %s is missing from ops_map, "
-                  "please report the bug on GitHub" % op)
-
-    i = start
-    j = 0
-    ret = []
-    while i < len(s) and j < len(syms):
-        oplen = len(syms[j])
-        if s[i:i + oplen] == syms[j]:
-            op_node = Name(syms[j], None)
-            op_node.start = i
-            op_node.end = i + oplen
-            op_node.lineno, op_node.col_offset = map_line_col(i)
-            ret.append(op_node)
-            j += 1
-            i = op_node.end
-        else:
-            i += 1
-    return ret
-
-
-# lookup table for operators for convert_ops
-ops_map = {
-    # compare:
-    Eq: '==',
-    NotEq: '!=',
-    LtE: '<=',
-    Lt: '<',
-    GtE: '>=',
-    Gt: '>',
-    NotIn: 'not in',
-    In: 'in',
-    IsNot: 'is not',
-    Is: 'is',
-
-    # BoolOp
-    Or: 'or',
-    And: 'and',
-    Not: 'not',
-    Invert: '~',
-
-    # bit operators
-    BitOr: '|',
-    BitAnd: '&',
-    BitXor: '^',
-    RShift: '>>',
-    LShift: '<<',
-
-
-    # BinOp
-    Add: '+',
-    Sub: '-',
-    Mult: '*',
-    Div: '/',
-    FloorDiv: '//',
-    Mod: '%',
-    Pow: '**',
-
-    # UnaryOp
-    USub: '-',
-    UAdd: '+',
-}
+quote_re = re.compile('[\'"]')
+name_re = re.compile('[_0-9a-zA-Z]+')
 
 
 # get list of fields from a node
@@ -612,13 +502,6 @@ def end(node):
         return None
 
 
-def is_alpha(c):
-    return (c == '_'
-            or ('0' <= c <= '9')
-            or ('a' <= c <= 'z')
-            or ('A' <= c <= 'Z'))
-
-
 # p('/Users/yinwang/Code/django/tests/invalid_models/invalid_models/models.py')
 # p('/Users/yinwang/Dropbox/prog/pysonar2/tests/test-unicode/test1.py')
 # p('/Users/yinwang/Code/cpython/Lib/lib2to3/tests/data/bom.py')
@@ -0,0 +1,21 @@
+class A:
+    def foo(self):
+        return 1
+
+
+class B:
+    def bar(self):
+        return 2
+
+
+a, *b = (A(), B(), B())
+a.foo()
+b[0].bar()
+
+*c, d = (B(), B(), A())
+c[0].bar()
+d.foo()
+
+e, *f = [A(), A()]
+e.foo()
+f[0].foo()